@@ -0,0 +1,119 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import com.microsoft.azure.vmagent.util.AzureVMThreadPools;
+import hudson.ExtensionList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Agents to clean up as soon as they went offline or were given a clean up action.
+ * <p>
+ * An agent is checked {@code com.microsoft.azure.vmagent.AgentCleanUpQueue.delayMillis} (10000 by default)
+ * after it was queued, which lets the state changes that come together (e.g. a clean up action followed by
+ * the disconnection) settle, and is queued only once until then. An agent still running builds is checked
+ * again after the same delay. The periodic {@link AzureVMAgentCleanUpTask} still looks at every agent, for
+ * the events missed, e.g. across a restart.
+ */
+final class AgentCleanUpQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(AgentCleanUpQueue.class.getName());
+
+    private static final long DEFAULT_DELAY_MILLIS = 10000;
+
+    private static final long DELAY_MILLIS = SystemProperties.getLong(
+            AgentCleanUpQueue.class.getName() + ".delayMillis", DEFAULT_DELAY_MILLIS);
+
+    private static AgentCleanUpQueue instance;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Executor executor;
+
+    private final long delayMillis;
+
+    private final Predicate<String> cleanUp;
+
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param scheduler   Scheduler delaying the checks
+     * @param executor    Executor running the checks
+     * @param delayMillis Delay between queuing an agent and checking it
+     * @param cleanUp     Cleans up an agent, returning true if it should be checked again later
+     */
+    AgentCleanUpQueue(ScheduledExecutorService scheduler, Executor executor, long delayMillis,
+                      Predicate<String> cleanUp) {
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.delayMillis = delayMillis;
+        this.cleanUp = cleanUp;
+    }
+
+    static synchronized AgentCleanUpQueue get() {
+        if (instance == null) {
+            instance = new AgentCleanUpQueue(Timer.get(),
+                    AzureVMThreadPools.get(AzureVMThreadPools.Workload.CLEANUP), DELAY_MILLIS,
+                    name -> ExtensionList.lookupSingleton(AzureVMAgentCleanUpTask.class).cleanVM(name));
+        }
+        return instance;
+    }
+
+    /**
+     * Queues the agent for a check, unless it is already queued.
+     */
+    void enqueue(String nodeName) {
+        if (nodeName != null && queued.add(nodeName)) {
+            LOGGER.log(Level.FINE, "Queued {0} for clean up", nodeName);
+            scheduler.schedule(() -> check(nodeName), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    boolean isQueued(String nodeName) {
+        return queued.contains(nodeName);
+    }
+
+    private void check(String nodeName) {
+        try {
+            executor.execute(() -> {
+                queued.remove(nodeName);
+                boolean again = false;
+                try {
+                    again = cleanUp.test(nodeName);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to clean up " + nodeName, e);
+                }
+                if (again) {
+                    enqueue(nodeName);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Left to the periodic clean up
+            queued.remove(nodeName);
+            LOGGER.log(Level.FINE, "Cannot check {0} for clean up now: {1}", new Object[]{nodeName, e.getMessage()});
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import com.azure.resourcemanager.AzureResourceManager;
+import com.azure.resourcemanager.compute.models.VirtualMachine;
+import com.azure.resourcemanager.resources.models.GenericResource;
+import com.microsoft.azure.vmagent.util.Constants;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lists resources through the paged ARM list endpoints of the resource group.
+ */
+final class ArmInventoryBackend implements InventoryBackend {
+
+    private final AzureResourceManager azureClient;
+
+    ArmInventoryBackend(AzureResourceManager azureClient) {
+        this.azureClient = azureClient;
+    }
+
+    @Override
+    public List<VirtualMachineInventory.Entry> listVirtualMachines(String resourceGroup) {
+        List<VirtualMachineInventory.Entry> entries = new ArrayList<>();
+        for (VirtualMachine vm : azureClient.virtualMachines().listByResourceGroup(resourceGroup)) {
+            entries.add(VirtualMachineInventory.Entry.from(vm));
+        }
+        return entries;
+    }
+
+    @Override
+    public List<TaggedResource> listTaggedResources(String resourceGroup) {
+        List<TaggedResource> resources = new ArrayList<>();
+        // can't use listByTag because for some reason that method strips all the tags from the outputted resources
+        // (https://github.com/Azure/azure-sdk-for-java/issues/1436)
+        for (GenericResource resource : azureClient.genericResources().listByResourceGroup(resourceGroup)) {
+            if (resource.tags() != null && resource.tags().containsKey(Constants.AZURE_RESOURCES_TAG_NAME)) {
+                resources.add(new TaggedResource(resource.id(), resource.name(), resource.type(), resource.tags()));
+            }
+        }
+        return resources;
+    }
+}
@@ -443,6 +443,7 @@ public class AzureVMAgent extends AbstractCloudSlave implements TrackedItem {
         }
         setCleanUpAction(action);
         setCleanUpReason(reason);
+        AgentCleanUpQueue.get().enqueue(getNodeName());
     }
 
     public String getJvmOptions() {
@@ -622,9 +623,32 @@ public class AzureVMAgent extends AbstractCloudSlave implements TrackedItem {
      * @throws Exception On error
      */
     public synchronized void deprovision(Localizable reason) throws Exception {
+        if (!prepareDeprovision(reason)) {
+            return;
+        }
+
+        AzureVMManagementServiceDelegate.terminateVirtualMachine(this);
+
+        LOGGER.log(Level.INFO, "{0} has been deprovisioned. Remove node ...", this.getDisplayName());
+        // Adjust estimated virtual machine count.
+        AzureVMCloud parentCloud = getCloud();
+        if (parentCloud != null) {
+            parentCloud.adjustApproximateVirtualMachineCount(-1, template);
+        }
+
+        Jenkins.get().removeNode(this);
+    }
+
+    /**
+     * First part of {@link #deprovision}, run before the VM is deleted: stops accepting tasks, runs the
+     * terminate script and disconnects the agent.
+     *
+     * @return false if the node is already gone and there is nothing to deprovision
+     */
+    synchronized boolean prepareDeprovision(Localizable reason) {
         SlaveComputer computer = this.getComputer();
         if (Jenkins.get().getNode(this.name) == null || computer == null) {
-            return;
+            return false;
         }
 
         LOGGER.log(Level.INFO, "Deprovision called for agent {0}, for reason: {1}",
@@ -705,21 +729,13 @@ public class AzureVMAgent extends AbstractCloudSlave implements TrackedItem {
                 }
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, "Got exception while deprovisioning", e);
+            } finally {
+                azureLauncher.closeSession(this);
             }
         }
 
         computer.disconnect(OfflineCause.create(reason));
-
-        AzureVMManagementServiceDelegate.terminateVirtualMachine(this);
-
-        LOGGER.log(Level.INFO, "{0} has been deprovisioned. Remove node ...", this.getDisplayName());
-        // Adjust estimated virtual machine count.
-        AzureVMCloud parentCloud = getCloud();
-        if (parentCloud != null) {
-            parentCloud.adjustApproximateVirtualMachineCount(-1, template);
-        }
-
-        Jenkins.get().removeNode(this);
+        return true;
     }
 
     @CheckForNull
@@ -15,55 +15,53 @@
  */
 package com.microsoft.azure.vmagent;
 
-import com.azure.core.http.rest.PagedIterable;
 import com.azure.resourcemanager.AzureResourceManager;
-import com.azure.resourcemanager.compute.models.VirtualMachine;
-import com.azure.resourcemanager.resources.models.Deployment;
-import com.azure.resourcemanager.resources.models.GenericResource;
 import com.microsoft.azure.vmagent.exceptions.AzureCloudException;
 import com.microsoft.azure.vmagent.retry.DefaultRetryStrategy;
+import com.microsoft.azure.vmagent.util.AdaptiveRecurrence;
 import com.microsoft.azure.vmagent.util.AzureUtil;
+import com.microsoft.azure.vmagent.util.AzureVMThreadPools;
 import com.microsoft.azure.vmagent.util.CleanUpAction;
+import com.microsoft.azure.vmagent.util.CompletableFutures;
 import com.microsoft.azure.vmagent.util.Constants;
 import com.microsoft.azure.vmagent.util.ExecutionEngine;
 import hudson.Extension;
 import hudson.model.AsyncPeriodicWork;
 import hudson.model.Computer;
-import hudson.model.Label;
-import hudson.model.Node;
 import hudson.model.TaskListener;
-import hudson.slaves.NodeProvisioner;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import org.apache.commons.lang3.StringUtils;
 import org.jenkinsci.plugins.cloudstats.CloudStatistics;
 import org.jenkinsci.plugins.cloudstats.ProvisioningActivity;
-import org.jenkinsci.plugins.cloudstats.TrackedItem;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.OffsetDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -72,7 +70,7 @@ import static com.microsoft.azure.vmagent.util.Constants.MILLIS_IN_MINUTE;
 @Extension
 public class AzureVMAgentCleanUpTask extends AsyncPeriodicWork {
 
-    private static class DeploymentInfo implements Serializable {
+    static class DeploymentInfo implements Serializable {
         private static final long serialVersionUID = 888154365;
 
         DeploymentInfo(String cloudName,
@@ -113,49 +111,136 @@ public class AzureVMAgentCleanUpTask extends AsyncPeriodicWork {
             return attemptsRemaining > 0;
         }
 
+        int getAttemptsRemaining() {
+            return attemptsRemaining;
+        }
+
+        static String keyOf(String resourceGroupName, String deploymentName) {
+            return resourceGroupName + "/" + deploymentName;
+        }
+
         void decrementAttemptsRemaining() {
             attemptsRemaining--;
         }
 
+        /**
+         * @return Creation time of the deployment, the registration time until it was read from Azure, or 0 if
+         *         unknown
+         */
+        long getTimestampMillis() {
+            return timestampMillis;
+        }
+
+        /**
+         * @return Provisioning state last read from Azure, or null if it was never read
+         */
+        String getProvisioningState() {
+            return provisioningState;
+        }
+
+        void setTimestampMillis(long timestampMillis) {
+            this.timestampMillis = timestampMillis;
+        }
+
+        void observed(OffsetDateTime timestamp, String state) {
+            this.timestampMillis = timestamp.toInstant().toEpochMilli();
+            this.provisioningState = state;
+        }
+
         private final String cloudName;
         private final String deploymentName;
         private final String resourceGroupName;
         private final String scriptUri;
         private int attemptsRemaining;
         private final boolean isUseEntraIdForStorageAccount;
+        private transient long timestampMillis;
+        private transient String provisioningState;
     }
 
-    private static final int CLEAN_TIMEOUT_IN_MINUTES = 15;
-    private static final int RECURRENCE_PERIOD_IN_MILLIS = 5 * MILLIS_IN_MINUTE;  // 5 minutes
+    private static final int VMS_TIMEOUT_IN_MINUTES = 15;
+
+    private static final int DEPLOYMENTS_TIMEOUT_IN_MINUTES = 10;
+
+    private static final int LEAKED_RESOURCES_TIMEOUT_IN_MINUTES = 10;
+
+    private static final int CLOUD_STATISTICS_TIMEOUT_IN_MINUTES = 5;
+
+    private static final int LEAKED_RESOURCES_WAIT_IN_MINUTES = 5;
+
+    private static final int DEPLOYMENTS_WAIT_IN_MINUTES = 5;
+
+    private static final int DEPLOYMENT_CLEANUP_PARALLELISM = 10;
+    private static final int MIN_RECURRENCE_PERIOD_IN_MILLIS = MILLIS_IN_MINUTE;
+
+    private static final int MAX_RECURRENCE_PERIOD_IN_MILLIS = 15 * MILLIS_IN_MINUTE;
 
     private static final long SUCCESSFUL_DEPLOYMENT_TIMEOUT_IN_MINUTES = 60;
     private static final long FAILING_DEPLOYMENT_TIMEOUT_IN_MINUTES = 60 * 8;
     private static final int MAX_DELETE_ATTEMPTS = 3;
     private static final Logger LOGGER = Logger.getLogger(AzureVMAgentCleanUpTask.class.getName());
 
+    private static final long CLEANING_UP_POLL_INTERVAL_IN_MILLIS = 1000;
+
+    private static final Set<String> CLEANING_UP = ConcurrentHashMap.newKeySet();
+
+    private final transient AdaptiveRecurrence recurrence = new AdaptiveRecurrence(AzureVMAgentCleanUpTask.class,
+            MIN_RECURRENCE_PERIOD_IN_MILLIS, MAX_RECURRENCE_PERIOD_IN_MILLIS);
+
+    // Work found since the last run, including the agents cleaned up on events
+    private final transient AtomicInteger agentsCleaned = new AtomicInteger();
+
+    private final transient AtomicInteger deploymentsDue = new AtomicInteger();
+
+    private final transient AtomicInteger leakedResourcesFound = new AtomicInteger();
+
+    private final transient CleanUpPhases phases =
+            new CleanUpPhases(AzureVMThreadPools.get(AzureVMThreadPools.Workload.CLEANUP_PHASE));
+
     public AzureVMAgentCleanUpTask() {
         super("Azure VM Agents Clean Task");
     }
 
     public static class DeploymentRegistrar {
 
+        // Java serialized queue written by previous versions, migrated to the journal
         private static final String OUTPUT_FILE
                 = Paths.get(loadProperty("JENKINS_HOME"), "deployment.out").toString();
 
+        private static final String JOURNAL_FILE
+                = Paths.get(loadProperty("JENKINS_HOME"), "deployment.journal").toString();
+
         private static DeploymentRegistrar deploymentRegistrar = null;
 
-        private ConcurrentLinkedQueue<DeploymentInfo> deploymentsToClean;
+        private final DeploymentSchedule deploymentsToClean = new DeploymentSchedule();
+
+        private final DeploymentJournal journal;
 
         protected DeploymentRegistrar() {
+            journal = new DeploymentJournal(Paths.get(JOURNAL_FILE));
+            try {
+                if (!journal.exists() && new File(OUTPUT_FILE).exists()) {
+                    migrateOutputFile();
+                } else {
+                    // Creation times are not journaled, the first clean up reads them from Azure
+                    journal.replay().forEach(deploymentsToClean::add);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read deployment journal " + JOURNAL_FILE, e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void migrateOutputFile() throws IOException {
             try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(OUTPUT_FILE));) {
-                deploymentsToClean = (ConcurrentLinkedQueue<DeploymentInfo>) ois.readObject();
-            } catch (FileNotFoundException e) {
-                LOGGER.log(Level.WARNING, "Cannot open deployment output file");
-                deploymentsToClean = new ConcurrentLinkedQueue<>();
+                ((ConcurrentLinkedQueue<DeploymentInfo>) ois.readObject()).forEach(deploymentsToClean::add);
             } catch (Exception e) {
                 LOGGER.log(Level.WARNING, "Cannot deserialize deploymentsToClean", e);
-                deploymentsToClean = new ConcurrentLinkedQueue<>();
             }
+            journal.replay();
+            journal.replaceAll(deploymentsToClean.snapshot());
+            Files.deleteIfExists(Paths.get(OUTPUT_FILE));
+            LOGGER.log(Level.INFO, "Migrated {0} deployments from {1} to {2}",
+                    new Object[]{deploymentsToClean.size(), OUTPUT_FILE, JOURNAL_FILE});
         }
 
         public static synchronized DeploymentRegistrar getInstance() {
@@ -165,7 +250,7 @@ public class AzureVMAgentCleanUpTask extends AsyncPeriodicWork {
             return deploymentRegistrar;
         }
 
-        public ConcurrentLinkedQueue<DeploymentInfo> getDeploymentsToClean() {
+        DeploymentSchedule getDeploymentsToClean() {
             return deploymentsToClean;
         }
 
@@ -179,18 +264,40 @@ public class AzureVMAgentCleanUpTask extends AsyncPeriodicWork {
             DeploymentInfo newDeploymentToClean =
                     new DeploymentInfo(cloudName, resourceGroupName, deploymentName, scriptUri, MAX_DELETE_ATTEMPTS,
                             isUseEntraIdForStorageAccount);
+            newDeploymentToClean.setTimestampMillis(System.currentTimeMillis());
             deploymentsToClean.add(newDeploymentToClean);
+            try {
+                journal.added(newDeploymentToClean);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot append to deployment journal " + JOURNAL_FILE, e);
+            }
+        }
 
-            syncDeploymentsToClean();
+        void deploymentRemoved(DeploymentInfo info) {
+            try {
+                journal.removed(info);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot append to deployment journal " + JOURNAL_FILE, e);
+            }
+        }
+
+        void deploymentAttempted(DeploymentInfo info) {
+            try {
+                journal.attempted(info);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot append to deployment journal " + JOURNAL_FILE, e);
+            }
         }
 
+        /**
+         * Changes are journaled as they happen, this only compacts the journal when it has grown too large. The
+         * journal compacts from the deployments it recorded, including those being checked.
+         */
         public synchronized void syncDeploymentsToClean() {
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(OUTPUT_FILE));) {
-                oos.writeObject(deploymentsToClean);
-            } catch (FileNotFoundException e) {
-                LOGGER.log(Level.WARNING, "Cannot open deployment output file" + OUTPUT_FILE);
+            try {
+                journal.compactIfNeeded();
             } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Serialize failed", e);
+                LOGGER.log(Level.WARNING, "Cannot compact deployment journal " + JOURNAL_FILE, e);
             }
         }
 
@@ -205,100 +312,119 @@ public class AzureVMAgentCleanUpTask extends AsyncPeriodicWork {
 
     public void cleanDeployments(long successTimeoutInMinutes, long failTimeoutInMinutes) {
         LOGGER.log(getNormalLoggingLevel(), "Cleaning deployments");
-        // Walk the queue, popping and pushing until we reach an item that we've already
-        // dealt with or the queue is empty.
-        DeploymentInfo firstBackInQueue = null;
-        ConcurrentLinkedQueue<DeploymentInfo> deploymentsToClean
-                = DeploymentRegistrar.getInstance().getDeploymentsToClean();
-        while (!deploymentsToClean.isEmpty() && firstBackInQueue != deploymentsToClean.peek()) {
-            DeploymentInfo info = deploymentsToClean.remove();
-
-            LOGGER.log(getNormalLoggingLevel(), "Checking deployment {0}", info.getDeploymentName());
-
-            AzureVMCloud cloud = getCloud(info.getCloudName());
-
-            if (cloud == null) {
-                // Cloud could have been deleted, skip
-                continue;
-            }
+        // Only deployments old enough to be deleted are read from Azure, the others stay scheduled
+        final DeploymentRegistrar registrar = DeploymentRegistrar.getInstance();
+        final DeploymentSchedule deploymentsToClean = registrar.getDeploymentsToClean();
+        final List<DeploymentInfo> due = deploymentsToClean.pollDue(System.currentTimeMillis(),
+                TimeUnit.MINUTES.toMillis(successTimeoutInMinutes), TimeUnit.MINUTES.toMillis(failTimeoutInMinutes));
+        LOGGER.log(getNormalLoggingLevel(), "{0} of {1} deployments are due for a check",
+                new Object[]{due.size(), due.size() + deploymentsToClean.size()});
+        deploymentsDue.addAndGet(due.size());
 
-            try {
-                final AzureResourceManager azureClient = cloud.getAzureClient();
-                final AzureVMManagementServiceDelegate delegate = cloud.getServiceDelegate();
-
-                // This will throw if the deployment can't be found.  This could happen in a couple instances
-                // 1) The deployment has already been deleted
-                // 2) The deployment doesn't exist yet (race between creating the deployment and it
-                //    being accepted by Azure.
-                // To avoid this, we implement a retry.  If we hit an exception, we will decrement the number
-                // of retries.  If we hit 0, we remove the deployment from our list.
-                Deployment deployment = azureClient.deployments().
-                        getByResourceGroup(info.getResourceGroupName(), info.getDeploymentName());
-
-                if (deployment == null) {
-                    LOGGER.log(getNormalLoggingLevel(), "Deployment " + info.getDeploymentName()
-                           + " not found, skipping");
-                    continue;
-                }
-
-                OffsetDateTime deploymentTime = deployment.timestamp();
+        try {
+            CompletableFutures.forEach(due, DEPLOYMENT_CLEANUP_PARALLELISM,
+                    info -> cleanDeployment(registrar, info, successTimeoutInMinutes, failTimeoutInMinutes))
+                    .get(DEPLOYMENTS_WAIT_IN_MINUTES, TimeUnit.MINUTES);
+        } catch (TimeoutException e) {
+            LOGGER.log(Level.INFO, "Deployment checks still running after {0} minutes, leaving them in the background",
+                    DEPLOYMENTS_WAIT_IN_MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to clean deployments", e);
+        }
+        registrar.syncDeploymentsToClean();
 
-                LOGGER.log(getNormalLoggingLevel(), "Deployment created on {0}", deploymentTime.toString());
-                long diffTimeInMinutes = ChronoUnit.MINUTES
-                        .between(deploymentTime, OffsetDateTime.now());
+        LOGGER.log(getNormalLoggingLevel(), "Done cleaning deployments");
+    }
 
-                String state = deployment.provisioningState();
+    /**
+     * Checks a due deployment, deleting it if it is old enough and scheduling it again otherwise.
+     */
+    private CompletableFuture<Void> cleanDeployment(
+            DeploymentRegistrar registrar,
+            DeploymentInfo info,
+            long successTimeoutInMinutes,
+            long failTimeoutInMinutes) {
+        LOGGER.log(getNormalLoggingLevel(), "Checking deployment {0}", info.getDeploymentName());
+
+        AzureVMCloud cloud = getCloud(info.getCloudName());
+        if (cloud == null) {
+            // Cloud could have been deleted, skip
+            registrar.deploymentRemoved(info);
+            return CompletableFuture.completedFuture(null);
+        }
 
-                if (!state.equalsIgnoreCase("succeeded") && diffTimeInMinutes > failTimeoutInMinutes) {
-                    LOGGER.log(getNormalLoggingLevel(), "Failed deployment older than {0} minutes, deleting",
-                            failTimeoutInMinutes);
-                    // Delete the deployment
-                    azureClient.deployments()
-                            .deleteByResourceGroup(info.getResourceGroupName(), info.getDeploymentName());
-                    if (StringUtils.isNotBlank(info.scriptUri)) {
-                        delegate.removeStorageBlob(new URI(info.scriptUri), info.getResourceGroupName(),
-                                cloud.getAzureCredentialsId(), info.isUseEntraIdForStorageAccount());
-                    }
-                } else if (state.equalsIgnoreCase("succeeded")
-                        && diffTimeInMinutes > successTimeoutInMinutes) {
-                    LOGGER.log(getNormalLoggingLevel(), "Successful deployment older than {0} minutes, deleting",
-                            successTimeoutInMinutes);
-                    // Delete the deployment
-                    azureClient.deployments()
-                            .deleteByResourceGroup(info.getResourceGroupName(), info.getDeploymentName());
-                    if (StringUtils.isNotBlank(info.scriptUri)) {
-                        delegate.removeStorageBlob(new URI(info.scriptUri), info.getResourceGroupName(),
-                                cloud.getAzureCredentialsId(), info.isUseEntraIdForStorageAccount());
+        final AzureResourceManager azureClient = cloud.getAzureClient();
+        final AzureVMManagementServiceDelegate delegate = cloud.getServiceDelegate();
+        final Executor executor = AzureVMThreadPools.get(AzureVMThreadPools.Workload.CLEANUP);
+
+        // This will fail if the deployment can't be found.  This could happen in a couple instances
+        // 1) The deployment has already been deleted
+        // 2) The deployment doesn't exist yet (race between creating the deployment and it
+        //    being accepted by Azure.
+        // To avoid this, we implement a retry.  If we hit an exception, we will decrement the number
+        // of retries.  If we hit 0, we remove the deployment from our list.
+        return azureClient.deployments()
+                .getByResourceGroupAsync(info.getResourceGroupName(), info.getDeploymentName()).toFuture()
+                .thenCompose(deployment -> {
+                    if (deployment == null) {
+                        LOGGER.log(getNormalLoggingLevel(), "Deployment " + info.getDeploymentName()
+                                + " not found, skipping");
+                        registrar.deploymentRemoved(info);
+                        return CompletableFuture.completedFuture(null);
                     }
-                } else {
-                    LOGGER.log(getNormalLoggingLevel(), "Deployment newer than timeout, keeping");
 
-                    if (firstBackInQueue == null) {
-                        firstBackInQueue = info;
-                    }
-                    // Put it back
-                    deploymentsToClean.add(info);
-                }
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, String.format("Failed to get/delete deployment: %s",
-                        info.getDeploymentName()), e);
-                // Check the number of attempts remaining. If greater than 0, decrement
-                // and add back into the queue.
-                if (info.hasAttemptsRemaining()) {
-                    info.decrementAttemptsRemaining();
-
-                    if (firstBackInQueue == null) {
-                        firstBackInQueue = info;
+                    OffsetDateTime deploymentTime = deployment.timestamp();
+                    LOGGER.log(getNormalLoggingLevel(), "Deployment created on {0}", deploymentTime.toString());
+                    long diffTimeInMinutes = ChronoUnit.MINUTES.between(deploymentTime, OffsetDateTime.now());
+                    String state = deployment.provisioningState();
+                    info.observed(deploymentTime, state);
+
+                    boolean succeeded = state.equalsIgnoreCase("succeeded");
+                    if (!succeeded && diffTimeInMinutes > failTimeoutInMinutes) {
+                        LOGGER.log(getNormalLoggingLevel(), "Failed deployment older than {0} minutes, deleting",
+                                failTimeoutInMinutes);
+                    } else if (succeeded && diffTimeInMinutes > successTimeoutInMinutes) {
+                        LOGGER.log(getNormalLoggingLevel(), "Successful deployment older than {0} minutes, deleting",
+                                successTimeoutInMinutes);
+                    } else {
+                        LOGGER.log(getNormalLoggingLevel(), "Deployment newer than timeout, keeping");
+                        registrar.getDeploymentsToClean().add(info);
+                        return CompletableFuture.completedFuture(null);
                     }
 
-                    // Put it back in the queue for another attempt
-                    deploymentsToClean.add(info);
-                }
-            }
-        }
-        DeploymentRegistrar.getInstance().syncDeploymentsToClean();
-
-        LOGGER.log(getNormalLoggingLevel(), "Done cleaning deployments");
+                    // Delete the deployment
+                    return azureClient.deployments()
+                            .deleteByResourceGroupAsync(info.getResourceGroupName(), info.getDeploymentName())
+                            .toFuture()
+                            .thenRunAsync(() -> {
+                                if (StringUtils.isNotBlank(info.scriptUri)) {
+                                    try {
+                                        delegate.removeStorageBlob(new URI(info.scriptUri),
+                                                info.getResourceGroupName(), cloud.getAzureCredentialsId(),
+                                                info.isUseEntraIdForStorageAccount());
+                                    } catch (Exception e) {
+                                        throw new CompletionException(e);
+                                    }
+                                }
+                                registrar.deploymentRemoved(info);
+                            }, executor);
+                })
+                .exceptionally(e -> {
+                    LOGGER.log(Level.WARNING, String.format("Failed to get/delete deployment: %s",
+                            info.getDeploymentName()), CompletableFutures.unwrap(e));
+                    // Check the number of attempts remaining. If greater than 0, decrement
+                    // and schedule it again for another attempt.
+                    if (info.hasAttemptsRemaining()) {
+                        info.decrementAttemptsRemaining();
+                        registrar.deploymentAttempted(info);
+                        registrar.getDeploymentsToClean().add(info);
+                    } else {
+                        registrar.deploymentRemoved(info);
+                    }
+                    return null;
+                });
     }
 
     /* There are some edge-cases where we might lose track of the provisioned resources:
@@ -314,8 +440,9 @@ public class AzureVMAgentCleanUpTask extends AsyncPeriodicWork {
             LOGGER.log(getNormalLoggingLevel(), "Skipped as no Jenkins instance");
             return;
         }
+        final ValidVirtualMachineIndex validVMs = new ValidVirtualMachineIndex(getValidVMs());
         for (AzureVMCloud cloud : instance.clouds.getAll(AzureVMCloud.class)) {
-            cleanLeakedResources(cloud, cloud.getResourceGroupName(), DeploymentRegistrar.getInstance());
+            cleanLeakedResources(cloud, cloud.getResourceGroupName(), DeploymentRegistrar.getInstance(), validVMs);
         }
         LOGGER.log(getNormalLoggingLevel(), "Completed");
     }
@@ -338,8 +465,15 @@ public class AzureVMAgentCleanUpTask extends AsyncPeriodicWork {
             AzureVMCloud cloud,
             String resourceGroup,
             DeploymentRegistrar deploymentRegistrar) {
+        cleanLeakedResources(cloud, resourceGroup, deploymentRegistrar, new ValidVirtualMachineIndex(getValidVMs()));
+    }
+
+    void cleanLeakedResources(
+            AzureVMCloud cloud,
+            String resourceGroup,
+            DeploymentRegistrar deploymentRegistrar,
+            ValidVirtualMachineIndex validVMs) {
         try {
-            final List<String> validVMs = getValidVMs();
             final AzureResourceManager azureClient = cloud.getAzureClient();
 
             if (azureClient == null) {
@@ -349,67 +483,28 @@ public class AzureVMAgentCleanUpTask extends AsyncPeriodicWork {
                 return;
             }
 
-            final AzureVMManagementServiceDelegate serviceDelegate = cloud.getServiceDelegate();
-            // can't use listByTag because for some reason that method strips all the tags from the outputted resources
-            // (https://github.com/Azure/azure-sdk-for-java/issues/1436)
-            final PagedIterable<GenericResource> resources = azureClient.genericResources()
-                    .listByResourceGroup(resourceGroup);
-
+            final List<InventoryBackend.TaggedResource> resources =
+                    InventoryBackend.create(azureClient).listTaggedResources(resourceGroup);
 
-            if (resources == null || !resources.iterator().hasNext()) {
+            if (resources.isEmpty()) {
                 LOGGER.log(getNormalLoggingLevel(), "cleanLeakedResources: No resources found in rg: "
                     + resourceGroup);
                 return;
             }
 
-            final PriorityQueue<GenericResource> resourcesMarkedForDeletion = new PriorityQueue<>(10,
-                    new Comparator<GenericResource>() {
-                        @Override
-                        public int compare(GenericResource o1, GenericResource o2) {
-                            int o1Priority = getPriority(o1);
-                            int o2Priority = getPriority(o2);
-                            if (o1Priority == o2Priority) {
-                                return 0;
-                            }
-                            return (o1Priority < o2Priority) ? -1 : 1;
-                        }
-
-                        private int getPriority(GenericResource resource) {
-                            //suppress magic number check
-                            //CHECKSTYLE:OFF
-                            final String type = resource.type();
-                            if (StringUtils.containsIgnoreCase(type, "virtualMachine")) {
-                                return 1;
-                            }
-                            if (StringUtils.containsIgnoreCase(type, "networkInterface")) {
-                                return 2;
-                            }
-                            if (StringUtils.containsIgnoreCase(type, "IPAddress")) {
-                                return 3;
-                            }
-                            return 4;
-                            //CHECKSTYLE:ON
-                        }
-                    });
+            final List<InventoryBackend.TaggedResource> resourcesMarkedForDeletion = new ArrayList<>();
 
             LOGGER.log(getNormalLoggingLevel(), String.format("cleanLeakedResources: beginning to look at leaked "
                 + "resources in rg: %s", resourceGroup));
-            for (GenericResource resource : resources) {
+            for (InventoryBackend.TaggedResource resource : resources) {
                 final Map<String, String> tags = resource.tags();
                 if (!tags.containsKey(Constants.AZURE_RESOURCES_TAG_NAME)
                         || !deploymentRegistrar.getDeploymentTag().matches(
                         new AzureUtil.DeploymentTag(tags.get(Constants.AZURE_RESOURCES_TAG_NAME)))) {
                     continue;
                 }
-                boolean shouldSkipDeletion = false;
-                for (String validVM : validVMs) {
-                    if (resource.name().contains(validVM)) {
-                        shouldSkipDeletion = true;
-                        break;
-                    }
-                }
                 // we're not removing storage accounts of networks - someone else might be using them
-                if (shouldSkipDeletion
+                if (validVMs.isOwned(resource.name())
                         || StringUtils.containsIgnoreCase(resource.type(), "StorageAccounts")
                         || StringUtils.containsIgnoreCase(resource.type(), "virtualNetworks")) {
                     continue;
@@ -419,61 +514,92 @@ public class AzureVMAgentCleanUpTask extends AsyncPeriodicWork {
 
             LOGGER.log(getNormalLoggingLevel(), String.format("cleanLeakedResources: %d resources marked for deletion",
                     resourcesMarkedForDeletion.size()));
+            leakedResourcesFound.addAndGet(resourcesMarkedForDeletion.size());
 
-            while (!resourcesMarkedForDeletion.isEmpty()) {
-                try {
-                    final GenericResource resource = resourcesMarkedForDeletion.poll();
-                    if (resource == null) {
-                        LOGGER.log(getNormalLoggingLevel(), "cleanLeakedResources: resource was null continuing");
-                        continue;
-                    }
-                    LOGGER.log(getNormalLoggingLevel(),
-                        "cleanLeakedResources: looking at {0} from resource group {1}",
-                        new Object[]{resource.name(), resourceGroup});
-
-                    URI osDiskURI = null;
-                    String managedOsDiskId = null;
-                    if (StringUtils.containsIgnoreCase(resource.type(), "virtualMachine")) {
-                        LOGGER.log(getNormalLoggingLevel(),
-                            "cleanLeakedResources: retrieving VM {0} from resource group {1}",
-                            new Object[]{resource.name(), resourceGroup});
-                        VirtualMachine virtualMachine = azureClient.virtualMachines().getById(resource.id());
-                        if (!virtualMachine.isManagedDiskEnabled()) {
-                            osDiskURI = new URI(virtualMachine.osUnmanagedDiskVhdUri());
-                        } else {
-                            managedOsDiskId = virtualMachine.osDiskId();
-                        }
-                        LOGGER.log(getNormalLoggingLevel(),
-                            "cleanLeakedResources: completed retrieving VM {0} from resource group {1}",
-                            new Object[]{resource.name(), resourceGroup});
-                    }
+            final LeakedResourceDeleter deleter = new LeakedResourceDeleter(
+                    resource -> deleteLeakedResource(cloud, azureClient, resourceGroup, resource),
+                    LeakedResourceDeleter.PARALLELISM);
+            try {
+                deleter.deleteAll(resourcesMarkedForDeletion).get(LEAKED_RESOURCES_WAIT_IN_MINUTES, TimeUnit.MINUTES);
+            } catch (TimeoutException e) {
+                LOGGER.log(Level.INFO, "cleanLeakedResources: {0} deletions still running in rg {1}, "
+                        + "they will be picked up by the next run",
+                        new Object[]{LeakedResourceDeleter.inFlight(), resourceGroup});
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.INFO, "cleanLeakedResources: cancelled, the deletions in flight in rg {0} "
+                        + "will be picked up by the next run", resourceGroup);
+                Thread.currentThread().interrupt();
+            }
+        } catch (Exception e) {
+            // No need to throw exception back, just log and move on.
+            LOGGER.log(Level.WARNING, "Failed to clean leaked resources ", e);
+        }
+    }
 
+    /**
+     * Starts deleting a leaked resource, followed by the OS disk when the resource is a VM.
+     */
+    private CompletableFuture<Void> deleteLeakedResource(
+            AzureVMCloud cloud,
+            AzureResourceManager azureClient,
+            String resourceGroup,
+            InventoryBackend.TaggedResource resource) {
+        final Executor executor = AzureVMThreadPools.get(AzureVMThreadPools.Workload.CLEANUP);
+        final CompletableFuture<VirtualMachineInventory.Entry> virtualMachine;
+        if (LeakedResourceDeleter.isVirtualMachine(resource)) {
+            virtualMachine = CompletableFuture.supplyAsync(() -> {
+                VirtualMachineInventory.Entry entry = VirtualMachineInventory.of(cloud.getCloudName())
+                        .get(resourceGroup, resource.name(), System.currentTimeMillis());
+                if (entry == null) {
                     LOGGER.log(getNormalLoggingLevel(),
-                            "cleanLeakedResources: deleting {0} from resource group {1}",
+                            "cleanLeakedResources: retrieving VM {0} from resource group {1}",
                             new Object[]{resource.name(), resourceGroup});
-                    azureClient.genericResources().deleteById(resource.id());
-                    if (osDiskURI != null) {
-                        String jenkinsTemplateTag = resource.tags().get(Constants.AZURE_TEMPLATE_TAG_NAME);
-                        boolean useEntraIdForStorageAccount = cloud
-                                .getTemplate(jenkinsTemplateTag)
-                                .isUseEntraIdForStorageAccount();
-                        serviceDelegate.removeStorageBlob(osDiskURI, resourceGroup,
-                                cloud.getAzureCredentialsId(), useEntraIdForStorageAccount);
-                    }
-                    if (managedOsDiskId != null) {
-                        azureClient.disks().deleteById(managedOsDiskId);
-                        serviceDelegate.removeImage(azureClient, resource.name(), resourceGroup);
-                    }
-                    LOGGER.log(getNormalLoggingLevel(),
-                        "cleanLeakedResources: deleted {0} from resource group {1}",
-                        new Object[]{resource.name(), resourceGroup});
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Failed to clean resource ", e);
+                    entry = VirtualMachineInventory.Entry.from(azureClient.virtualMachines().getById(resource.id()));
                 }
+                return entry;
+            }, executor);
+        } else {
+            virtualMachine = CompletableFuture.completedFuture(null);
+        }
+
+        return virtualMachine.thenCompose(vm -> {
+            LOGGER.log(getNormalLoggingLevel(),
+                    "cleanLeakedResources: deleting {0} from resource group {1}",
+                    new Object[]{resource.name(), resourceGroup});
+            return azureClient.genericResources().deleteByIdAsync(resource.id()).toFuture()
+                    .thenApply(ignored -> vm);
+        }).thenAcceptAsync(vm -> {
+            VirtualMachineInventory.of(cloud.getCloudName()).remove(resource.name());
+            if (vm != null) {
+                deleteOsDisk(cloud, azureClient, resourceGroup, resource, vm);
+            }
+            LOGGER.log(getNormalLoggingLevel(),
+                    "cleanLeakedResources: deleted {0} from resource group {1}",
+                    new Object[]{resource.name(), resourceGroup});
+        }, executor);
+    }
+
+    private static void deleteOsDisk(
+            AzureVMCloud cloud,
+            AzureResourceManager azureClient,
+            String resourceGroup,
+            InventoryBackend.TaggedResource resource,
+            VirtualMachineInventory.Entry vm) {
+        final AzureVMManagementServiceDelegate serviceDelegate = cloud.getServiceDelegate();
+        try {
+            if (!vm.isManagedDiskEnabled()) {
+                String jenkinsTemplateTag = resource.tags().get(Constants.AZURE_TEMPLATE_TAG_NAME);
+                boolean useEntraIdForStorageAccount = cloud
+                        .getTemplate(jenkinsTemplateTag)
+                        .isUseEntraIdForStorageAccount();
+                serviceDelegate.removeStorageBlob(new URI(vm.getOsUnmanagedDiskVhdUri()), resourceGroup,
+                        cloud.getAzureCredentialsId(), useEntraIdForStorageAccount);
+            } else if (vm.getOsDiskId() != null) {
+                azureClient.disks().deleteById(vm.getOsDiskId());
+                serviceDelegate.removeImage(azureClient, resource.name(), resourceGroup);
             }
         } catch (Exception e) {
-            // No need to throw exception back, just log and move on.
-            LOGGER.log(Level.WARNING, "Failed to clean leaked resources ", e);
+            throw new CompletionException(e);
         }
     }
 
@@ -485,125 +611,161 @@ public class AzureVMAgentCleanUpTask extends AsyncPeriodicWork {
         LOGGER.log(getNormalLoggingLevel(), "Beginning");
         for (Computer computer : Jenkins.get().getComputers()) {
             if (computer instanceof AzureVMComputer azureComputer) {
-                final AzureVMAgent agentNode = azureComputer.getNode();
+                cleanVM(azureComputer, executionEngine);
+            }
+        }
+        LOGGER.log(getNormalLoggingLevel(), "Completed");
+    }
 
-                // If the machine is not offline, then don't do anything.
-                if (!azureComputer.isOffline()) {
-                    continue;
-                }
+    /**
+     * Cleans up an agent as soon as it went offline or was given a clean up action, rather than on the next
+     * periodic run.
+     *
+     * @param nodeName Name of the agent
+     * @return true if the agent is still running builds and should be checked again later
+     */
+    boolean cleanVM(String nodeName) {
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (instance == null) {
+            return false;
+        }
+        if (instance.getComputer(nodeName) instanceof AzureVMComputer azureComputer) {
+            return cleanVM(azureComputer, new ExecutionEngine());
+        }
+        return false;
+    }
 
-                if (agentNode == null) {
-                    LOGGER.log(getNormalLoggingLevel(), "Node {0} is missing, skipping",
-                            azureComputer.getDisplayName());
-                    continue;
-                }
+    /**
+     * Deletes or shuts down an offline agent according to its clean up action.
+     *
+     * @return true if the agent is still running builds and should be checked again later
+     */
+    private boolean cleanVM(AzureVMComputer azureComputer, ExecutionEngine executionEngine) {
+        final AzureVMAgent agentNode = azureComputer.getNode();
+
+        // If the machine is not offline, then don't do anything.
+        if (!azureComputer.isOffline()) {
+            return false;
+        }
 
-                // Even if offline, a machine that has been temporarily marked offline
-                // should stay (this could be for investigation).
-                if (azureComputer.isSetOfflineByUser()) {
-                    LOGGER.log(getNormalLoggingLevel(), "Node {0} was set offline by user, skipping",
-                            agentNode.getDisplayName());
-                    continue;
-                }
+        if (agentNode == null) {
+            LOGGER.log(getNormalLoggingLevel(), "Node {0} is missing, skipping",
+                    azureComputer.getDisplayName());
+            return false;
+        }
 
-                // If the machine is in "keep" state, skip
-                if (agentNode.isCleanUpBlocked()) {
-                    LOGGER.log(getNormalLoggingLevel(), "Node {0} blocked to cleanup", agentNode.getDisplayName());
-                    continue;
-                }
+        // Even if offline, a machine that has been temporarily marked offline
+        // should stay (this could be for investigation).
+        if (azureComputer.isSetOfflineByUser()) {
+            LOGGER.log(getNormalLoggingLevel(), "Node {0} was set offline by user, skipping",
+                    agentNode.getDisplayName());
+            return false;
+        }
 
-                // Check if the virtual machine exists.  If not, it could have been
-                // deleted in the background.  Remove from Jenkins if that is the case.
-                if (!AzureVMManagementServiceDelegate.virtualMachineExists(agentNode)) {
-                    LOGGER.log(getNormalLoggingLevel(),
-                            "Node {0} doesn't exist, removing",
-                            agentNode.getDisplayName());
-                    try {
-                        Jenkins.get().removeNode(agentNode);
-                    } catch (IOException e) {
-                        LOGGER.log(Level.WARNING,
-                                "Node {0} could not be removed: {1}",
-                                new Object[]{agentNode.getDisplayName(), e.getMessage()});
-                    }
-                    continue;
-                }
+        // If the machine is in "keep" state, skip
+        if (agentNode.isCleanUpBlocked()) {
+            LOGGER.log(getNormalLoggingLevel(), "Node {0} blocked to cleanup", agentNode.getDisplayName());
+            return false;
+        }
 
-                // If the machine is not idle, don't do anything.
-                // Could have been taken offline by the plugin while still running
-                // builds.
-                if (!azureComputer.isIdle()) {
-                    continue;
-                }
+        // Agents already being deleted or shut down, by this task or by the scale down of idle agents
+        if (CLEANING_UP.contains(agentNode.getNodeName())
+                || ScaleDownCoordinator.get().isHandling(agentNode.getNodeName())) {
+            LOGGER.log(getNormalLoggingLevel(), "Node {0} is already being cleaned up", agentNode.getDisplayName());
+            return false;
+        }
 
-                // Machine exists but is in either DELETE or SHUTDOWN state.
-                // Execute that action.
-                Callable<Void> task = () -> {
-                    // Depending on the cleanup action, run the appropriate
-                    if (agentNode.getCleanUpAction() == CleanUpAction.DELETE) {
-                        LOGGER.log(getNormalLoggingLevel(), "Deleting {0}", agentNode.getDisplayName());
-                        agentNode.deprovision(agentNode.getCleanUpReason());
-                    } else if (agentNode.getCleanUpAction() == CleanUpAction.SHUTDOWN) {
-                        LOGGER.log(getNormalLoggingLevel(), "Shutting down {0}", agentNode.getDisplayName());
-                        agentNode.shutdown(agentNode.getCleanUpReason());
-                        // We shut down the agent properly.  Mark the agent
-                        // as "KEEP" so that it doesn't get deleted.
-                        agentNode.blockCleanUpAction();
-                    } else {
-                        throw new IllegalStateException("Unknown cleanup action");
-                    }
-                    return null;
-                };
-
-                try {
-                    final int maxRetries = 3;
-                    final int waitInterval = 10;
-                    final int defaultTimeOutInSeconds = 30 * 60;
-                    executionEngine.executeAsync(task, new DefaultRetryStrategy(
-                            maxRetries,
-                            waitInterval,
-                            defaultTimeOutInSeconds
-                    ));
-                } catch (AzureCloudException exception) {
-                    // No need to throw exception back, just log and move on.
-                    LOGGER.log(Level.WARNING, "Failed to shutdown/delete " + agentNode.getDisplayName(),
-                            exception);
-                    // In case the node had a non-delete cleanup action before,
-                    // set the cleanup action to delete
-                    agentNode.setCleanUpAction(CleanUpAction.DELETE, Messages._Failed_Initial_Shutdown_Or_Delete());
-                }
+        // If the machine is not idle, don't do anything.
+        // Could have been taken offline by the plugin while still running
+        // builds.
+        if (!azureComputer.isIdle()) {
+            return true;
+        }
+
+        // Check if the virtual machine exists.  If not, it could have been
+        // deleted in the background.  Remove from Jenkins if that is the case.
+        if (!AzureVMManagementServiceDelegate.virtualMachineExists(agentNode)) {
+            LOGGER.log(getNormalLoggingLevel(),
+                    "Node {0} doesn't exist, removing",
+                    agentNode.getDisplayName());
+            agentsCleaned.incrementAndGet();
+            try {
+                Jenkins.get().removeNode(agentNode);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING,
+                        "Node {0} could not be removed: {1}",
+                        new Object[]{agentNode.getDisplayName(), e.getMessage()});
             }
+            return false;
         }
-        LOGGER.log(getNormalLoggingLevel(), "Completed");
+
+        // Machine exists but is in either DELETE or SHUTDOWN state.
+        // Execute that action.
+        Callable<Void> task = () -> {
+            // Depending on the cleanup action, run the appropriate
+            if (agentNode.getCleanUpAction() == CleanUpAction.DELETE) {
+                LOGGER.log(getNormalLoggingLevel(), "Deleting {0}", agentNode.getDisplayName());
+                agentNode.deprovision(agentNode.getCleanUpReason());
+            } else if (agentNode.getCleanUpAction() == CleanUpAction.SHUTDOWN) {
+                LOGGER.log(getNormalLoggingLevel(), "Shutting down {0}", agentNode.getDisplayName());
+                agentNode.shutdown(agentNode.getCleanUpReason());
+                // We shut down the agent properly.  Mark the agent
+                // as "KEEP" so that it doesn't get deleted.
+                agentNode.blockCleanUpAction();
+            } else {
+                throw new IllegalStateException("Unknown cleanup action");
+            }
+            return null;
+        };
+
+        final String nodeName = agentNode.getNodeName();
+        if (!CLEANING_UP.add(nodeName)) {
+            return false;
+        }
+        agentsCleaned.incrementAndGet();
+        try {
+            final int maxRetries = 3;
+            final int waitInterval = 10;
+            final int defaultTimeOutInSeconds = 30 * 60;
+            Future<Void> result = executionEngine.executeAsync(task, new DefaultRetryStrategy(
+                    maxRetries,
+                    waitInterval,
+                    defaultTimeOutInSeconds
+            ));
+            // Disconnecting the agent fires offline events, which must not start the same clean up again
+            CompletableFutures.poll(result, Timer.get(), CLEANING_UP_POLL_INTERVAL_IN_MILLIS)
+                    .whenComplete((ignored, e) -> CLEANING_UP.remove(nodeName));
+        } catch (AzureCloudException exception) {
+            CLEANING_UP.remove(nodeName);
+            // No need to throw exception back, just log and move on.
+            LOGGER.log(Level.WARNING, "Failed to shutdown/delete " + agentNode.getDisplayName(),
+                    exception);
+            // In case the node had a non-delete cleanup action before,
+            // set the cleanup action to delete
+            agentNode.setCleanUpAction(CleanUpAction.DELETE, Messages._Failed_Initial_Shutdown_Or_Delete());
+        }
+        return false;
     }
 
     public void cleanCloudStatistics() {
         Jenkins jenkins = Jenkins.get();
         LOGGER.log(getNormalLoggingLevel(), "Beginning");
 
-        Set<ProvisioningActivity.Id> plannedNodesSet = new HashSet<>();
-        for (NodeProvisioner.PlannedNode node : jenkins.unlabeledNodeProvisioner.getPendingLaunches()) {
-            if (node instanceof TrackedItem) {
-                plannedNodesSet.add(((TrackedItem) node).getId());
-            }
-        }
-        for (Label l : jenkins.getLabels()) {
-            for (NodeProvisioner.PlannedNode node : l.nodeProvisioner.getPendingLaunches()) {
-                if (node instanceof TrackedItem) {
-                    plannedNodesSet.add(((TrackedItem) node).getId());
-                }
-            }
-        }
-
-        for (Node node : jenkins.getNodes()) {
-            if (node instanceof TrackedItem) {
-                plannedNodesSet.add(((TrackedItem) node).getId());
-            }
+        // Planned nodes of the Azure clouds are indexed as they are created, only activities of those clouds
+        // still provisioning need to be looked up
+        final ProvisioningActivityIndex index = ProvisioningActivityIndex.get();
+        final long now = System.currentTimeMillis();
+        index.prune(now);
+        Set<String> cloudNames = new HashSet<>();
+        for (AzureVMCloud cloud : jenkins.clouds.getAll(AzureVMCloud.class)) {
+            cloudNames.add(cloud.getCloudName());
         }
 
         Collection<ProvisioningActivity> activities = CloudStatistics.get().getNotCompletedActivities();
         for (ProvisioningActivity activity : activities) {
             if (activity.getCurrentPhase().equals(ProvisioningActivity.Phase.PROVISIONING)
-                    && !plannedNodesSet.contains(activity.getId())) {
+                    && cloudNames.contains(activity.getId().getCloudName())
+                    && !index.isTracked(activity.getId(), now)) {
                 Exception e = new Exception(String.format("Node %s has lost. Mark as failure",
                         activity.getId()));
                 CloudStatistics.ProvisioningListener.get().onFailure(activity.getId(), e);
@@ -616,50 +778,48 @@ public class AzureVMAgentCleanUpTask extends AsyncPeriodicWork {
         return Jenkins.getInstanceOrNull() == null ? null : (AzureVMCloud) Jenkins.get().getCloud(cloudName);
     }
 
-    private void clean() {
-        cleanVMs();
-        // Clean up the deployments
-        cleanDeployments();
-
-        cleanLeakedResources();
-
-        cleanCloudStatistics();
-    }
-
     @Override
     public void execute(TaskListener arg0) throws InterruptedException {
+        if (!recurrence.isDue(System.currentTimeMillis())) {
+            return;
+        }
         LOGGER.log(getNormalLoggingLevel(), "Start");
 
-        Callable<Void> callClean = () -> {
-            clean();
-            return null;
-        };
-
-        Future<Void> result = AzureVMCloud.getThreadPool().submit(callClean);
+        LOGGER.log(getNormalLoggingLevel(), "Thread pools: {0}", AzureVMThreadPools.getStatistics());
 
-        try {
-            LOGGER.log(getNormalLoggingLevel(), String.format("Running clean with %s"
-                    + " minute timeout", CLEAN_TIMEOUT_IN_MINUTES));
-            // Get will block until time expires or until task completes
-            result.get(CLEAN_TIMEOUT_IN_MINUTES, TimeUnit.MINUTES);
-        } catch (ExecutionException executionException) {
-            LOGGER.log(Level.SEVERE,
-                    "Got execution exception while cleaning",
-                    executionException);
-        } catch (TimeoutException timeoutException) {
-            LOGGER.log(Level.SEVERE,
-                    "Hit timeout while cleaning",
-                    timeoutException);
-        } catch (Exception others) {
-            LOGGER.log(Level.SEVERE, "Hit other exception while cleaning", others);
+        // Each phase gets its own budget so a slow subscription only delays its own clean up
+        phases.submit("virtual machines", TimeUnit.MINUTES.toMillis(VMS_TIMEOUT_IN_MINUTES), this::cleanVMs);
+        phases.submit("deployments", TimeUnit.MINUTES.toMillis(DEPLOYMENTS_TIMEOUT_IN_MINUTES),
+                this::cleanDeployments);
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        if (instance != null) {
+            final ValidVirtualMachineIndex validVMs = new ValidVirtualMachineIndex(getValidVMs());
+            for (AzureVMCloud cloud : instance.clouds.getAll(AzureVMCloud.class)) {
+                phases.submit("leaked resources of " + cloud.getCloudName(),
+                        TimeUnit.MINUTES.toMillis(LEAKED_RESOURCES_TIMEOUT_IN_MINUTES),
+                        () -> cleanLeakedResources(cloud, cloud.getResourceGroupName(),
+                                DeploymentRegistrar.getInstance(), validVMs));
+            }
         }
+        phases.submit("cloud statistics", TimeUnit.MINUTES.toMillis(CLOUD_STATISTICS_TIMEOUT_IN_MINUTES),
+                this::cleanCloudStatistics);
+
+        phases.awaitAll();
+
+        int agents = agentsCleaned.getAndSet(0);
+        int deployments = deploymentsDue.getAndSet(0);
+        int leaked = leakedResourcesFound.getAndSet(0);
+        int inFlight = LeakedResourceDeleter.inFlight();
+        recurrence.completed(System.currentTimeMillis(), agents + deployments + leaked + inFlight, String.format(
+                "%d agents, %d deployments and %d leaked resources cleaned up, %d deletions in flight",
+                agents, deployments, leaked, inFlight));
 
         LOGGER.log(getNormalLoggingLevel(), "End");
     }
 
     @Override
     public long getRecurrencePeriod() {
-        return RECURRENCE_PERIOD_IN_MILLIS;
+        return recurrence.getMinPeriodMillis();
     }
 
     @Override
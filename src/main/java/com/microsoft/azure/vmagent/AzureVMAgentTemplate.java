@@ -1405,6 +1405,8 @@ public class AzureVMAgentTemplate implements Describable<AzureVMAgentTemplate>,
         templateProvisionStrategy.failure();
         // Set the details so that it's easier to see what's going on from the configuration UI.
         setTemplateStatusDetails(message);
+        // Whatever was looked up for the deployment may be the cause, start from scratch next time
+        DeploymentPlan.invalidate(this);
     }
 
     /**
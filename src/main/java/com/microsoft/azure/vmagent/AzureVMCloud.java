@@ -16,24 +16,22 @@
 package com.microsoft.azure.vmagent;
 
 import static com.microsoft.azure.vmagent.util.Constants.MILLIS_IN_SECOND;
+import static hudson.init.InitMilestone.JOB_CONFIG_ADAPTED;
 import static hudson.init.InitMilestone.PLUGINS_STARTED;
 
-import com.azure.core.http.rest.PagedIterable;
-import com.azure.core.management.exception.ManagementError;
 import com.azure.resourcemanager.AzureResourceManager;
 import com.azure.resourcemanager.compute.models.OperatingSystemTypes;
 import com.azure.resourcemanager.compute.models.VirtualMachine;
-import com.azure.resourcemanager.resources.models.Deployment;
-import com.azure.resourcemanager.resources.models.DeploymentOperation;
 import com.azure.resourcemanager.resources.models.ResourceGroup;
-import com.azure.resourcemanager.resources.models.StatusMessage;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.microsoft.azure.util.AzureCredentials;
 import com.microsoft.azure.util.AzureImdsCredentials;
 import com.microsoft.azure.vmagent.exceptions.AzureCloudException;
 import com.microsoft.azure.vmagent.remote.AzureVMAgentSSHLauncher;
 import com.microsoft.azure.vmagent.util.AzureUtil;
+import com.microsoft.azure.vmagent.util.AzureVMThreadPools;
 import com.microsoft.azure.vmagent.util.CleanUpAction;
+import com.microsoft.azure.vmagent.util.CompletableFutures;
 import com.microsoft.azure.vmagent.util.Constants;
 import com.microsoft.azure.vmagent.util.FailureStage;
 import com.microsoft.azure.vmagent.util.PoolLock;
@@ -57,9 +55,11 @@ import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner.PlannedNode;
 import hudson.slaves.SlaveComputer;
 import hudson.util.ComboBoxModel;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormApply;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
 import hudson.util.StreamTaskListener;
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -73,11 +73,15 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
@@ -106,6 +110,13 @@ public class AzureVMCloud extends Cloud {
     private static final int DEFAULT_SSH_CONNECT_RETRY_COUNT = 3;
     private static final int SHH_CONNECT_RETRY_INTERNAL_SECONDS = 20;
 
+    private static final int PROVISIONING_SCHEDULER_THREADS = 4;
+
+    private static final long CONNECT_POLL_INTERVAL_MILLIS = 5 * MILLIS_IN_SECOND;
+
+    // 30 minutes is decent time for the node to be alive
+    private static final int JNLP_ONLINE_TIMEOUT_IN_MINUTES = 30;
+
     private final String credentialsId;
 
     private final int maxVirtualMachinesLimit;
@@ -128,7 +139,7 @@ public class AzureVMCloud extends Cloud {
 
     private final int deploymentTimeout;
 
-    private static ExecutorService threadPool;
+    private static ScheduledExecutorService provisioningScheduler;
 
     // True if the subscription has been verified.
     // False otherwise.
@@ -248,11 +259,33 @@ public class AzureVMCloud extends Cloud {
 
     }
 
-    public static synchronized ExecutorService getThreadPool() {
-        if (AzureVMCloud.threadPool == null) {
-            AzureVMCloud.threadPool = Executors.newCachedThreadPool();
+    /**
+     * @deprecated Use {@link AzureVMThreadPools#get(AzureVMThreadPools.Workload)} with the matching workload.
+     */
+    @Deprecated
+    public static ExecutorService getThreadPool() {
+        return AzureVMThreadPools.get(AzureVMThreadPools.Workload.RETRY);
+    }
+
+    /**
+     * Small fixed-size scheduler driving the asynchronous provisioning stages. Waits on Azure and on
+     * agent connections are scheduled checks on it rather than blocked threads. Only short callbacks run on
+     * it; blocking calls go to {@link #getAgentLaunchPool()}.
+     */
+    static synchronized ScheduledExecutorService getProvisioningScheduler() {
+        if (AzureVMCloud.provisioningScheduler == null) {
+            AzureVMCloud.provisioningScheduler = Executors.newScheduledThreadPool(PROVISIONING_SCHEDULER_THREADS,
+                    new NamingThreadFactory(new DaemonThreadFactory(), "AzureVMAgents.Provisioning"));
         }
-        return AzureVMCloud.threadPool;
+        return AzureVMCloud.provisioningScheduler;
+    }
+
+    /**
+     * Bounded pool for the blocking calls of the provisioning stages: reading the new VM and adding or removing
+     * its node.
+     */
+    private static ExecutorService getAgentLaunchPool() {
+        return AzureVMThreadPools.get(AzureVMThreadPools.Workload.AGENT_LAUNCH);
     }
 
     @SuppressWarnings("unused") // called by jelly
@@ -543,95 +576,48 @@ public class AzureVMCloud extends Cloud {
         LOGGER.log(Level.INFO, "Waiting for deployment {0} with VM {1} to be completed",
                 new Object[]{deploymentName, vmName});
 
-        final int sleepTimeInSeconds = 5;
+        // VMs of the same deployment share one poller, so the operation list is read once per tick
+        // regardless of how many nodes are waiting on it
         final int timeoutInSeconds = getDeploymentTimeout();
-        final int maxTries = timeoutInSeconds / sleepTimeInSeconds;
-        int triesLeft = maxTries;
-        do {
-            triesLeft--;
-            try {
-                Thread.sleep(sleepTimeInSeconds * MILLIS_IN_SECOND);
-            } catch (InterruptedException ex) {
-                // ignore
-            }
-
-            try {
-                // Create a new RM client each time because the config may expire while
-                // in this long running operation
-                final AzureResourceManager newAzureClient = template.retrieveAzureCloudReference().getAzureClient();
-
-                final Deployment dep = newAzureClient.deployments()
-                        .getByResourceGroup(template.getResourceGroupName(), deploymentName);
-                // Might find no deployment.
-                if (dep == null) {
-                    throw AzureCloudException.create(
-                            String.format("Could not find deployment %s", deploymentName));
-                }
-
-                PagedIterable<DeploymentOperation> ops = dep.deploymentOperations().list();
-                for (DeploymentOperation op : ops) {
-                    if (op.targetResource() == null) {
-                        continue;
-                    }
-                    final String resource = op.targetResource().resourceName();
-                    final String type = op.targetResource().resourceType();
-                    final String state = op.provisioningState();
-                    if (op.targetResource().resourceType().contains("virtualMachine")) {
-                        if (resource.equalsIgnoreCase(vmName)) {
-
-                            if (!state.equalsIgnoreCase("creating")
-                                    && !state.equalsIgnoreCase("succeeded")
-                                    && !state.equalsIgnoreCase("running")) {
-                                final String statusCode = op.statusCode();
-                                final Object statusMessage = op.statusMessage();
-                                String finalStatusMessage = getStatusMessage(statusCode, statusMessage);
-                                throw AzureCloudException.create(
-                                        String.format("Deployment %s: %s:%s - %s",
-                                                state, type, resource, finalStatusMessage));
-                            } else if (state.equalsIgnoreCase("succeeded")) {
-                                LOGGER.log(Level.FINE, "VM available: {0}", resource);
-
-                                final VirtualMachine vm = newAzureClient.virtualMachines()
-                                        .getByResourceGroup(resourceGroupName, resource);
-                                final OperatingSystemTypes osType = vm.storageProfile().osDisk().osType();
-
-                                AzureVMAgent newAgent = getServiceDelegate().parseResponse(
-                                        provisioningId, vmName, deploymentName, template, osType);
-                                getServiceDelegate().setVirtualMachineDetails(newAgent, template);
-                                return newAgent;
-                            } else {
-                                LOGGER.log(Level.FINE,
-                                        "Deployment {0} not yet finished ({1}): {2}:{3} - waited {4} seconds",
-                                        new Object[]{deploymentName, state, type, resource,
-                                                (maxTries - triesLeft) * sleepTimeInSeconds});
-                            }
-                        }
-                    }
-                }
-            } catch (AzureCloudException e) {
-                throw e;
-            } catch (Exception e) {
-                throw AzureCloudException.create(e);
+        try {
+            DeploymentStatusPoller.watch(template.getResourceGroupName(), deploymentName, vmName,
+                    timeoutInSeconds, () -> template.retrieveAzureCloudReference().getAzureClient()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw AzureCloudException.create(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof AzureCloudException) {
+                throw (AzureCloudException) e.getCause();
             }
-        } while (triesLeft > 0);
+            throw AzureCloudException.create(e);
+        }
 
-        throw AzureCloudException.create(String.format(
-                "Deployment %s failed, max timeout reached (%d seconds)",
-                deploymentName, timeoutInSeconds));
+        return createAgentForVirtualMachine(provisioningId, template, vmName, deploymentName);
     }
 
-    private static String getStatusMessage(String statusCode, Object statusMessage) {
-        String finalStatusMessage = statusCode;
-
-        if (statusMessage != null) {
-            if (statusMessage instanceof StatusMessage) {
-                ManagementError error = ((StatusMessage) statusMessage).error();
-                finalStatusMessage += " - " + error.getMessage();
-            } else {
-                finalStatusMessage += " - " + statusMessage;
-            }
+    /**
+     * Constructs the agent of a VM whose deployment operation has succeeded.
+     */
+    private AzureVMAgent createAgentForVirtualMachine(
+            ProvisioningActivity.Id provisioningId,
+            AzureVMAgentTemplate template,
+            String vmName,
+            String deploymentName) throws AzureCloudException {
+        try {
+            final AzureResourceManager newAzureClient = template.retrieveAzureCloudReference().getAzureClient();
+            final VirtualMachine vm = newAzureClient.virtualMachines()
+                    .getByResourceGroup(resourceGroupName, vmName);
+            final OperatingSystemTypes osType = vm.storageProfile().osDisk().osType();
+
+            AzureVMAgent newAgent = getServiceDelegate().parseResponse(
+                    provisioningId, vmName, deploymentName, template, osType);
+            getServiceDelegate().setVirtualMachineDetails(newAgent, template);
+            return newAgent;
+        } catch (AzureCloudException e) {
+            throw e;
+        } catch (Exception e) {
+            throw AzureCloudException.create(e);
         }
-        return finalStatusMessage;
     }
 
     @Override
@@ -678,7 +664,7 @@ public class AzureVMCloud extends Cloud {
                             numberOfAgents--;
 
                             plannedNodes.add(new PlannedNode(agentNode.getNodeName(),
-                                    Computer.threadPoolForRemoting.submit(() -> {
+                                    AzureVMThreadPools.get(AzureVMThreadPools.Workload.AGENT_LAUNCH).submit(() -> {
                                         final Object agentLock = getLockForAgent(agentNode);
                                         try {
                                             synchronized (agentLock) {
@@ -817,151 +803,202 @@ public class AzureVMCloud extends Cloud {
             List<PlannedNode> plannedNodes,
             final AzureVMAgentTemplate template,
             final boolean isProvisionOutside) {
-        Callable<AzureVMDeploymentInfo> callableTask = new Callable<AzureVMDeploymentInfo>() {
-            @Override
-            public AzureVMDeploymentInfo call() throws AzureCloudException {
+        CompletableFuture<AzureVMDeploymentInfo> deploymentFuture;
+        try {
+            deploymentFuture = CompletableFuture.supplyAsync(() -> {
                 try {
                     return template.provisionAgents(
                             new StreamTaskListener(System.out, Charset.defaultCharset()), numberOfNewAgents);
                 } catch (AzureCloudException e) {
-                    throw e;
+                    throw new CompletionException(e);
                 } catch (Exception e) {
-                    throw AzureCloudException.create(e);
+                    throw new CompletionException(AzureCloudException.create(e));
                 }
-            }
-        };
-
-        final Future<AzureVMDeploymentInfo> deploymentFuture = getThreadPool().submit(callableTask);
+            }, AzureVMThreadPools.get(AzureVMThreadPools.Workload.DEPLOYMENT));
+        } catch (RejectedExecutionException e) {
+            // Fail every planned node so that the approximate VM count is given back
+            deploymentFuture = CompletableFuture.failedFuture(AzureCloudException.create(
+                    "Too many deployments in progress, try again later", e));
+        }
 
         for (int i = 0; i < numberOfNewAgents; i++) {
             final int index = i;
             final ProvisioningActivity.Id provisioningId =
                     new ProvisioningActivity.Id(this.name, template.getTemplateName());
 
-            plannedNodes.add(new TrackedPlannedNode(
-                    provisioningId,
-                    template.getNoOfParallelJobs(),
-                    Computer.threadPoolForRemoting.submit(new Callable<Node>() {
-                        @Override
-                        public Node call() throws AzureCloudException {
-                            // Wait for the future to complete
-                            try {
-                                PoolLock.provisionLock(template); //Only lock for pool maintaining.
-                                if (isProvisionOutside) {
-                                    CloudStatistics.ProvisioningListener.get().onStarted(provisioningId);
-                                }
-                                AzureVMDeploymentInfo info;
-                                try {
-                                    info = deploymentFuture.get();
-                                } catch (InterruptedException | ExecutionException e) {
-                                    handleFailure(template, null, e, FailureStage.DEPLOYMENT);
-                                    throw AzureCloudException.create(e);
-                                }
-
-                                final String deploymentName = info.getDeploymentName();
-                                final String vmBaseName = info.getVmBaseName();
-                                final String vmName = String.format("%s%d", vmBaseName, index);
-
-                                AzureVMAgent agent;
-                                try {
-                                    agent = createProvisionedAgent(
-                                            provisioningId,
-                                            template,
-                                            vmName,
-                                            deploymentName);
-                                } catch (AzureCloudException e) {
-                                    LOGGER.log(
-                                            Level.SEVERE,
-                                            String.format("Failure creating provisioned agent '%s'", vmName),
-                                            e);
-
-                                    handleFailure(template, vmName, e, FailureStage.PROVISIONING);
-                                    throw e;
-                                }
+            ProvisioningActivityIndex.get().started(provisioningId);
+            PoolLock.provisionLock(template); //Only lock for pool maintaining.
+            if (isProvisionOutside) {
+                CloudStatistics.ProvisioningListener.get().onStarted(provisioningId);
+            }
 
-                                try {
-                                    LOGGER.log(Level.FINE, "Adding agent {0} to Jenkins nodes",
-                                            agent.getNodeName());
-                                    // Place the node in blocked state while it starts.
-                                    try {
-                                        agent.blockCleanUpAction();
-                                        Jenkins.get().addNode(agent);
-                                        Computer computer = agent.toComputer();
-                                        if (agent.getAgentLaunchMethod().equalsIgnoreCase("SSH")
-                                                && computer != null) {
-                                            computer.connect(false).get();
-                                        } else if (agent.getAgentLaunchMethod()
-                                                .equalsIgnoreCase("JNLP")) {
-                                            // Wait until node is online
-                                            waitUntilJNLPNodeIsOnline(agent);
-                                        }
-                                    } finally {
-                                        // Place node in default state, now can be
-                                        // dealt with by the cleanup task.
-                                        agent.clearCleanUpAction();
-                                    }
-                                } catch (Exception e) {
-                                    LOGGER.log(
-                                            Level.SEVERE,
-                                            String.format("Failure to in post-provisioning for '%s'", vmName),
-                                            e);
-
-                                    handleFailure(template, vmName, e, FailureStage.POSTPROVISIONING);
-
-                                    // Remove the node from jenkins
-                                    try {
-                                        Jenkins.get().removeNode(agent);
-                                    } catch (IOException nodeRemoveEx) {
-                                        LOGGER.log(
-                                                Level.SEVERE,
-                                                String.format("Failure removing Jenkins node for '%s'", vmName),
-                                                nodeRemoveEx);
-                                        // Do not throw to avoid it being recorded
-                                    }
-                                    throw AzureCloudException.create(e);
-                                }
-                                if (isProvisionOutside) {
-                                    CloudStatistics.ProvisioningListener.get().onComplete(provisioningId, agent);
-                                }
-                                template.retrieveTemplateProvisionStrategy().success();
-                                return agent;
-                            } catch (AzureCloudException e) {
+            CompletableFuture<Node> nodeFuture = provisionAgent(deploymentFuture, index, provisioningId, template)
+                    .handleAsync((agent, failure) -> {
+                        try {
+                            if (failure != null) {
+                                AzureCloudException e = toAzureCloudException(failure);
                                 if (isProvisionOutside) {
                                     CloudStatistics.ProvisioningListener.get().onFailure(provisioningId, e);
                                 }
-                                throw e;
-                            } finally {
-                                PoolLock.provisionUnlock(template);
+                                throw new CompletionException(e);
+                            }
+                            if (isProvisionOutside) {
+                                CloudStatistics.ProvisioningListener.get().onComplete(provisioningId, agent);
                             }
+                            template.retrieveTemplateProvisionStrategy().success();
+                            return agent;
+                        } finally {
+                            PoolLock.provisionUnlock(template);
                         }
+                    }, getProvisioningScheduler());
 
-                        private void handleFailure(
-                                AzureVMAgentTemplate template,
-                                String vmName,
-                                Exception e,
-                                FailureStage stage) {
-                            // Attempt to terminate whatever was created if any
-                            if (vmName != null) {
-                                try {
-                                    getServiceDelegate().terminateVirtualMachine(
-                                            vmName,
-                                            template.getResourceGroupName(),
-                                            template.getUsePrivateIP());
-                                } catch (AzureCloudException terminateEx) {
-                                    LOGGER.log(
-                                            Level.SEVERE,
-                                            String.format("Failure terminating previous failed agent '%s'", vmName),
-                                            terminateEx);
-                                    // Do not throw to avoid it being recorded
-                                }
-                            }
-                            template.retrieveAzureCloudReference().adjustApproximateVirtualMachineCount(-1,
-                                    template);
-                            // Update the template status given this new issue.
-                            template.handleTemplateProvisioningFailure(e.getMessage(), stage);
+            nodeFuture.whenComplete((ignored, failure) ->
+                    ProvisioningActivityIndex.get().finished(provisioningId, System.currentTimeMillis()));
+            plannedNodes.add(new TrackedPlannedNode(provisioningId, template.getNoOfParallelJobs(), nodeFuture));
+        }
+    }
+
+    /**
+     * Chains the stages bringing up a single agent of a deployment: wait for the deployment to be submitted,
+     * wait for its VM, register the node and connect it. No thread is parked while Azure or the agent is
+     * being waited on; each stage is a short task on the provisioning scheduler, or a blocking call on the
+     * agent launch pool.
+     */
+    private CompletableFuture<Node> provisionAgent(
+            CompletableFuture<AzureVMDeploymentInfo> deploymentFuture,
+            int index,
+            ProvisioningActivity.Id provisioningId,
+            AzureVMAgentTemplate template) {
+        final ScheduledExecutorService scheduler = getProvisioningScheduler();
+
+        return deploymentFuture.handleAsync((info, failure) -> {
+            if (failure != null) {
+                handleFailure(template, null, toAzureCloudException(failure), FailureStage.DEPLOYMENT);
+                throw new CompletionException(toAzureCloudException(failure));
+            }
+            return info;
+        }, scheduler).thenCompose(info -> {
+            final String deploymentName = info.getDeploymentName();
+            final String vmName = String.format("%s%d", info.getVmBaseName(), index);
+
+            return DeploymentStatusPoller.watch(template.getResourceGroupName(), deploymentName, vmName,
+                    getDeploymentTimeout(), () -> template.retrieveAzureCloudReference().getAzureClient())
+                    .thenCompose(ignored -> CompletableFutures.callAsync(
+                            () -> createAgentForVirtualMachine(provisioningId, template, vmName, deploymentName),
+                            getAgentLaunchPool()))
+                    .handleAsync((agent, failure) -> {
+                        if (failure != null) {
+                            AzureCloudException e = toAzureCloudException(failure);
+                            LOGGER.log(
+                                    Level.SEVERE,
+                                    String.format("Failure creating provisioned agent '%s'", vmName),
+                                    e);
+                            handleFailure(template, vmName, e, FailureStage.PROVISIONING);
+                            throw new CompletionException(e);
                         }
-                    })));
+                        return agent;
+                    }, scheduler)
+                    .thenCompose(agent -> registerAndConnect(agent, template, vmName));
+        });
+    }
+
+    private CompletableFuture<Node> registerAndConnect(
+            AzureVMAgent agent,
+            AzureVMAgentTemplate template,
+            String vmName) {
+        final ScheduledExecutorService scheduler = getProvisioningScheduler();
+
+        return CompletableFutures.callAsync(() -> {
+            LOGGER.log(Level.FINE, "Adding agent {0} to Jenkins nodes", agent.getNodeName());
+            // Place the node in blocked state while it starts.
+            agent.blockCleanUpAction();
+            Jenkins.get().addNode(agent);
+            return agent.toComputer();
+        }, getAgentLaunchPool()).<Void>thenCompose(computer -> {
+            if (agent.getAgentLaunchMethod().equalsIgnoreCase("SSH") && computer != null) {
+                return CompletableFutures.poll(computer.connect(false), scheduler, CONNECT_POLL_INTERVAL_MILLIS)
+                        .thenApply(ignored -> null);
+            } else if (agent.getAgentLaunchMethod().equalsIgnoreCase("JNLP")) {
+                // Wait until node is online
+                LOGGER.log(Level.INFO, "Azure Cloud: waitUntilOnline: for agent {0}", agent.getDisplayName());
+                return CompletableFutures.waitFor(() -> computer == null || computer.isOnline(), scheduler,
+                        CONNECT_POLL_INTERVAL_MILLIS, TimeUnit.MINUTES.toMillis(JNLP_ONLINE_TIMEOUT_IN_MINUTES),
+                        String.format("agent %s to come online", agent.getDisplayName()));
+            }
+            return CompletableFuture.completedFuture(null);
+        }).handle((ignored, failure) -> failure).<Node>thenCompose(failure -> {
+            // Place node in default state, now can be
+            // dealt with by the cleanup task.
+            agent.clearCleanUpAction();
+            if (failure == null) {
+                return CompletableFuture.completedFuture(agent);
+            }
+            AzureCloudException e = toAzureCloudException(failure);
+            LOGGER.log(
+                    Level.SEVERE,
+                    String.format("Failure to in post-provisioning for '%s'", vmName),
+                    e);
+
+            handleFailure(template, vmName, e, FailureStage.POSTPROVISIONING);
+
+            // Remove the node from jenkins
+            return CompletableFutures.callAsync(() -> {
+                Jenkins.get().removeNode(agent);
+                return null;
+            }, getAgentLaunchPool()).<Node>handle((removed, nodeRemoveEx) -> {
+                if (nodeRemoveEx != null) {
+                    LOGGER.log(
+                            Level.SEVERE,
+                            String.format("Failure removing Jenkins node for '%s'", vmName),
+                            CompletableFutures.unwrap(nodeRemoveEx));
+                    // Do not throw to avoid it being recorded
+                }
+                throw new CompletionException(e);
+            });
+        });
+    }
+
+    private void handleFailure(
+            AzureVMAgentTemplate template,
+            String vmName,
+            Exception e,
+            FailureStage stage) {
+        // Attempt to terminate whatever was created if any, without holding the calling stage
+        CompletableFuture<Void> terminated = CompletableFuture.completedFuture(null);
+        if (vmName != null) {
+            try {
+                terminated = getServiceDelegate().terminateVirtualMachineAsync(
+                        vmName,
+                        template.getResourceGroupName(),
+                        template.getUsePrivateIP());
+            } catch (RuntimeException terminateEx) {
+                terminated = CompletableFuture.failedFuture(terminateEx);
+            }
         }
+        terminated.whenCompleteAsync((ignored, terminateEx) -> {
+            if (terminateEx != null) {
+                LOGGER.log(
+                        Level.SEVERE,
+                        String.format("Failure terminating previous failed agent '%s'", vmName),
+                        CompletableFutures.unwrap(terminateEx));
+                // Do not throw to avoid it being recorded
+            }
+            template.retrieveAzureCloudReference().adjustApproximateVirtualMachineCount(-1,
+                    template);
+            // Update the template status given this new issue.
+            template.handleTemplateProvisioningFailure(e.getMessage(), stage);
+        }, getProvisioningScheduler());
+    }
+
+    private static AzureCloudException toAzureCloudException(Throwable failure) {
+        Throwable cause = CompletableFutures.unwrap(failure);
+        if (cause instanceof AzureCloudException) {
+            return (AzureCloudException) cause;
+        }
+        if (cause instanceof Exception) {
+            return AzureCloudException.create((Exception) cause);
+        }
+        return AzureCloudException.create(new ExecutionException(cause));
     }
 
     private void retrySshConnect(final AzureVMComputer azureComputer) throws ExecutionException, InterruptedException {
@@ -1006,12 +1043,15 @@ public class AzureVMCloud extends Cloud {
                 return "success";
             }
         };
-        Future<String> future = getThreadPool().submit(callableTask);
+        Future<String> future;
+        try {
+            future = AzureVMThreadPools.get(AzureVMThreadPools.Workload.JNLP_WAIT).submit(callableTask);
+        } catch (RejectedExecutionException e) {
+            throw AzureCloudException.create(e);
+        }
 
         try {
-            // 30 minutes is decent time for the node to be alive
-            final int timeoutInMinutes = 30;
-            String result = future.get(timeoutInMinutes, TimeUnit.MINUTES);
+            String result = future.get(JNLP_ONLINE_TIMEOUT_IN_MINUTES, TimeUnit.MINUTES);
             LOGGER.log(Level.INFO, "Azure Cloud: waitUntilOnline: node {0} is alive, result {1}",
                     new Object[]{agent.getDisplayName(), result});
         } catch (Exception ex) {
@@ -1211,6 +1251,11 @@ public class AzureVMCloud extends Cloud {
                     "com.microsoft.azure.Messages", Messages.class);
         }
 
+        @Initializer(after = JOB_CONFIG_ADAPTED)
+        public static void startInventoryRefresh() {
+            VirtualMachineInventoryRefresher.start();
+        }
+
         @Initializer(before = PLUGINS_STARTED)
         public static void addLogRecorder(Jenkins h) throws IOException {
             if (Main.isUnitTest) {
@@ -157,20 +157,9 @@ public class AzureVMCloudPoolRetentionStrategy extends AzureVMCloudBaseRetention
         final AzureVMAgent agentNode = agentComputer.getNode();
         if (agentComputer.isIdle() && agentNode != null) {
             if (System.currentTimeMillis() - agentComputer.getIdleStartMilliseconds() > IDLE_LIMIT_MILLIS) {
-                try {
-                    agentNode.blockCleanUpAction();
-                    agentNode.deprovision(Messages._Idle_Timeout_Delete());
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING,
-                            String.format("Exception occurred while calling timeout on node %s",
-                                    agentComputer.getName()), e);
-                    // If we have an exception, set the agent for deletion.
-                    // It's unlikely we'll be able to shut it down properly ever.
-                    AzureVMAgent node = agentComputer.getNode();
-                    if (node != null) {
-                        node.setCleanUpAction(CleanUpAction.DELETE, Messages._Failed_Initial_Shutdown_Or_Delete());
-                    }
-                }
+                // Failures set the agent for deletion by the cleanup task
+                agentNode.blockCleanUpAction();
+                ScaleDownCoordinator.get().submit(agentNode, Messages._Idle_Timeout_Delete());
 
             }
         }
@@ -88,16 +88,20 @@ public class AzureVMCloudRetensionStrategy extends AzureVMCloudBaseRetentionStra
             LOGGER.log(Level.INFO, "Idle timeout reached for agent: {0}, action: {1}",
                     new Object[]{agentNode.getName(), agent.isShutdownOnIdle() ? "shutdown" : "delete"});
 
+            if (!agent.isShutdownOnIdle()) {
+                // Block cleanup while the batch deletes it so the cleanup task doesn't try to take it away
+                // (node will go offline). Failures hand the agent over to the cleanup task.
+                agent.blockCleanUpAction();
+                ScaleDownCoordinator.get().submit(agent, Messages._Idle_Timeout_Delete());
+                return 1;
+            }
+
             Callable<Void> task = () -> {
                 // Block cleanup while we execute so the cleanup task doesn't try to take it
                 // away (node will go offline).  Also blocks cleanup in case of shutdown.
                 agent.blockCleanUpAction();
-                if (agent.isShutdownOnIdle()) {
-                    LOGGER.log(Level.INFO, "Going to idleTimeout agent: {0}", agentNode.getName());
-                    agent.shutdown(Messages._Idle_Timeout_Shutdown());
-                } else {
-                    agent.deprovision(Messages._Idle_Timeout_Delete());
-                }
+                LOGGER.log(Level.INFO, "Going to idleTimeout agent: {0}", agentNode.getName());
+                agent.shutdown(Messages._Idle_Timeout_Shutdown());
                 return null;
             };
 
@@ -15,6 +15,7 @@
  */
 package com.microsoft.azure.vmagent;
 
+import com.microsoft.azure.vmagent.util.AdaptiveRecurrence;
 import com.microsoft.azure.vmagent.util.Constants;
 import hudson.Extension;
 import hudson.model.AsyncPeriodicWork;
@@ -33,7 +34,12 @@ public final class AzureVMCloudVerificationTask extends AsyncPeriodicWork {
 
     private static final Logger LOGGER = Logger.getLogger(AzureVMCloudVerificationTask.class.getName());
 
-    private static final int RECURRENCE_PERIOD_IN_MILLIS = 60 * 60 * 1000;
+    private static final int MIN_RECURRENCE_PERIOD_IN_MILLIS = 5 * 60 * 1000;
+
+    private static final int MAX_RECURRENCE_PERIOD_IN_MILLIS = 60 * 60 * 1000;
+
+    private final AdaptiveRecurrence recurrence = new AdaptiveRecurrence(AzureVMCloudVerificationTask.class,
+            MIN_RECURRENCE_PERIOD_IN_MILLIS, MAX_RECURRENCE_PERIOD_IN_MILLIS);
 
     public AzureVMCloudVerificationTask() {
         super("Azure VM Verification Task");
@@ -89,6 +95,8 @@ public final class AzureVMCloudVerificationTask extends AsyncPeriodicWork {
                     agentTemplate.retrieveTemplateProvisionStrategy().verifiedPass();
                     // Reset the status details
                     agentTemplate.setTemplateStatusDetails("");
+                    // Build the deployment plan now rather than on the first provisioning
+                    prepareDeploymentPlan(cloud, agentTemplate);
                 } else {
                     String details = StringUtils.join(errors, "\n");
                     LOGGER.log(Level.WARNING,
@@ -108,6 +116,16 @@ public final class AzureVMCloudVerificationTask extends AsyncPeriodicWork {
         }
     }
 
+    private static void prepareDeploymentPlan(AzureVMCloud cloud, AzureVMAgentTemplate agentTemplate) {
+        try {
+            cloud.getServiceDelegate().getDeploymentPlan(agentTemplate);
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE,
+                    "AzureVMCloudVerificationTask: verify: could not prepare the deployment plan of {0}: {1}",
+                    new Object[]{agentTemplate.getTemplateName(), e.toString()});
+        }
+    }
+
     private static void verifyCloud(String cloudName) {
         if (StringUtils.isBlank(cloudName)) {
             return;
@@ -220,6 +238,10 @@ public final class AzureVMCloudVerificationTask extends AsyncPeriodicWork {
 
     @Override
     public void execute(TaskListener arg0) {
+        if (!recurrence.isDue(System.currentTimeMillis())) {
+            return;
+        }
+        int unverified = 0;
         for (final Cloud anyTypeOfCloud : Jenkins.get().clouds) {
             if (!(anyTypeOfCloud instanceof AzureVMCloud)) {
                 continue; // not one of ours; ignore.
@@ -228,12 +250,19 @@ public final class AzureVMCloudVerificationTask extends AsyncPeriodicWork {
             synchronized (cloud) {
                 updateCloudVirtualMachineCounts(cloud);
             }
+            if (!Constants.VERIFIED_PASS.equals(cloud.getConfigurationStatus())) {
+                unverified++;
+            }
         }
+        // Counts drift while agents are being provisioned
+        int provisioning = ProvisioningActivityIndex.get().inFlight();
+        recurrence.completed(System.currentTimeMillis(), unverified + provisioning,
+                String.format("%d clouds not verified, %d agents provisioning", unverified, provisioning));
     }
 
     @Override
     public long getRecurrencePeriod() {
-        return RECURRENCE_PERIOD_IN_MILLIS;
+        return recurrence.getMinPeriodMillis();
     }
 
     @Override
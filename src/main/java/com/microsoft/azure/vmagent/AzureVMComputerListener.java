@@ -0,0 +1,44 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+
+/**
+ * Queues Azure agents for clean up as soon as they go offline.
+ */
+@Extension
+public final class AzureVMComputerListener extends ComputerListener {
+
+    @Override
+    public void onOffline(Computer c, OfflineCause cause) {
+        enqueue(c);
+    }
+
+    @Override
+    public void onTemporarilyOffline(Computer c, OfflineCause cause) {
+        enqueue(c);
+    }
+
+    private static void enqueue(Computer c) {
+        if (c instanceof AzureVMComputer) {
+            AgentCleanUpQueue.get().enqueue(c.getName());
+        }
+    }
+}
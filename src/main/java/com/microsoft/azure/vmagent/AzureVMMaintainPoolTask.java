@@ -1,5 +1,6 @@
 package com.microsoft.azure.vmagent;
 
+import com.microsoft.azure.vmagent.util.AdaptiveRecurrence;
 import com.microsoft.azure.vmagent.util.DynamicBufferCalculator;
 import com.microsoft.azure.vmagent.util.PoolLock;
 import hudson.Extension;
@@ -17,18 +18,28 @@ public class AzureVMMaintainPoolTask extends AsyncPeriodicWork {
 
     private static final Logger LOGGER = Logger.getLogger(AzureVMMaintainPoolTask.class.getName());
 
-    private static final int RECURRENCE_PERIOD_IN_MILLIS = 5 * 60 * 1000;
+    private static final int MIN_RECURRENCE_PERIOD_IN_MILLIS = 60 * 1000;
+
+    private static final int MAX_RECURRENCE_PERIOD_IN_MILLIS = 5 * 60 * 1000;
+
+    private final AdaptiveRecurrence recurrence = new AdaptiveRecurrence(AzureVMMaintainPoolTask.class,
+            MIN_RECURRENCE_PERIOD_IN_MILLIS, MAX_RECURRENCE_PERIOD_IN_MILLIS);
 
     public AzureVMMaintainPoolTask() {
         super("Azure VM Maintainer Pool Size");
     }
 
-    public void maintain(AzureVMCloud cloud, AzureVMAgentTemplate template) {
+    /**
+     * Provisions the agents missing from the pool of the template.
+     *
+     * @return Number of agents missing from the pool, including those being provisioned
+     */
+    public int maintain(AzureVMCloud cloud, AzureVMAgentTemplate template) {
         LOGGER.log(getNormalLoggingLevel(), "Starting to maintain template: {0}", template.getTemplateName());
 
         if (PoolLock.checkProvisionLock(template)) {
             LOGGER.log(getNormalLoggingLevel(), "Agents of template {0} is creating, check later", template);
-            return;
+            return 1;
         }
 
         AzureVMCloudPoolRetentionStrategy retentionStrategy =
@@ -65,7 +76,9 @@ public class AzureVMMaintainPoolTask extends AsyncPeriodicWork {
             LOGGER.log(getNormalLoggingLevel(), "Prepare for provisioning {0} agents for template {1}",
                     new Object[]{deploymentSize, template.getTemplateName()});
             provisionNodes(cloud, template, deploymentSize);
+            return effectivePoolSize - currentSize;
         }
+        return 0;
     }
 
     public void provisionNodes(AzureVMCloud cloud, AzureVMAgentTemplate template, int newAgents) {
@@ -86,21 +99,27 @@ public class AzureVMMaintainPoolTask extends AsyncPeriodicWork {
 
     @Override
     public void execute(TaskListener arg0) {
+        if (!recurrence.isDue(System.currentTimeMillis())) {
+            return;
+        }
+        int deficit = 0;
         for (Cloud cloud : Jenkins.get().clouds) {
             if (cloud instanceof AzureVMCloud) {
                 AzureVMCloud azureVMCloud = (AzureVMCloud) cloud;
                 for (AzureVMAgentTemplate template : azureVMCloud.getVmTemplates()) {
                     if (template.getRetentionStrategy() instanceof AzureVMCloudPoolRetentionStrategy) {
-                        maintain(azureVMCloud, template);
+                        deficit += maintain(azureVMCloud, template);
                     }
                 }
             }
         }
+        recurrence.completed(System.currentTimeMillis(), deficit,
+                String.format("pools short of %d agents", deficit));
     }
 
     @Override
     public long getRecurrencePeriod() {
-        return RECURRENCE_PERIOD_IN_MILLIS;
+        return recurrence.getMinPeriodMillis();
     }
 
     @Override
@@ -36,6 +36,7 @@ import com.azure.resourcemanager.compute.models.VirtualMachineSku;
 import com.azure.resourcemanager.network.models.Network;
 import com.azure.resourcemanager.network.models.NetworkSecurityGroup;
 import com.azure.resourcemanager.network.models.PublicIpAddress;
+import com.azure.resourcemanager.resources.fluentcore.arm.ResourceUtils;
 import com.azure.resourcemanager.resources.models.DeploymentMode;
 import com.azure.resourcemanager.resources.models.GenericResource;
 import com.azure.resourcemanager.storage.models.CheckNameAvailabilityResult;
@@ -87,6 +88,7 @@ import org.jenkinsci.plugins.cloudstats.ProvisioningActivity;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -197,6 +199,10 @@ public final class AzureVMManagementServiceDelegate {
 
     private static final ObjectMapper MAPPER = new ObjectMapper();
 
+    private static final String DEPLOYMENT_IMAGE_SUFFIX = "Image";
+
+    private static final Map<String, JsonNode> PARSED_TEMPLATES = new ConcurrentHashMap<>();
+
     private static final Cache<String, Set<String>> vmSizesByLocation = Caffeine.newBuilder()
             .expireAfterAccess(24, TimeUnit.HOURS)
             .build();
@@ -233,13 +239,16 @@ public final class AzureVMManagementServiceDelegate {
             int numberOfAgents,
             AzureVMAgentCleanUpTask.DeploymentRegistrar deploymentRegistrar) throws AzureCloudException, IOException {
 
-        InputStream embeddedTemplate = null;
         String scriptUri = null;
         try {
             LOGGER.log(Level.INFO, "Initializing deployment for {0} agentTemplate(s) {1}",
                     new Object[]{numberOfAgents, template.getTemplateName()});
 
-            Map<String, Object> properties = AzureVMAgentTemplate.getTemplateProperties(template);
+            DeploymentPlan plan = getDeploymentPlan(template);
+            if (plan == null) {
+                return null;
+            }
+            Map<String, Object> properties = plan.getProperties();
 
             final Date timestamp = new Date(System.currentTimeMillis());
             final String deploymentName = AzureUtil.getDeploymentName(template.getTemplateName(), timestamp);
@@ -248,12 +257,6 @@ public final class AzureVMManagementServiceDelegate {
             final String locationName = AzureUtil.getLocationNameByLabel(template.getLocation());
             final String storageAccountName = template.getStorageAccountName();
             final String storageAccountType = template.getStorageAccountType();
-            final String diskType = template.getDiskType();
-            final boolean ephemeralOSDisk = template.isEphemeralOSDisk();
-            final boolean encryptionAtHost = template.isEncryptionAtHost();
-            final boolean disableWindowsUpdates = template.isDisableWindowsUpdates();
-
-            final int osDiskSize = template.getOsDiskSize();
 
             if (
                     Constants.RESOURCE_GROUP_REFERENCE_TYPE_NEW.equals(template.getResourceGroupReferenceType()) &&
@@ -269,7 +272,7 @@ public final class AzureVMManagementServiceDelegate {
 
             String cloudName = template.retrieveAzureCloudReference().getCloudName();
             if (Constants.RESOURCE_GROUP_REFERENCE_TYPE_NEW.equals(resourceGroupReferenceType)) {
-                createAzureResourceGroup(azureClient, locationName, resourceGroupName, cloudName);
+                ensureAzureResourceGroup(locationName, resourceGroupName, cloudName);
             }
 
             //For blob endpoint url in arm template, it's different based on different environments
@@ -278,90 +281,11 @@ public final class AzureVMManagementServiceDelegate {
             List<AzureTagPair> templateTags = template.getTags();
             final List<AzureTagPair> tags = concat(cloudTags, templateTags);
 
-            createStorageAccount(azureClient, storageAccountType, storageAccountName, locationName, resourceGroupName, template.getTemplateName(), tags);
-            StorageAccount storageAccount = getStorageAccount(azureClient, storageAccountName, resourceGroupName);
+            StorageAccount storageAccount = ensureStorageAccount(
+                    storageAccountType, storageAccountName, locationName, resourceGroupName, template.getTemplateName(), tags);
             String blobEndpointSuffix = getBlobEndpointSuffixForTemplate(storageAccount);
 
-
-            boolean isBasic = template.isTopLevelType(Constants.IMAGE_TOP_LEVEL_BASIC);
-            ImageReferenceType referenceType = template.getImageReference().getType();
-
-            boolean preInstallSSH = template.getLauncher() instanceof AzureSSHLauncher
-                    && ((AzureSSHLauncher) template.getLauncher()).isPreInstallSsh();
-
-            final boolean preInstallSshInWindows = properties.get("osType").equals(Constants.OS_TYPE_WINDOWS)
-                    && properties.get("agentLaunchMethod").equals(Constants.LAUNCH_METHOD_SSH)
-                    && (isBasic || referenceType == ImageReferenceType.REFERENCE
-                    || preInstallSSH);
-
-            boolean windows = properties.get("osType").equals(Constants.OS_TYPE_WINDOWS);
-            boolean inboundAgent = properties.get("agentLaunchMethod").equals(Constants.LAUNCH_METHOD_JNLP);
-            boolean useCustomScriptExtension
-                    = preInstallSshInWindows
-                    || windows
-                    && StringUtils.isNotBlank((String) properties.get("initScript"))
-                    && inboundAgent;
-
-            if (!useCustomScriptExtension && !windows && inboundAgent) {
-                useCustomScriptExtension = true;
-            }
-
-            // check if a custom image id has been provided otherwise work with publisher and offer
-            boolean useManagedDisk = diskType.equals(Constants.DISK_MANAGED);
-            String msg;
-            String templateLocation;
-            boolean useCustomImage = !isBasic && referenceType == ImageReferenceType.CUSTOM;
-            if (useCustomScriptExtension) {
-                if (useManagedDisk) {
-                    msg = "Use embedded deployment template (with script and managed) {0}";
-                    if (useCustomImage) {
-                        templateLocation = EMBEDDED_TEMPLATE_IMAGE_WITH_SCRIPT_MANAGED_FILENAME;
-                    } else {
-                        templateLocation = (referenceType == ImageReferenceType.CUSTOM_IMAGE
-                                || referenceType == ImageReferenceType.GALLERY)
-                                ? EMBEDDED_TEMPLATE_IMAGE_ID_WITH_SCRIPT_MANAGED_FILENAME
-                                : EMBEDDED_TEMPLATE_WITH_SCRIPT_MANAGED_FILENAME;
-                    }
-                } else {
-                    msg = "Use embedded deployment template (with script) {0}";
-                    templateLocation = useCustomImage
-                            ? EMBEDDED_TEMPLATE_IMAGE_WITH_SCRIPT_FILENAME
-                            : EMBEDDED_TEMPLATE_WITH_SCRIPT_FILENAME;
-                }
-            } else {
-                if (useManagedDisk) {
-                    msg = "Use embedded deployment template (with managed) {0}";
-                    if (useCustomImage) {
-                        templateLocation = EMBEDDED_TEMPLATE_IMAGE_WITH_MANAGED_FILENAME;
-                    } else {
-                        templateLocation = (referenceType == ImageReferenceType.CUSTOM_IMAGE
-                                || referenceType == ImageReferenceType.GALLERY)
-                                ? EMBEDDED_TEMPLATE_IMAGE_ID_WITH_MANAGED_FILENAME
-                                : EMBEDDED_TEMPLATE_WITH_MANAGED_FILENAME;
-                    }
-                } else {
-                    msg = "Use embedded deployment template {0}";
-                    templateLocation = useCustomImage
-                            ? EMBEDDED_TEMPLATE_IMAGE_FILENAME
-                            : EMBEDDED_TEMPLATE_FILENAME;
-                }
-            }
-            LOGGER.log(Level.INFO, msg, templateLocation);
-            embeddedTemplate = AzureVMManagementServiceDelegate.class.getResourceAsStream(
-                    templateLocation);
-
-            final JsonNode tmp = MAPPER.readTree(embeddedTemplate);
-
-            if (useCustomScriptExtension) {
-                ArrayNode resources = (ArrayNode) tmp.get("resources");
-                for (JsonNode resource : resources) {
-                    String type = resource.get("type").asText();
-                    if (type.contains("virtualMachine")) {
-                        ArrayNode vmResources = (ArrayNode) resource.get("resources");
-                        vmResources.remove(windows ? 1 : 0);
-                    }
-                }
-            }
+            final JsonNode tmp = plan.newDeploymentTemplate();
 
             // Add count variable for loop....
             final ObjectNode count = MAPPER.createObjectNode();
@@ -370,261 +294,11 @@ public final class AzureVMManagementServiceDelegate {
             ((ObjectNode) tmp.get("parameters")).replace("count", count);
 
             putVariable(tmp, "vmName", vmBaseName);
-            putVariable(tmp, "location", locationName);
-            putVariable(tmp, "jenkinsTag", Constants.AZURE_JENKINS_TAG_VALUE);
             putVariable(tmp, "resourceTag", deploymentRegistrar.getDeploymentTag().get());
-            putVariable(tmp, "cloudTag", cloudName);
-            putVariable(tmp, "templateTag", template.getTemplateName());
-            putVariable(tmp, "osDiskStorageAccountType", template.getOsDiskStorageAccountType());
-
-            // add purchase plan for image if needed in reference configuration
-            // Image Configuration has four choices, isBasic->Built-in Image, useCustomImage->Custom User Image
-            // getId()->Custom Managed Image, here we need the last one: Image Reference
-            if (!isBasic) {
-                if (referenceType == ImageReferenceType.REFERENCE) {
-                    boolean isImageParameterValid = checkImageParameter(template);
-                    if (isImageParameterValid) {
-                        String imageVersion = StringUtils.isNotEmpty(template.getImageReference().getVersion())
-                                ? template.getImageReference().getVersion() : "latest";
-                        VirtualMachineImage image = azureClient.virtualMachineImages().getImage(
-                                locationName,
-                                template.getImageReference().getPublisher(),
-                                template.getImageReference().getOffer(),
-                                template.getImageReference().getSku(),
-                                imageVersion
-                        );
-                        if (image != null) {
-                            PurchasePlan plan = image.plan();
-                            if (plan != null) {
-                                ArrayNode resources = (ArrayNode) tmp.get("resources");
-                                for (JsonNode resource : resources) {
-                                    String type = resource.get("type").asText();
-                                    if (type.contains("virtualMachine")) {
-                                        ObjectNode planNode = MAPPER.createObjectNode();
-                                        planNode.put("name", plan.name());
-                                        planNode.put("publisher", plan.publisher());
-                                        planNode.put("product", plan.product());
-                                        ((ObjectNode) resource).replace("plan", planNode);
-                                    }
-                                }
-                            }
-                        } else {
-                            LOGGER.log(Level.SEVERE, "Failed to find the image with publisher:{0} offer:{1} sku:{2} " +
-                                    "version:{3} when trying to add purchase plan to ARM template", new Object[]{
-                                    template.getImageReference().getPublisher(),
-                                    template.getImageReference().getOffer(),
-                                    template.getImageReference().getSku(),
-                                    imageVersion});
-                        }
-                    }
-                } else if (referenceType == ImageReferenceType.CUSTOM_IMAGE) {
-                    String id = template.getId();
-                    VirtualMachineCustomImage customImage = azureClient.virtualMachineCustomImages().getById(id);
-                    if (customImage != null) {
-                        Map<String, String> imageTags = customImage.tags();
-                        if (imageTags != null) {
-                            String planInfo = imageTags.get("PlanInfo");
-                            String planProduct = imageTags.get("PlanProduct");
-                            String planPublisher = imageTags.get("PlanPublisher");
-
-                            if (StringUtils.isNotBlank(planInfo) && StringUtils.isNotBlank(planProduct)
-                                    && StringUtils.isNotBlank(planPublisher)) {
-                                ArrayNode resources = (ArrayNode) tmp.get("resources");
-                                for (JsonNode resource : resources) {
-                                    String type = resource.get("type").asText();
-                                    if (type.contains("virtualMachine")) {
-                                        ObjectNode planNode = MAPPER.createObjectNode();
-                                        planNode.put("name", planInfo);
-                                        planNode.put("publisher", planPublisher);
-                                        planNode.put("product", planProduct);
-                                        ((ObjectNode) resource).replace("plan", planNode);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-
-            boolean msiEnabled = template.isEnableMSI();
-            boolean uamiEnabled = template.isEnableUAMI();
-
-            boolean osDiskSizeChanged = osDiskSize > 0;
-
-            final AzureAvailabilityType availabilityType = template.getAvailabilityType();
-            final String availabilitySet = availabilityType instanceof AvailabilitySet ?
-                    ((AvailabilitySet) availabilityType).getName() : null;
-
-            final String vmssName = availabilityType instanceof VirtualMachineScaleSet ?
-                    ((VirtualMachineScaleSet) availabilityType).getName() : null;
-
-            boolean availabilitySetEnabled = availabilitySet != null;
-            boolean availabilityZoneEnabled = availabilityType instanceof AvailabilityZone;
-            boolean vmssEnabled = vmssName != null;
-            boolean isSpecializedImage = false;
-            if (template.getImageReference() != null) {
-                isSpecializedImage = template.getImageReference().getGalleryImageSpecialized();
-            }
-            if (msiEnabled || uamiEnabled || osDiskSizeChanged || availabilitySetEnabled || isSpecializedImage || vmssEnabled || availabilityZoneEnabled) {
-                ArrayNode resources = (ArrayNode) tmp.get("resources");
-                for (JsonNode resource : resources) {
-                    String type = resource.get("type").asText();
-                    if (type.contains("virtualMachine")) {
-                        // Determine if User assigned, System assigned or both
-                        // types of identity should be requested.
-                        // https://docs.microsoft.com/en-us/rest/api/compute/virtualmachines/createorupdate#resourceidentitytype
-                        if (msiEnabled && uamiEnabled) {
-                            String uamiID = template.getUamiID();
-                            ObjectNode identityNode = MAPPER.createObjectNode();
-                            identityNode.put("type", "SystemAssigned, UserAssigned");
-                            ObjectNode resourceId = MAPPER.createObjectNode();
-                            resourceId.replace(uamiID, MAPPER.createObjectNode());
-                            identityNode.replace("userAssignedIdentities", resourceId);
-
-                            ((ObjectNode) resource).replace("identity", identityNode);
-                        } else if (msiEnabled) {
-                            ObjectNode identityNode = MAPPER.createObjectNode();
-                            identityNode.put("type", "systemAssigned");
-                            ((ObjectNode) resource).replace("identity", identityNode);
-                        } else if (uamiEnabled) {
-                            String uamiID = template.getUamiID();
-                            ObjectNode identityNode = MAPPER.createObjectNode();
-                            identityNode.put("type", "UserAssigned");
-                            ObjectNode resourceId = MAPPER.createObjectNode();
-                            resourceId.replace(uamiID, MAPPER.createObjectNode());
-                            identityNode.replace("userAssignedIdentities", resourceId);
-
-                            ((ObjectNode) resource).replace("identity", identityNode);
-                        }
-
-                        if (osDiskSizeChanged) {
-                            JsonNode jsonNode = resource.get("properties").get("storageProfile").get("osDisk");
-                            ((ObjectNode) jsonNode).replace("diskSizeGB", new IntNode(osDiskSize));
-                        }
-                        if (availabilitySetEnabled) {
-                            ObjectNode availabilitySetNode = MAPPER.createObjectNode();
-                            availabilitySetNode.put("id", String.format(
-                                    "[resourceId('Microsoft.Compute/availabilitySets', '%s')]", availabilitySet));
-                            JsonNode propertiesNode = resource.get("properties");
-                            ((ObjectNode) propertiesNode).replace("availabilitySet",
-                                    availabilitySetNode);
-                        }
-                        if (vmssEnabled) {
-                            ObjectNode vmssNode = MAPPER.createObjectNode();
-                            vmssNode.put("id", String.format(
-                                    "[resourceId('Microsoft.Compute/virtualMachineScaleSets', '%s')]", vmssName));
-                            JsonNode propertiesNode = resource.get("properties");
-                            ((ObjectNode) propertiesNode).replace("virtualMachineScaleSet",
-                                    vmssNode);
-                        }
-
-                        if (availabilityZoneEnabled) {
-                            String zone = ((AvailabilityZone) availabilityType).getZone();
-                            if (StringUtils.isNotBlank(zone)) {
-                                if (zone.equals(AvailabilityZone.AZURE_SELECTED)) {
-                                    ObjectNode placementNode = MAPPER.createObjectNode();
-                                    placementNode.put("zonePlacementPolicy", "Any");
-                                    ((ObjectNode) resource).replace("placement", placementNode);
-                                } else {
-                                    ArrayNode zonesNode = MAPPER.createArrayNode();
-                                    zonesNode.add(zone);
-                                    ((ObjectNode) resource).replace("zones", zonesNode);
-                                }
-                            }
-                        }
-
-                        if (isSpecializedImage) {
-                            // For specialized image remove the osProfile from the properties of the VirtualMachine resource
-                            JsonNode propertiesNode = resource.get("properties");
-                           ((ObjectNode) propertiesNode).remove("osProfile");
-                        }
-                    }
-                }
-            }
-
-            if (disableWindowsUpdates) {
-                addWindowsConfiguration(tmp);
-            }
-
-            ArrayNode resources = (ArrayNode) tmp.get("resources");
-
-            for (JsonNode resource : resources) {
-                injectCustomTag(resource, tags);
-            }
-
-            copyVariableIfNotBlank(tmp, properties, "imageId");
-            copyVariableIfNotBlank(tmp, properties, "imagePublisher");
-            copyVariableIfNotBlank(tmp, properties, "imageOffer");
-            copyVariableIfNotBlank(tmp, properties, "imageSku");
-            copyVariableIfNotBlank(tmp, properties, "imageVersion");
-            copyVariableIfNotBlank(tmp, properties, "osType");
-            putVariable(tmp, "ephemeralOSDisk", Boolean.toString(ephemeralOSDisk));
-            putVariable(tmp, "encryptionAtHost", Boolean.toString(encryptionAtHost));
-            putVariableIfNotBlank(tmp, "image", template.getImageReference().getUri());
-
-            String imageId = getImageId(properties);
-
-            // Gallery Image is a special case for custom image, reuse the logic of custom image by replacing the imageId here
-            if (!isBasic && referenceType == ImageReferenceType.GALLERY) {
-                GalleryImageVersion galleryImageVersion;
-                String galleryImageVersionStr = template.getImageReference().getGalleryImageVersion();
-                String galleryImageDefinition = template.getImageReference().getGalleryImageDefinition();
-                String gallerySubscriptionId = template.getImageReference().getGallerySubscriptionId();
-                String galleryResourceGroup = template.getImageReference().getGalleryResourceGroup();
-                String galleryName = template.getImageReference().getGalleryName();
-                if (StringUtils.isBlank(galleryImageVersionStr) || StringUtils.isBlank(galleryImageDefinition) ||
-                        StringUtils.isBlank(galleryResourceGroup) || StringUtils.isBlank(galleryName)) {
-                    throw AzureCloudException.create("One of gallery name, gallery image version, image definition and image resource group "
-                            + "is blank.");
-                }
-                AzureResourceManager client = AzureResourceManagerCache.get(azureCredentialsId, gallerySubscriptionId);
-                if (client == null) {
-                    return null;
-                }
-                if (Constants.VERSION_LATEST.equals(galleryImageVersionStr)) {
-                    galleryImageVersion = getGalleryImageLatestVersion(galleryResourceGroup,
-                            galleryName, galleryImageDefinition, client);
-                } else {
-                    galleryImageVersion = client.galleryImageVersions()
-                            .getByGalleryImage(galleryResourceGroup, galleryName,
-                                    galleryImageDefinition, galleryImageVersionStr);
-                }
-                if (galleryImageVersion == null) {
-                    throw AzureCloudException.create("Can not find the right version for the gallery image.");
-                }
-                imageId = galleryImageVersion.id();
-                LOGGER.log(Level.INFO, "Create VM with gallery image id {0}", new Object[]{imageId});
-                putVariableIfNotBlank(tmp, "imageId", imageId);
-
-                Map<String, String> imageTags = galleryImageVersion.tags();
-                if (imageTags != null) {
-                    String planInfo = imageTags.get("PlanInfo");
-                    String planProduct = imageTags.get("PlanProduct");
-                    String planPublisher = imageTags.get("PlanPublisher");
-
-                    if (StringUtils.isNotBlank(planInfo) && StringUtils.isNotBlank(planProduct)
-                            && StringUtils.isNotBlank(planPublisher)) {
-                        for (JsonNode resource : resources) {
-                            String type = resource.get("type").asText();
-                            if (type.contains("virtualMachine")) {
-                                ObjectNode planNode = MAPPER.createObjectNode();
-                                planNode.put("name", planInfo);
-                                planNode.put("publisher", planPublisher);
-                                planNode.put("product", planProduct);
-                                ((ObjectNode) resource).replace("plan", planNode);
-                            }
-                        }
-                    }
-                }
-            }
-
-            if (imageId != null) {
-                addTagToVm(tmp, "JenkinsImageId", imageId);
-            }
 
             // If using the custom script extension (vs. SSH) to startup the powershell scripts,
             // add variables for that and upload the init script to the storage account
-            if (useCustomScriptExtension) {
+            if (plan.isUseCustomScriptExtension()) {
                 String rootUrl = fixEmpty(Jenkins.get().getRootUrl());
                 if (rootUrl == null) {
                     throw AzureCloudException.create("Jenkins URL must be set");
@@ -639,7 +313,7 @@ public final class AzureVMManagementServiceDelegate {
                 // Upload the startup script to blob storage
                 String scriptName = String.format("%s%s", deploymentName, "init.ps1");
                 String initScript;
-                if (preInstallSshInWindows) {
+                if (plan.isPreInstallSshInWindows()) {
                     initScript = loadScript(PRE_INSTALL_SSH_FILENAME);
                 } else {
                     initScript = (String) properties.get("initScript");
@@ -648,34 +322,8 @@ public final class AzureVMManagementServiceDelegate {
                 putVariable(tmp, "startupScriptURI", scriptUri);
                 putVariable(tmp, "startupScriptName", scriptName);
 
-
-                if (template.isUseEntraIdForStorageAccount()) {
-                    String uamiClientId = azureClient.identities().getById(template.getUamiID()).clientId();
-
-                    for (JsonNode resource : resources) {
-                        String type = resource.get("type").asText();
-                        if (type.contains("virtualMachine")) {
-                            ArrayNode vmResources = (ArrayNode) resource.get("resources");
-                            JsonNode scriptExtension = vmResources.get(0);
-                            ObjectNode scriptExtensionProperties = (ObjectNode) scriptExtension.get("properties");
-                            ObjectNode protectedSettings = (ObjectNode) scriptExtensionProperties.get("protectedSettings");
-                            protectedSettings.remove("storageAccountName");
-                            protectedSettings.remove("storageAccountKey");
-                            ObjectNode clientId = MAPPER.createObjectNode();
-                            clientId.put("clientId", uamiClientId);
-                            protectedSettings.replace("managedIdentity", clientId);
-                        }
-                    }
-                    ObjectNode parameters = (ObjectNode) tmp.get("parameters");
-                    parameters.remove("storageAccountKey");
-                } else {
-                    List<StorageAccountKey> storageKeys = azureClient.storageAccounts()
-                            .getByResourceGroup(template.getResourceGroupName(), storageAccountName)
-                            .getKeys();
-                    if (storageKeys.isEmpty()) {
-                        throw AzureCloudException.create("Exception occurred while fetching the storage account key");
-                    }
-                    String storageAccountKey = storageKeys.get(0).value();
+                if (!template.isUseEntraIdForStorageAccount()) {
+                    String storageAccountKey = getStorageAccountKey(template.getResourceGroupName(), storageAccountName);
 
                     final ObjectNode storageAccountKeyNode = MAPPER.createObjectNode();
                     storageAccountKeyNode.put("type", "secureString");
@@ -686,71 +334,13 @@ public final class AzureVMManagementServiceDelegate {
                 }
             }
 
-            putVariable(tmp, "vmSize", template.getVirtualMachineSize());
-            // Grab the username/pass
-            StandardUsernameCredentials creds = template.getVMCredentials();
-
-            putVariableIfNotBlank(tmp, "storageAccountName", storageAccountName);
-            putVariableIfNotBlank(tmp, "storageAccountType", storageAccountType);
             putVariableIfNotBlank(tmp, "blobEndpointSuffix", blobEndpointSuffix);
 
-            // Network properties.  If the vnet name isn't blank then
-            // then subnet name can't be either (based on verification rules)
-            if (StringUtils.isNotBlank((String) properties.get("virtualNetworkName"))) {
-                copyVariableIfNotBlank(tmp, properties, "virtualNetworkName");
-                copyVariable(tmp, properties, "subnetName");
-                if (StringUtils.isNotBlank((String) properties.get("virtualNetworkResourceGroupName"))) {
-                    copyVariable(tmp, properties, "virtualNetworkResourceGroupName");
-                } else {
-                    putVariable(tmp, "virtualNetworkResourceGroupName", resourceGroupName);
-                }
-            } else {
-                addDefaultVNetResourceNode(tmp, resourceGroupName, tags);
-            }
-
-            if (template.isSpotInstance()) {
-                addSpotInstance(tmp);
-            }
-            
-            if (template.isTrustedLaunch()) {
-                addTrustedLaunch(tmp);
-            }
-
-            if (!(Boolean) properties.get("usePrivateIP")) {
-                List<String> availabilityZones = new ArrayList<>();
-                if (availabilityType instanceof VirtualMachineScaleSet) {
-                    var name = ((VirtualMachineScaleSet) availabilityType).getName();
-
-                    availabilityZones = azureClient.virtualMachineScaleSets()
-                            .getByResourceGroup(resourceGroupName, name)
-                            .availabilityZones()
-                            .stream()
-                            .map(ExpandableStringEnum::toString)
-                            .collect(Collectors.toList());
-                }
-
-                addPublicIPResourceNode(tmp, tags, availabilityZones);
-            }
-
-            if (template.isAcceleratedNetworking()) {
-              addAcceleratedNetworking(tmp);
-            }
-
-            if (StringUtils.isNotBlank((String) properties.get("nsgName"))) {
-                addNSGNode(tmp, (String) properties.get("nsgName"));
-            }
-
-            if (useManagedDisk) {
-                addManagedDataDisks(tmp, template.getDataDisks());
-            }
+            // Grab the username/pass
+            StandardUsernameCredentials creds = template.getVMCredentials();
 
             final ObjectNode parameters = MAPPER.createObjectNode();
-
-            defineParameter(tmp, "adminUsername", "string");
             putParameter(parameters, "adminUsername", creds.getUsername());
-
-            defineParameter(tmp, "authenticationType", "string");
-            defineParameter(tmp, "adminPasswordOrKey", "secureString");
             if (creds instanceof StandardUsernamePasswordCredentials) {
                 StandardUsernamePasswordCredentials passwordCredentials = (StandardUsernamePasswordCredentials) creds;
                 putParameter(parameters, "adminPasswordOrKey", passwordCredentials.getPassword().getPlainText());
@@ -763,10 +353,6 @@ public final class AzureVMManagementServiceDelegate {
                 putParameter(parameters, "authenticationType", "key");
             }
 
-            if (template.getLicenseType() != null && !Constants.NO_LICENSE_TYPE.contains(template.getLicenseType())) {
-                addLicenseType(tmp, template.getLicenseType());
-            }
-
             // Register the deployment for cleanup
             deploymentRegistrar.registerDeployment(
                     cloudName, template.getResourceGroupName(), deploymentName, scriptUri,
@@ -789,6 +375,7 @@ public final class AzureVMManagementServiceDelegate {
             e);
             // Pass the info off to the template so that it can be queued for update.
             template.handleTemplateProvisioningFailure(e.getMessage(), FailureStage.PROVISIONING);
+            invalidateCachedResourcesOnError(template.getResourceGroupName(), e);
             try {
                 removeStorageBlob(
                         new URI(scriptUri),
@@ -800,11 +387,511 @@ public final class AzureVMManagementServiceDelegate {
                 LOGGER.log(Level.WARNING, "Delete initScript failed: {0}", scriptUri);
             }
             throw AzureCloudException.create(e);
-        } finally {
-            if (embeddedTemplate != null) {
-                embeddedTemplate.close();
+        }
+    }
+
+    /**
+     * Returns the deployment plan of the template, building it again if the cached one is missing or outdated.
+     *
+     * @param template Template to deploy
+     * @return The plan, or null if the subscription of the gallery image is not available
+     */
+    DeploymentPlan getDeploymentPlan(AzureVMAgentTemplate template) throws AzureCloudException, IOException {
+        DeploymentPlan plan = DeploymentPlan.getCached(template);
+        if (plan == null) {
+            plan = buildDeploymentPlan(template);
+            if (plan != null) {
+                DeploymentPlan.cache(template, plan);
             }
         }
+        return plan;
+    }
+
+    /**
+     * Applies everything derived from the template configuration to the embedded ARM template, including the
+     * lookups of the image purchase plan, gallery image version and managed identity.
+     */
+    private DeploymentPlan buildDeploymentPlan(AzureVMAgentTemplate template)
+            throws AzureCloudException, IOException {
+        final long createdAt = System.currentTimeMillis();
+        LOGGER.log(Level.FINE, "Building the deployment plan of {0}", template.getTemplateName());
+
+        Map<String, Object> properties = AzureVMAgentTemplate.getTemplateProperties(template);
+
+        final String locationName = AzureUtil.getLocationNameByLabel(template.getLocation());
+        final String storageAccountName = template.getStorageAccountName();
+        final String storageAccountType = template.getStorageAccountType();
+        final String diskType = template.getDiskType();
+        final boolean ephemeralOSDisk = template.isEphemeralOSDisk();
+        final boolean encryptionAtHost = template.isEncryptionAtHost();
+        final boolean disableWindowsUpdates = template.isDisableWindowsUpdates();
+
+        final int osDiskSize = template.getOsDiskSize();
+
+        final String resourceGroupName = template.getResourceGroupName();
+        String cloudName = template.retrieveAzureCloudReference().getCloudName();
+
+        List<AzureTagPair> cloudTags = template.retrieveAzureCloudReference().getCloudTags();
+        List<AzureTagPair> templateTags = template.getTags();
+        final List<AzureTagPair> tags = concat(cloudTags, templateTags);
+
+        boolean isBasic = template.isTopLevelType(Constants.IMAGE_TOP_LEVEL_BASIC);
+        ImageReferenceType referenceType = template.getImageReference().getType();
+
+        boolean preInstallSSH = template.getLauncher() instanceof AzureSSHLauncher
+                && ((AzureSSHLauncher) template.getLauncher()).isPreInstallSsh();
+
+        final boolean preInstallSshInWindows = properties.get("osType").equals(Constants.OS_TYPE_WINDOWS)
+                && properties.get("agentLaunchMethod").equals(Constants.LAUNCH_METHOD_SSH)
+                && (isBasic || referenceType == ImageReferenceType.REFERENCE
+                || preInstallSSH);
+
+        boolean windows = properties.get("osType").equals(Constants.OS_TYPE_WINDOWS);
+        boolean inboundAgent = properties.get("agentLaunchMethod").equals(Constants.LAUNCH_METHOD_JNLP);
+        boolean useCustomScriptExtension
+                = preInstallSshInWindows
+                || windows
+                && StringUtils.isNotBlank((String) properties.get("initScript"))
+                && inboundAgent;
+
+        if (!useCustomScriptExtension && !windows && inboundAgent) {
+            useCustomScriptExtension = true;
+        }
+
+        // check if a custom image id has been provided otherwise work with publisher and offer
+        boolean useManagedDisk = diskType.equals(Constants.DISK_MANAGED);
+        String msg;
+        String templateLocation;
+        boolean useCustomImage = !isBasic && referenceType == ImageReferenceType.CUSTOM;
+        if (useCustomScriptExtension) {
+            if (useManagedDisk) {
+                msg = "Use embedded deployment template (with script and managed) {0}";
+                if (useCustomImage) {
+                    templateLocation = EMBEDDED_TEMPLATE_IMAGE_WITH_SCRIPT_MANAGED_FILENAME;
+                } else {
+                    templateLocation = (referenceType == ImageReferenceType.CUSTOM_IMAGE
+                            || referenceType == ImageReferenceType.GALLERY)
+                            ? EMBEDDED_TEMPLATE_IMAGE_ID_WITH_SCRIPT_MANAGED_FILENAME
+                            : EMBEDDED_TEMPLATE_WITH_SCRIPT_MANAGED_FILENAME;
+                }
+            } else {
+                msg = "Use embedded deployment template (with script) {0}";
+                templateLocation = useCustomImage
+                        ? EMBEDDED_TEMPLATE_IMAGE_WITH_SCRIPT_FILENAME
+                        : EMBEDDED_TEMPLATE_WITH_SCRIPT_FILENAME;
+            }
+        } else {
+            if (useManagedDisk) {
+                msg = "Use embedded deployment template (with managed) {0}";
+                if (useCustomImage) {
+                    templateLocation = EMBEDDED_TEMPLATE_IMAGE_WITH_MANAGED_FILENAME;
+                } else {
+                    templateLocation = (referenceType == ImageReferenceType.CUSTOM_IMAGE
+                            || referenceType == ImageReferenceType.GALLERY)
+                            ? EMBEDDED_TEMPLATE_IMAGE_ID_WITH_MANAGED_FILENAME
+                            : EMBEDDED_TEMPLATE_WITH_MANAGED_FILENAME;
+                }
+            } else {
+                msg = "Use embedded deployment template {0}";
+                templateLocation = useCustomImage
+                        ? EMBEDDED_TEMPLATE_IMAGE_FILENAME
+                        : EMBEDDED_TEMPLATE_FILENAME;
+            }
+        }
+        LOGGER.log(Level.INFO, msg, templateLocation);
+        final JsonNode tmp = loadDeploymentSkeleton(templateLocation, useCustomScriptExtension, windows);
+
+        putVariable(tmp, "location", locationName);
+        putVariable(tmp, "jenkinsTag", Constants.AZURE_JENKINS_TAG_VALUE);
+        putVariable(tmp, "cloudTag", cloudName);
+        putVariable(tmp, "templateTag", template.getTemplateName());
+        putVariable(tmp, "osDiskStorageAccountType", template.getOsDiskStorageAccountType());
+
+        // add purchase plan for image if needed in reference configuration
+        // Image Configuration has four choices, isBasic->Built-in Image, useCustomImage->Custom User Image
+        // getId()->Custom Managed Image, here we need the last one: Image Reference
+        if (!isBasic) {
+            if (referenceType == ImageReferenceType.REFERENCE) {
+                boolean isImageParameterValid = checkImageParameter(template);
+                if (isImageParameterValid) {
+                    String imageVersion = StringUtils.isNotEmpty(template.getImageReference().getVersion())
+                            ? template.getImageReference().getVersion() : "latest";
+                    String publisher = template.getImageReference().getPublisher();
+                    String offer = template.getImageReference().getOffer();
+                    String sku = template.getImageReference().getSku();
+                    VirtualMachineImage image = ImageMetadataCache.get("image", azureCredentialsId,
+                            azureClient.subscriptionId(),
+                            Arrays.asList(locationName, publisher, offer, sku, imageVersion),
+                            () -> azureClient.virtualMachineImages().getImage(
+                                    locationName, publisher, offer, sku, imageVersion));
+                    if (image != null) {
+                        PurchasePlan plan = image.plan();
+                        if (plan != null) {
+                            ArrayNode resources = (ArrayNode) tmp.get("resources");
+                            for (JsonNode resource : resources) {
+                                String type = resource.get("type").asText();
+                                if (type.contains("virtualMachine")) {
+                                    ObjectNode planNode = MAPPER.createObjectNode();
+                                    planNode.put("name", plan.name());
+                                    planNode.put("publisher", plan.publisher());
+                                    planNode.put("product", plan.product());
+                                    ((ObjectNode) resource).replace("plan", planNode);
+                                }
+                            }
+                        }
+                    } else {
+                        LOGGER.log(Level.SEVERE, "Failed to find the image with publisher:{0} offer:{1} sku:{2} " +
+                                "version:{3} when trying to add purchase plan to ARM template", new Object[]{
+                                template.getImageReference().getPublisher(),
+                                template.getImageReference().getOffer(),
+                                template.getImageReference().getSku(),
+                                imageVersion});
+                    }
+                }
+            } else if (referenceType == ImageReferenceType.CUSTOM_IMAGE) {
+                String id = template.getId();
+                VirtualMachineCustomImage customImage = ImageMetadataCache.get("customImage", azureCredentialsId,
+                        azureClient.subscriptionId(), Collections.singletonList(id),
+                        () -> azureClient.virtualMachineCustomImages().getById(id));
+                if (customImage != null) {
+                    Map<String, String> imageTags = customImage.tags();
+                    if (imageTags != null) {
+                        String planInfo = imageTags.get("PlanInfo");
+                        String planProduct = imageTags.get("PlanProduct");
+                        String planPublisher = imageTags.get("PlanPublisher");
+
+                        if (StringUtils.isNotBlank(planInfo) && StringUtils.isNotBlank(planProduct)
+                                && StringUtils.isNotBlank(planPublisher)) {
+                            ArrayNode resources = (ArrayNode) tmp.get("resources");
+                            for (JsonNode resource : resources) {
+                                String type = resource.get("type").asText();
+                                if (type.contains("virtualMachine")) {
+                                    ObjectNode planNode = MAPPER.createObjectNode();
+                                    planNode.put("name", planInfo);
+                                    planNode.put("publisher", planPublisher);
+                                    planNode.put("product", planProduct);
+                                    ((ObjectNode) resource).replace("plan", planNode);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        boolean msiEnabled = template.isEnableMSI();
+        boolean uamiEnabled = template.isEnableUAMI();
+
+        boolean osDiskSizeChanged = osDiskSize > 0;
+
+        final AzureAvailabilityType availabilityType = template.getAvailabilityType();
+        final String availabilitySet = availabilityType instanceof AvailabilitySet ?
+                ((AvailabilitySet) availabilityType).getName() : null;
+
+        final String vmssName = availabilityType instanceof VirtualMachineScaleSet ?
+                ((VirtualMachineScaleSet) availabilityType).getName() : null;
+
+        boolean availabilitySetEnabled = availabilitySet != null;
+        boolean availabilityZoneEnabled = availabilityType instanceof AvailabilityZone;
+        boolean vmssEnabled = vmssName != null;
+        boolean isSpecializedImage = false;
+        if (template.getImageReference() != null) {
+            isSpecializedImage = template.getImageReference().getGalleryImageSpecialized();
+        }
+        if (msiEnabled || uamiEnabled || osDiskSizeChanged || availabilitySetEnabled || isSpecializedImage || vmssEnabled || availabilityZoneEnabled) {
+            ArrayNode resources = (ArrayNode) tmp.get("resources");
+            for (JsonNode resource : resources) {
+                String type = resource.get("type").asText();
+                if (type.contains("virtualMachine")) {
+                    // Determine if User assigned, System assigned or both
+                    // types of identity should be requested.
+                    // https://docs.microsoft.com/en-us/rest/api/compute/virtualmachines/createorupdate#resourceidentitytype
+                    if (msiEnabled && uamiEnabled) {
+                        String uamiID = template.getUamiID();
+                        ObjectNode identityNode = MAPPER.createObjectNode();
+                        identityNode.put("type", "SystemAssigned, UserAssigned");
+                        ObjectNode resourceId = MAPPER.createObjectNode();
+                        resourceId.replace(uamiID, MAPPER.createObjectNode());
+                        identityNode.replace("userAssignedIdentities", resourceId);
+
+                        ((ObjectNode) resource).replace("identity", identityNode);
+                    } else if (msiEnabled) {
+                        ObjectNode identityNode = MAPPER.createObjectNode();
+                        identityNode.put("type", "systemAssigned");
+                        ((ObjectNode) resource).replace("identity", identityNode);
+                    } else if (uamiEnabled) {
+                        String uamiID = template.getUamiID();
+                        ObjectNode identityNode = MAPPER.createObjectNode();
+                        identityNode.put("type", "UserAssigned");
+                        ObjectNode resourceId = MAPPER.createObjectNode();
+                        resourceId.replace(uamiID, MAPPER.createObjectNode());
+                        identityNode.replace("userAssignedIdentities", resourceId);
+
+                        ((ObjectNode) resource).replace("identity", identityNode);
+                    }
+
+                    if (osDiskSizeChanged) {
+                        JsonNode jsonNode = resource.get("properties").get("storageProfile").get("osDisk");
+                        ((ObjectNode) jsonNode).replace("diskSizeGB", new IntNode(osDiskSize));
+                    }
+                    if (availabilitySetEnabled) {
+                        ObjectNode availabilitySetNode = MAPPER.createObjectNode();
+                        availabilitySetNode.put("id", String.format(
+                                "[resourceId('Microsoft.Compute/availabilitySets', '%s')]", availabilitySet));
+                        JsonNode propertiesNode = resource.get("properties");
+                        ((ObjectNode) propertiesNode).replace("availabilitySet",
+                                availabilitySetNode);
+                    }
+                    if (vmssEnabled) {
+                        ObjectNode vmssNode = MAPPER.createObjectNode();
+                        vmssNode.put("id", String.format(
+                                "[resourceId('Microsoft.Compute/virtualMachineScaleSets', '%s')]", vmssName));
+                        JsonNode propertiesNode = resource.get("properties");
+                        ((ObjectNode) propertiesNode).replace("virtualMachineScaleSet",
+                                vmssNode);
+                    }
+
+                    if (availabilityZoneEnabled) {
+                        String zone = ((AvailabilityZone) availabilityType).getZone();
+                        if (StringUtils.isNotBlank(zone)) {
+                            if (zone.equals(AvailabilityZone.AZURE_SELECTED)) {
+                                ObjectNode placementNode = MAPPER.createObjectNode();
+                                placementNode.put("zonePlacementPolicy", "Any");
+                                ((ObjectNode) resource).replace("placement", placementNode);
+                            } else {
+                                ArrayNode zonesNode = MAPPER.createArrayNode();
+                                zonesNode.add(zone);
+                                ((ObjectNode) resource).replace("zones", zonesNode);
+                            }
+                        }
+                    }
+
+                    if (isSpecializedImage) {
+                        // For specialized image remove the osProfile from the properties of the VirtualMachine resource
+                        JsonNode propertiesNode = resource.get("properties");
+                       ((ObjectNode) propertiesNode).remove("osProfile");
+                    }
+                }
+            }
+        }
+
+        if (disableWindowsUpdates) {
+            addWindowsConfiguration(tmp);
+        }
+
+        ArrayNode resources = (ArrayNode) tmp.get("resources");
+
+        for (JsonNode resource : resources) {
+            injectCustomTag(resource, tags);
+        }
+
+        copyVariableIfNotBlank(tmp, properties, "imageId");
+        copyVariableIfNotBlank(tmp, properties, "imagePublisher");
+        copyVariableIfNotBlank(tmp, properties, "imageOffer");
+        copyVariableIfNotBlank(tmp, properties, "imageSku");
+        copyVariableIfNotBlank(tmp, properties, "imageVersion");
+        copyVariableIfNotBlank(tmp, properties, "osType");
+        putVariable(tmp, "ephemeralOSDisk", Boolean.toString(ephemeralOSDisk));
+        putVariable(tmp, "encryptionAtHost", Boolean.toString(encryptionAtHost));
+        putVariableIfNotBlank(tmp, "image", template.getImageReference().getUri());
+
+        String imageId = getImageId(properties);
+
+        // Gallery Image is a special case for custom image, reuse the logic of custom image by replacing the imageId here
+        if (!isBasic && referenceType == ImageReferenceType.GALLERY) {
+            GalleryImageVersion galleryImageVersion;
+            String galleryImageVersionStr = template.getImageReference().getGalleryImageVersion();
+            String galleryImageDefinition = template.getImageReference().getGalleryImageDefinition();
+            String gallerySubscriptionId = template.getImageReference().getGallerySubscriptionId();
+            String galleryResourceGroup = template.getImageReference().getGalleryResourceGroup();
+            String galleryName = template.getImageReference().getGalleryName();
+            if (StringUtils.isBlank(galleryImageVersionStr) || StringUtils.isBlank(galleryImageDefinition) ||
+                    StringUtils.isBlank(galleryResourceGroup) || StringUtils.isBlank(galleryName)) {
+                throw AzureCloudException.create("One of gallery name, gallery image version, image definition and image resource group "
+                        + "is blank.");
+            }
+            AzureResourceManager client = AzureResourceManagerCache.get(azureCredentialsId, gallerySubscriptionId);
+            if (client == null) {
+                return null;
+            }
+            galleryImageVersion = ImageMetadataCache.get("galleryImageVersion", azureCredentialsId,
+                    gallerySubscriptionId,
+                    Arrays.asList(galleryResourceGroup, galleryName, galleryImageDefinition, galleryImageVersionStr),
+                    () -> {
+                        if (Constants.VERSION_LATEST.equals(galleryImageVersionStr)) {
+                            return getGalleryImageLatestVersion(galleryResourceGroup,
+                                    galleryName, galleryImageDefinition, client);
+                        }
+                        return client.galleryImageVersions()
+                                .getByGalleryImage(galleryResourceGroup, galleryName,
+                                        galleryImageDefinition, galleryImageVersionStr);
+                    });
+            if (galleryImageVersion == null) {
+                throw AzureCloudException.create("Can not find the right version for the gallery image.");
+            }
+            imageId = galleryImageVersion.id();
+            LOGGER.log(Level.INFO, "Create VM with gallery image id {0}", new Object[]{imageId});
+            putVariableIfNotBlank(tmp, "imageId", imageId);
+
+            Map<String, String> imageTags = galleryImageVersion.tags();
+            if (imageTags != null) {
+                String planInfo = imageTags.get("PlanInfo");
+                String planProduct = imageTags.get("PlanProduct");
+                String planPublisher = imageTags.get("PlanPublisher");
+
+                if (StringUtils.isNotBlank(planInfo) && StringUtils.isNotBlank(planProduct)
+                        && StringUtils.isNotBlank(planPublisher)) {
+                    for (JsonNode resource : resources) {
+                        String type = resource.get("type").asText();
+                        if (type.contains("virtualMachine")) {
+                            ObjectNode planNode = MAPPER.createObjectNode();
+                            planNode.put("name", planInfo);
+                            planNode.put("publisher", planPublisher);
+                            planNode.put("product", planProduct);
+                            ((ObjectNode) resource).replace("plan", planNode);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (imageId != null) {
+            addTagToVm(tmp, "JenkinsImageId", imageId);
+        }
+
+        // With Entra ID the script extension downloads the init script with the managed identity instead of
+        // the storage account key
+        if (useCustomScriptExtension && template.isUseEntraIdForStorageAccount()) {
+            String uamiClientId = azureClient.identities().getById(template.getUamiID()).clientId();
+
+            for (JsonNode resource : resources) {
+                String type = resource.get("type").asText();
+                if (type.contains("virtualMachine")) {
+                    ArrayNode vmResources = (ArrayNode) resource.get("resources");
+                    JsonNode scriptExtension = vmResources.get(0);
+                    ObjectNode scriptExtensionProperties = (ObjectNode) scriptExtension.get("properties");
+                    ObjectNode protectedSettings = (ObjectNode) scriptExtensionProperties.get("protectedSettings");
+                    protectedSettings.remove("storageAccountName");
+                    protectedSettings.remove("storageAccountKey");
+                    ObjectNode clientId = MAPPER.createObjectNode();
+                    clientId.put("clientId", uamiClientId);
+                    protectedSettings.replace("managedIdentity", clientId);
+                }
+            }
+            ObjectNode parameters = (ObjectNode) tmp.get("parameters");
+            parameters.remove("storageAccountKey");
+        }
+
+        putVariable(tmp, "vmSize", template.getVirtualMachineSize());
+
+        putVariableIfNotBlank(tmp, "storageAccountName", storageAccountName);
+        putVariableIfNotBlank(tmp, "storageAccountType", storageAccountType);
+
+        // Network properties.  If the vnet name isn't blank then
+        // then subnet name can't be either (based on verification rules)
+        if (StringUtils.isNotBlank((String) properties.get("virtualNetworkName"))) {
+            copyVariableIfNotBlank(tmp, properties, "virtualNetworkName");
+            copyVariable(tmp, properties, "subnetName");
+            if (StringUtils.isNotBlank((String) properties.get("virtualNetworkResourceGroupName"))) {
+                copyVariable(tmp, properties, "virtualNetworkResourceGroupName");
+            } else {
+                putVariable(tmp, "virtualNetworkResourceGroupName", resourceGroupName);
+            }
+        } else {
+            addDefaultVNetResourceNode(tmp, resourceGroupName, tags);
+        }
+
+        if (template.isSpotInstance()) {
+            addSpotInstance(tmp);
+        }
+        
+        if (template.isTrustedLaunch()) {
+            addTrustedLaunch(tmp);
+        }
+
+        if (!(Boolean) properties.get("usePrivateIP")) {
+            List<String> availabilityZones = new ArrayList<>();
+            if (availabilityType instanceof VirtualMachineScaleSet) {
+                var name = ((VirtualMachineScaleSet) availabilityType).getName();
+
+                availabilityZones = azureClient.virtualMachineScaleSets()
+                        .getByResourceGroup(resourceGroupName, name)
+                        .availabilityZones()
+                        .stream()
+                        .map(ExpandableStringEnum::toString)
+                        .collect(Collectors.toList());
+            }
+
+            addPublicIPResourceNode(tmp, tags, availabilityZones);
+        }
+
+        if (template.isAcceleratedNetworking()) {
+          addAcceleratedNetworking(tmp);
+        }
+
+        if (StringUtils.isNotBlank((String) properties.get("nsgName"))) {
+            addNSGNode(tmp, (String) properties.get("nsgName"));
+        }
+
+        if (useManagedDisk) {
+            addManagedDataDisks(tmp, template.getDataDisks());
+        }
+
+        defineParameter(tmp, "adminUsername", "string");
+        defineParameter(tmp, "authenticationType", "string");
+        defineParameter(tmp, "adminPasswordOrKey", "secureString");
+
+        if (template.getLicenseType() != null && !Constants.NO_LICENSE_TYPE.contains(template.getLicenseType())) {
+            addLicenseType(tmp, template.getLicenseType());
+        }
+
+        return new DeploymentPlan(template, cloudTags, createdAt, properties, useCustomScriptExtension,
+                preInstallSshInWindows, tmp);
+    }
+
+    /**
+     * Returns a private copy of the deployment template for the given configuration. The script extension
+     * not matching the OS is already removed from the cached skeleton, so only deployment specific values
+     * remain to be filled in.
+     */
+    static JsonNode loadDeploymentSkeleton(String templateLocation, boolean useCustomScriptExtension,
+                                           boolean windows) throws IOException {
+        if (!useCustomScriptExtension) {
+            return loadEmbeddedTemplate(templateLocation);
+        }
+        String key = templateLocation + (windows ? "#windows" : "#linux");
+        JsonNode skeleton = PARSED_TEMPLATES.get(key);
+        if (skeleton == null) {
+            skeleton = loadEmbeddedTemplate(templateLocation);
+            ArrayNode resources = (ArrayNode) skeleton.get("resources");
+            for (JsonNode resource : resources) {
+                String type = resource.get("type").asText();
+                if (type.contains("virtualMachine")) {
+                    ArrayNode vmResources = (ArrayNode) resource.get("resources");
+                    vmResources.remove(windows ? 1 : 0);
+                }
+            }
+            PARSED_TEMPLATES.putIfAbsent(key, skeleton);
+        }
+        return skeleton.deepCopy();
+    }
+
+    /**
+     * Returns a private copy of an embedded ARM template or fragment. Each resource is read and parsed once
+     * per class loader, callers get a deep copy they are free to modify.
+     */
+    static JsonNode loadEmbeddedTemplate(String location) throws IOException {
+        JsonNode parsed = PARSED_TEMPLATES.get(location);
+        if (parsed == null) {
+            try (InputStream stream = AzureVMManagementServiceDelegate.class.getResourceAsStream(location)) {
+                if (stream == null) {
+                    throw new FileNotFoundException(location);
+                }
+                parsed = MAPPER.readTree(stream);
+            }
+            PARSED_TEMPLATES.putIfAbsent(location, parsed);
+        }
+        return parsed.deepCopy();
     }
 
     private String getImageId(Map<String, Object> properties) {
@@ -1020,65 +1107,61 @@ public final class AzureVMManagementServiceDelegate {
             List<String> availabilityZones) throws IOException {
 
         final String ipName = "variables('vmName'), copyIndex(), 'IPName'";
-        try (InputStream fragmentStream =
-                     AzureVMManagementServiceDelegate.class.getResourceAsStream(PUBLIC_IP_FRAGMENT_FILENAME)) {
-
-            final ObjectNode publicIPFragment = (ObjectNode) MAPPER.readTree(fragmentStream);
-            if (!availabilityZones.isEmpty()) {
-                ArrayNode zones = MAPPER.createArrayNode();
-                for (String zone : availabilityZones) {
-                    zones.add(zone);
-                }
-                publicIPFragment.set("zones", zones);
-            }
-
-            injectCustomTag(publicIPFragment, tags);
-            // Add the virtual network fragment
-            ((ArrayNode) template.get("resources")).add(publicIPFragment);
-
-            // Because we created/updated this in the template, we need to add the appropriate
-            // dependsOn node to the networkInterface and the ipConfigurations properties
-            // "[concat('Microsoft.Network/publicIPAddresses/', variables('vmName'), copyIndex(), 'IPName')]"
-            // Find the network interfaces node
-            ArrayNode resourcesNodes = (ArrayNode) template.get("resources");
-            Iterator<JsonNode> resourcesNodesIter = resourcesNodes.elements();
-            while (resourcesNodesIter.hasNext()) {
-                JsonNode resourcesNode = resourcesNodesIter.next();
-                JsonNode typeNode = resourcesNode.get("type");
-                if (typeNode == null || !typeNode.asText().equals("Microsoft.Network/networkInterfaces")) {
+        final ObjectNode publicIPFragment = (ObjectNode) loadEmbeddedTemplate(PUBLIC_IP_FRAGMENT_FILENAME);
+        if (!availabilityZones.isEmpty()) {
+            ArrayNode zones = MAPPER.createArrayNode();
+            for (String zone : availabilityZones) {
+                zones.add(zone);
+            }
+            publicIPFragment.set("zones", zones);
+        }
+
+        injectCustomTag(publicIPFragment, tags);
+        // Add the virtual network fragment
+        ((ArrayNode) template.get("resources")).add(publicIPFragment);
+
+        // Because we created/updated this in the template, we need to add the appropriate
+        // dependsOn node to the networkInterface and the ipConfigurations properties
+        // "[concat('Microsoft.Network/publicIPAddresses/', variables('vmName'), copyIndex(), 'IPName')]"
+        // Find the network interfaces node
+        ArrayNode resourcesNodes = (ArrayNode) template.get("resources");
+        Iterator<JsonNode> resourcesNodesIter = resourcesNodes.elements();
+        while (resourcesNodesIter.hasNext()) {
+            JsonNode resourcesNode = resourcesNodesIter.next();
+            JsonNode typeNode = resourcesNode.get("type");
+            if (typeNode == null || !typeNode.asText().equals("Microsoft.Network/networkInterfaces")) {
+                continue;
+            }
+            // Find the dependsOn node
+            ArrayNode dependsOnNode = (ArrayNode) resourcesNode.get("dependsOn");
+            // Add to the depends on node.
+            dependsOnNode.add("[concat('Microsoft.Network/publicIPAddresses/'," + ipName + ")]");
+
+            //Find the ipConfigurations/ipconfig1 node
+            ArrayNode ipConfigurationsNode =
+                    (ArrayNode) resourcesNode.get("properties").get("ipConfigurations");
+            Iterator<JsonNode> ipConfigNodeIter = ipConfigurationsNode.elements();
+            while (ipConfigNodeIter.hasNext()) {
+                JsonNode ipConfigNode = ipConfigNodeIter.next();
+                JsonNode nameNode = ipConfigNode.get("name");
+                if (nameNode == null || !nameNode.asText().equals("ipconfig1")) {
                     continue;
                 }
-                // Find the dependsOn node
-                ArrayNode dependsOnNode = (ArrayNode) resourcesNode.get("dependsOn");
-                // Add to the depends on node.
-                dependsOnNode.add("[concat('Microsoft.Network/publicIPAddresses/'," + ipName + ")]");
-
-                //Find the ipConfigurations/ipconfig1 node
-                ArrayNode ipConfigurationsNode =
-                        (ArrayNode) resourcesNode.get("properties").get("ipConfigurations");
-                Iterator<JsonNode> ipConfigNodeIter = ipConfigurationsNode.elements();
-                while (ipConfigNodeIter.hasNext()) {
-                    JsonNode ipConfigNode = ipConfigNodeIter.next();
-                    JsonNode nameNode = ipConfigNode.get("name");
-                    if (nameNode == null || !nameNode.asText().equals("ipconfig1")) {
-                        continue;
-                    }
-                    //find the properties node
-                    ObjectNode propertiesNode = (ObjectNode) ipConfigNode.get("properties");
-                    //add the publicIPAddress node
-                    ObjectNode publicIPIdNode = MAPPER.createObjectNode();
-                    publicIPIdNode.put("id", "[resourceId('Microsoft.Network/publicIPAddresses', concat("
-                            + ipName
-                            + "))]");
-                    ObjectNode ipAddressPropertiesNode = MAPPER.createObjectNode();
-                    ipAddressPropertiesNode.put("deleteOption", "Delete");
-
-                    publicIPIdNode.set("properties", ipAddressPropertiesNode);
-                    propertiesNode.set("publicIPAddress", publicIPIdNode);
-                    break;
-                }
+                //find the properties node
+                ObjectNode propertiesNode = (ObjectNode) ipConfigNode.get("properties");
+                //add the publicIPAddress node
+                ObjectNode publicIPIdNode = MAPPER.createObjectNode();
+                publicIPIdNode.put("id", "[resourceId('Microsoft.Network/publicIPAddresses', concat("
+                        + ipName
+                        + "))]");
+                ObjectNode ipAddressPropertiesNode = MAPPER.createObjectNode();
+                ipAddressPropertiesNode.put("deleteOption", "Delete");
+
+                publicIPIdNode.set("properties", ipAddressPropertiesNode);
+                propertiesNode.set("publicIPAddress", publicIPIdNode);
                 break;
             }
+            break;
         }
     }
 
@@ -1115,47 +1198,37 @@ public final class AzureVMManagementServiceDelegate {
             JsonNode template,
             String resourceGroupName,
             List<AzureTagPair> tags) throws IOException {
-        InputStream fragmentStream = null;
-        try {
-            // Add the definition of the vnet and subnet into the template
-            final String virtualNetworkName = Constants.DEFAULT_VNET_NAME;
-            final String subnetName = Constants.DEFAULT_SUBNET_NAME;
-            ((ObjectNode) template.get("variables")).put("virtualNetworkName", virtualNetworkName);
-            ((ObjectNode) template.get("variables")).put(
-                    "virtualNetworkResourceGroupName", resourceGroupName);
-            ((ObjectNode) template.get("variables")).put("subnetName", subnetName);
-
-            // Read the vnet fragment
-            fragmentStream = AzureVMManagementServiceDelegate.class.getResourceAsStream(
-                    VIRTUAL_NETWORK_TEMPLATE_FRAGMENT_FILENAME);
-
-            final JsonNode virtualNetworkFragment = MAPPER.readTree(fragmentStream);
-            injectCustomTag(virtualNetworkFragment, tags);
-            // Add the virtual network fragment
-            ((ArrayNode) template.get("resources")).add(virtualNetworkFragment);
-
-            // Because we created/updated this in the template, we need to add the appropriate
-            // dependsOn node to the networkInterface
-            // Microsoft.Network/virtualNetworks/<vnet name>
-            // Find the network interfaces node
-            ArrayNode resourcesNodes = (ArrayNode) template.get("resources");
-            Iterator<JsonNode> resourcesNodesIter = resourcesNodes.elements();
-            while (resourcesNodesIter.hasNext()) {
-                JsonNode resourcesNode = resourcesNodesIter.next();
-                JsonNode typeNode = resourcesNode.get("type");
-                if (typeNode == null || !typeNode.asText().equals("Microsoft.Network/networkInterfaces")) {
-                    continue;
-                }
-                // Find the dependsOn node
-                ArrayNode dependsOnNode = (ArrayNode) resourcesNode.get("dependsOn");
-                // Add to the depends on node.
-                dependsOnNode.add("[concat('Microsoft.Network/virtualNetworks/', variables('virtualNetworkName'))]");
-                break;
-            }
-        } finally {
-            if (fragmentStream != null) {
-                fragmentStream.close();
+        // Add the definition of the vnet and subnet into the template
+        final String virtualNetworkName = Constants.DEFAULT_VNET_NAME;
+        final String subnetName = Constants.DEFAULT_SUBNET_NAME;
+        ((ObjectNode) template.get("variables")).put("virtualNetworkName", virtualNetworkName);
+        ((ObjectNode) template.get("variables")).put(
+                "virtualNetworkResourceGroupName", resourceGroupName);
+        ((ObjectNode) template.get("variables")).put("subnetName", subnetName);
+
+        // Read the vnet fragment
+        final JsonNode virtualNetworkFragment = loadEmbeddedTemplate(VIRTUAL_NETWORK_TEMPLATE_FRAGMENT_FILENAME);
+        injectCustomTag(virtualNetworkFragment, tags);
+        // Add the virtual network fragment
+        ((ArrayNode) template.get("resources")).add(virtualNetworkFragment);
+
+        // Because we created/updated this in the template, we need to add the appropriate
+        // dependsOn node to the networkInterface
+        // Microsoft.Network/virtualNetworks/<vnet name>
+        // Find the network interfaces node
+        ArrayNode resourcesNodes = (ArrayNode) template.get("resources");
+        Iterator<JsonNode> resourcesNodesIter = resourcesNodes.elements();
+        while (resourcesNodesIter.hasNext()) {
+            JsonNode resourcesNode = resourcesNodesIter.next();
+            JsonNode typeNode = resourcesNode.get("type");
+            if (typeNode == null || !typeNode.asText().equals("Microsoft.Network/networkInterfaces")) {
+                continue;
             }
+            // Find the dependsOn node
+            ArrayNode dependsOnNode = (ArrayNode) resourcesNode.get("dependsOn");
+            // Add to the depends on node.
+            dependsOnNode.add("[concat('Microsoft.Network/virtualNetworks/', variables('virtualNetworkName'))]");
+            break;
         }
     }
 
@@ -1204,11 +1277,11 @@ public final class AzureVMManagementServiceDelegate {
         try {
             if (Constants.RESOURCE_GROUP_REFERENCE_TYPE_NEW.equals(resourceGroupReferenceType)) {
                 AzureVMCloud azureVMCloud = template.retrieveAzureCloudReference();
-                createAzureResourceGroup(azureClient, location, resourceGroupName, azureVMCloud.getCloudName());
+                ensureAzureResourceGroup(location, resourceGroupName, azureVMCloud.getCloudName());
             }
 
-            createStorageAccount(
-                    azureClient, targetStorageAccountType, targetStorageAccount, location, resourceGroupName,
+            ensureStorageAccount(
+                    targetStorageAccountType, targetStorageAccount, location, resourceGroupName,
                     template.getTemplateName(), tags
             );
         } catch (Exception e) {
@@ -1226,6 +1299,7 @@ public final class AzureVMManagementServiceDelegate {
             blob.upload(BinaryData.fromString(localInitScript).toStream(), scriptLength, true);
             return blob.getBlobUrl();
         } catch (Exception e) {
+            invalidateCachedResourcesOnError(resourceGroupName, e);
             throw AzureCloudException.create(
                     String.format("Failed to create Page Blob with script's length: %d", scriptLength), e);
         }
@@ -1346,6 +1420,12 @@ public final class AzureVMManagementServiceDelegate {
      * @return True if the agent exists, false otherwise
      */
     public static boolean virtualMachineExists(AzureVMAgent agent) {
+        // A VM seen by the last listing still exists, unless it was deleted by us since then
+        if (agent.getCloudName() != null && VirtualMachineInventory.of(agent.getCloudName()).get(
+                agent.getResourceGroupName(), agent.getNodeName(), System.currentTimeMillis()) != null) {
+            LOGGER.log(Level.FINE, "{0} exists according to the inventory", agent.getNodeName());
+            return true;
+        }
         try {
             AzureVMManagementServiceDelegate delegate = agent.getServiceDelegate();
             if (delegate != null) {
@@ -1987,6 +2067,9 @@ public final class AzureVMManagementServiceDelegate {
             currentRetryCount++;
         }
         LOGGER.log(Level.FINE, "Status {0}", status.toString());
+        if (agent.getCloudName() != null) {
+            VirtualMachineInventory.of(agent.getCloudName()).updateStatus(agent.getNodeName(), status);
+        }
         return !(VMStatus.PROVISIONING_OR_DEPROVISIONING.equals(status)
                 || VMStatus.UPDATING.equals(status)
                 || VMStatus.DEALLOCATING.equals(status)
@@ -2019,13 +2102,12 @@ public final class AzureVMManagementServiceDelegate {
     Map<String, Integer> getVirtualMachineCountsByTemplate(final String cloudName, final String resourceGroupName) {
         final Map<String, Integer> result = new TreeMap<>();
         try {
-            final PagedIterable<VirtualMachine> vms = azureClient.virtualMachines().listByResourceGroup(resourceGroupName);
+            final List<VirtualMachineInventory.Entry> vms = refreshVirtualMachineInventory(cloudName, resourceGroupName);
             final AzureUtil.DeploymentTag deployTag = new AzureUtil.DeploymentTag();
-            for (final VirtualMachine vm : vms) {
-                final Map<String, String> tags = vm.tags();
-                final String resourcesTag = tags.getOrDefault(Constants.AZURE_RESOURCES_TAG_NAME, null);
-                final String cloudTag = tags.getOrDefault(Constants.AZURE_CLOUD_TAG_NAME, null);
-                final String templateTag = tags.getOrDefault(Constants.AZURE_TEMPLATE_TAG_NAME, null);
+            for (final VirtualMachineInventory.Entry vm : vms) {
+                final String resourcesTag = vm.getDeploymentTag();
+                final String cloudTag = vm.getCloudTag();
+                final String templateTag = vm.getTemplateName();
                 if (resourcesTag == null || cloudTag == null || !deployTag.isFromSameInstance(new AzureUtil.DeploymentTag(resourcesTag))) {
                     continue; // not a VM we created so don't count it
                 }
@@ -2051,6 +2133,19 @@ public final class AzureVMManagementServiceDelegate {
         return result;
     }
 
+    /**
+     * Lists the VMs of the resource group once and rebuilds the inventory of the cloud with them.
+     *
+     * @return The listed VMs
+     */
+    List<VirtualMachineInventory.Entry> refreshVirtualMachineInventory(
+            String cloudName, String resourceGroupName) throws AzureCloudException {
+        final List<VirtualMachineInventory.Entry> entries =
+                InventoryBackend.create(azureClient).listVirtualMachines(resourceGroupName);
+        VirtualMachineInventory.of(cloudName).refresh(resourceGroupName, entries, System.currentTimeMillis());
+        return entries;
+    }
+
     /**
      * Shutdowns Azure virtual machine.
      *
@@ -2080,6 +2175,9 @@ public final class AzureVMManagementServiceDelegate {
                     agent.getTemplate().isUseEntraIdForStorageAccount()
             );
         }
+        if (agent.getCloudName() != null) {
+            VirtualMachineInventory.of(agent.getCloudName()).remove(agent.getNodeName());
+        }
     }
 
     /**
@@ -2093,55 +2191,135 @@ public final class AzureVMManagementServiceDelegate {
             final String resourceGroupName,
             boolean isUseEntraIdForStorageAccount) throws AzureCloudException {
         try {
-            if (virtualMachineExists(vmName, resourceGroupName)) {
-                List<URI> diskUrisToRemove = new ArrayList<>();
-                List<String> diskIdToRemove = new ArrayList<>();
-                if (!azureClient.virtualMachines().getByResourceGroup(resourceGroupName, vmName).isManagedDiskEnabled()) {
-                    // Mark OS disk for removal
-                    diskUrisToRemove.add(new URI(
-                            azureClient.virtualMachines()
-                                    .getByResourceGroup(resourceGroupName, vmName)
-                                    .osUnmanagedDiskVhdUri()));
-                } else {
-                    diskIdToRemove.add(azureClient.virtualMachines().getByResourceGroup(resourceGroupName, vmName).osDiskId());
-                }
-                // TODO: Remove data disks or add option to do so?
-
-                // Remove the VM
-                LOGGER.log(Level.INFO, "Removing virtual machine {0}", vmName);
-                azureClient.virtualMachines().deleteByResourceGroup(resourceGroupName, vmName);
+            terminateVirtualMachineAsync(vmName, resourceGroupName, isUseEntraIdForStorageAccount).join();
+        } catch (RuntimeException e) {
+            Throwable cause = CompletableFutures.unwrap(e);
+            LOGGER.log(Level.WARNING, "Exception while deleting VM", cause);
+            // Check if VM is already deleted: if VM is already deleted then just ignore exception.
+            if (!Constants.ERROR_CODE_RESOURCE_NF.equalsIgnoreCase(cause.getMessage())) {
+                throw AzureCloudException.create(cause instanceof Exception ? (Exception) cause : e);
+            }
+        }
+    }
 
-                // Now remove the disks
-                for (URI diskUri : diskUrisToRemove) {
-                    this.removeStorageBlob(diskUri, resourceGroupName, azureCredentialsId, isUseEntraIdForStorageAccount);
-                }
-                for (String id : diskIdToRemove) {
-                    LOGGER.log(Level.INFO, "Removing managed disk with id: {0}", id);
-                    azureClient.disks().deleteById(id);
-                }
+    /**
+     * Starts terminating a virtual machine. The VM is read once, then deleted, then its OS disk and the image
+     * created for its deployment are deleted concurrently.
+     *
+     * @param vmName            VM name
+     * @param resourceGroupName Resource group containing the VM
+     * @return Future completed once the VM and its disk and image are gone
+     */
+    CompletableFuture<Void> terminateVirtualMachineAsync(
+            final String vmName,
+            final String resourceGroupName,
+            boolean isUseEntraIdForStorageAccount) {
+        return azureClient.virtualMachines().getByResourceGroupAsync(resourceGroupName, vmName).toFuture()
+                .exceptionally(e -> {
+                    Throwable cause = CompletableFutures.unwrap(e);
+                    if (cause instanceof ManagementException
+                            && ((ManagementException) cause).getResponse().getStatusCode() == 404) {
+                        return null;
+                    }
+                    throw new CompletionException(cause);
+                })
+                .thenCompose(vm -> {
+                    if (vm == null) {
+                        LOGGER.log(Level.INFO, "{0} doesn't exist", vmName);
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return deleteVirtualMachine(vm, resourceGroupName, isUseEntraIdForStorageAccount);
+                });
+    }
 
-                //If used managed Disk with custom vhd, we need to delete the temporary image.
-                if (!diskIdToRemove.isEmpty()) {
-                    removeImage(azureClient, vmName, resourceGroupName);
-                }
+    private CompletableFuture<Void> deleteVirtualMachine(
+            VirtualMachine vm,
+            String resourceGroupName,
+            boolean isUseEntraIdForStorageAccount) {
+        final String vmName = vm.name();
+        final boolean managedDisk = vm.isManagedDiskEnabled();
+        final String osDiskId = managedDisk ? vm.osDiskId() : null;
+        final String osDiskUri = managedDisk ? null : vm.osUnmanagedDiskVhdUri();
+        // If used managed Disk with custom vhd, we need to delete the temporary image.
+        final String imageId = managedDisk ? getDeploymentImageId(vm, resourceGroupName) : null;
+        // TODO: Remove data disks or add option to do so?
+
+        LOGGER.log(Level.INFO, "Removing virtual machine {0}", vmName);
+        return azureClient.virtualMachines().deleteByIdAsync(vm.id()).toFuture().thenCompose(ignored -> {
+            List<CompletableFuture<Void>> deletions = new ArrayList<>();
+            if (osDiskUri != null) {
+                deletions.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        removeStorageBlob(new URI(osDiskUri), resourceGroupName, azureCredentialsId,
+                                isUseEntraIdForStorageAccount);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, AzureVMThreadPools.get(AzureVMThreadPools.Workload.CLEANUP)));
             }
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Exception while deleting VM", e);
-            // Check if VM is already deleted: if VM is already deleted then just ignore exception.
-            if (!Constants.ERROR_CODE_RESOURCE_NF.equalsIgnoreCase(e.getMessage())) {
-                throw AzureCloudException.create(e);
+            if (osDiskId != null) {
+                LOGGER.log(Level.INFO, "Removing managed disk with id: {0}", osDiskId);
+                deletions.add(azureClient.disks().deleteByIdAsync(osDiskId).toFuture());
+            }
+            if (imageId != null) {
+                LOGGER.log(Level.INFO, "Removing image with id: {0}", imageId);
+                deletions.add(azureClient.virtualMachineCustomImages().deleteByIdAsync(imageId).toFuture());
             }
+            return CompletableFuture.allOf(deletions.toArray(new CompletableFuture[0]));
+        });
+    }
+
+    /**
+     * Returns the image the VM was created from when it is the image created by its deployment, as opposed to
+     * a custom image or gallery image configured in the template.
+     */
+    private static String getDeploymentImageId(VirtualMachine vm, String resourceGroupName) {
+        if (vm.innerModel().storageProfile() == null
+                || vm.innerModel().storageProfile().imageReference() == null) {
+            return null;
+        }
+        String imageId = vm.innerModel().storageProfile().imageReference().id();
+        if (imageId == null
+                || !StringUtils.containsIgnoreCase(imageId, "/providers/Microsoft.Compute/images/")
+                || !resourceGroupName.equalsIgnoreCase(ResourceUtils.groupFromResourceId(imageId))) {
+            return null;
         }
+        return isDeploymentImage(vm.name(), ResourceUtils.nameFromResourceId(imageId)) ? imageId : null;
     }
 
+    /**
+     * Whether the image is the one the templates create for the deployment of the VM, named after the base name
+     * of the VMs of the deployment: VM {@code <base><index>} uses image {@code <base>Image}.
+     */
+    static boolean isDeploymentImage(String vmName, String imageName) {
+        if (vmName == null || imageName == null || !imageName.endsWith(DEPLOYMENT_IMAGE_SUFFIX)) {
+            return false;
+        }
+        String baseName = imageName.substring(0, imageName.length() - DEPLOYMENT_IMAGE_SUFFIX.length());
+        return !baseName.isEmpty() && vmName.length() > baseName.length() && vmName.startsWith(baseName)
+                && StringUtils.isNumeric(vmName.substring(baseName.length()));
+    }
+
+    /**
+     * Removes the image created by the deployment of a VM. The candidate image names are derived from the VM
+     * name and read directly instead of listing the images of the resource group.
+     */
     public void removeImage(AzureResourceManager azureClient, String vmName, String resourceGroupName) {
-        PagedIterable<VirtualMachineCustomImage> customImages =
-                azureClient.virtualMachineCustomImages().listByResourceGroup(resourceGroupName);
-        for (VirtualMachineCustomImage image : customImages) {
-            String prefix = StringUtils.substringBefore(image.name(), "Image");
-            if (StringUtils.contains(vmName, prefix)) {
+        for (int i = vmName.length() - 1; i > 0 && Character.isDigit(vmName.charAt(i)); i--) {
+            String imageName = vmName.substring(0, i) + DEPLOYMENT_IMAGE_SUFFIX;
+            VirtualMachineCustomImage image;
+            try {
+                image = azureClient.virtualMachineCustomImages().getByResourceGroup(resourceGroupName, imageName);
+            } catch (ManagementException e) {
+                if (e.getResponse().getStatusCode() == 404) {
+                    continue;
+                }
+                throw e;
+            }
+            if (image != null) {
                 LOGGER.log(Level.INFO, "Removing image with name: {0}", image.name());
                 azureClient.virtualMachineCustomImages().deleteById(image.id());
+                return;
             }
         }
     }
@@ -2411,7 +2589,8 @@ public final class AzureVMManagementServiceDelegate {
         verificationTaskList.add(callVerifyNSG);
 
         try {
-            for (Future<String> validationResult : AzureVMCloud.getThreadPool().invokeAll(verificationTaskList)) {
+            for (Future<String> validationResult : AzureVMThreadPools.get(AzureVMThreadPools.Workload.VERIFICATION)
+                    .invokeAll(verificationTaskList)) {
                 try {
                     // Get will block until time expires or until task completes
                     final int timeoutInSeconds = 60;
@@ -2425,8 +2604,8 @@ public final class AzureVMManagementServiceDelegate {
                     errors.add(others.getMessage() + others);
                 }
             }
-        } catch (InterruptedException interruptedException) {
-            errors.add("Exception occurred while validating template " + interruptedException);
+        } catch (InterruptedException | RejectedExecutionException e) {
+            errors.add("Exception occurred while validating template " + e);
         }
     }
 
@@ -2789,6 +2968,65 @@ public final class AzureVMManagementServiceDelegate {
         return Constants.OP_SUCCESS;
     }
 
+    /**
+     * Makes sure the resource group exists. Its creation is only attempted again once the cache entry expired.
+     */
+    private void ensureAzureResourceGroup(String locationName, String resourceGroupName, String cloudName)
+            throws AzureCloudException {
+        AzureResourceCache.get(AzureResourceCache.RESOURCE_GROUP, azureCredentialsId, azureClient.subscriptionId(),
+                resourceGroupName, resourceGroupName, () -> {
+                    createAzureResourceGroup(azureClient, locationName, resourceGroupName, cloudName);
+                    return Boolean.TRUE;
+                });
+    }
+
+    /**
+     * Makes sure the storage account exists and returns it, from the cache if it was recently verified.
+     */
+    private StorageAccount ensureStorageAccount(
+            String targetStorageAccountType,
+            String targetStorageAccount,
+            String location,
+            String resourceGroupName,
+            String templateName,
+            List<AzureTagPair> tags) throws AzureCloudException {
+        return AzureResourceCache.get(AzureResourceCache.STORAGE_ACCOUNT, azureCredentialsId,
+                azureClient.subscriptionId(), resourceGroupName, targetStorageAccount, () -> {
+                    createStorageAccount(azureClient, targetStorageAccountType, targetStorageAccount, location,
+                            resourceGroupName, templateName, tags);
+                    return getStorageAccount(azureClient, targetStorageAccount, resourceGroupName);
+                });
+    }
+
+    /**
+     * Returns the first key of the storage account, from the cache if it was recently fetched.
+     */
+    private String getStorageAccountKey(String resourceGroupName, String storageAccountName)
+            throws AzureCloudException {
+        return AzureResourceCache.get(AzureResourceCache.STORAGE_ACCOUNT_KEY, azureCredentialsId,
+                azureClient.subscriptionId(), resourceGroupName, storageAccountName, () -> {
+                    List<StorageAccountKey> storageKeys = azureClient.storageAccounts()
+                            .getByResourceGroup(resourceGroupName, storageAccountName)
+                            .getKeys();
+                    if (storageKeys.isEmpty()) {
+                        throw AzureCloudException.create(
+                                "Exception occurred while fetching the storage account key");
+                    }
+                    return storageKeys.get(0).value();
+                });
+    }
+
+    /**
+     * Forgets the cached resources of the resource group if Azure reports one of them as missing or forbidden.
+     */
+    private void invalidateCachedResourcesOnError(String resourceGroupName, Exception e) {
+        if (AzureResourceCache.isNotFoundOrForbidden(e)) {
+            LOGGER.log(Level.INFO, "Invalidating cached resources of resource group {0}: {1}",
+                    new Object[]{resourceGroupName, e.getMessage()});
+            AzureResourceCache.invalidate(azureCredentialsId, azureClient.subscriptionId(), resourceGroupName);
+        }
+    }
+
     /**
      * Create Azure resource Group.
      *
@@ -2960,7 +3198,15 @@ public final class AzureVMManagementServiceDelegate {
         if (storageKeys.isEmpty()) {
             throw AzureCloudException.create("Exception occurred while fetching the storage account key");
         }
+        return getCloudStorageAccount(
+                storageAccount, storageKeys.get(0).value(), credentialsId, isUseEntraIdForStorageAccount);
+    }
 
+    private static BlobServiceClient getCloudStorageAccount(
+            StorageAccount storageAccount,
+            String storageAccountKey,
+            String credentialsId,
+            boolean isUseEntraIdForStorageAccount) throws AzureCloudException {
         String blobSuffix = storageAccount.endPoints().primary().blob().toLowerCase();
         LOGGER.log(Level.FINE,
                 "The suffix for construct CloudStorageCloud is {0}",
@@ -2973,7 +3219,6 @@ public final class AzureVMManagementServiceDelegate {
                 return BlobServiceClientCache.get(credentialsId, blobSuffix);
             }
 
-            String storageAccountKey = storageKeys.get(0).value();
             return new BlobServiceClientBuilder()
                     .credential(new StorageSharedKeyCredential(storageAccount.name(), storageAccountKey))
                     .endpoint(blobSuffix)
@@ -3017,15 +3262,14 @@ public final class AzureVMManagementServiceDelegate {
     )
             throws AzureCloudException {
 
-        StorageAccount storageAccount;
-        try {
-            storageAccount = azureClient.storageAccounts()
-                    .getByResourceGroup(resourceGroupName, targetStorageAccount);
-        } catch (Exception e) {
-            throw AzureCloudException.create(e);
-        }
+        StorageAccount storageAccount = AzureResourceCache.get(AzureResourceCache.STORAGE_ACCOUNT, azureCredentialsId,
+                azureClient.subscriptionId(), resourceGroupName, targetStorageAccount,
+                () -> getStorageAccount(azureClient, targetStorageAccount, resourceGroupName));
+        String storageAccountKey = isUseEntraIdForStorageAccount
+                ? null : getStorageAccountKey(resourceGroupName, targetStorageAccount);
 
-        BlobServiceClient account = getCloudStorageAccount(storageAccount, credentialsId, isUseEntraIdForStorageAccount);
+        BlobServiceClient account = getCloudStorageAccount(
+                storageAccount, storageAccountKey, credentialsId, isUseEntraIdForStorageAccount);
         return getCloudBlobContainer(account, blobContainerName);
     }
 
@@ -0,0 +1,150 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the phases of the clean up concurrently, each one within its own time budget.
+ * <p>
+ * A phase is one kind of clean up for one scope, e.g. the leaked resources of one cloud, so a slow or
+ * throttled subscription only delays its own phases. A phase exceeding its budget is cancelled and the other
+ * phases are not affected. A phase still running from a previous run, including one cancelled but ignoring the
+ * interruption, is not started again; the time of the
+ * last successful completion of each phase is kept to report phases that keep failing.
+ */
+final class CleanUpPhases {
+
+    private static final Logger LOGGER = Logger.getLogger(CleanUpPhases.class.getName());
+
+    private final ExecutorService executor;
+
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    private final Map<String, Long> lastCompleted = new ConcurrentHashMap<>();
+
+    private final List<Phase> submitted = new ArrayList<>();
+
+    CleanUpPhases(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Starts a phase, unless the same phase is still running.
+     *
+     * @param name          Name of the phase, unique per scope
+     * @param budgetMillis  Time after which the phase is cancelled
+     * @param action        Clean up to run
+     * @return true if the phase was started
+     */
+    synchronized boolean submit(String name, long budgetMillis, Runnable action) {
+        // Cleared by the phase itself: a cancelled future is done while its thread may still be running
+        if (!running.add(name)) {
+            LOGGER.log(Level.INFO, "Clean up of {0} is still running, not starting it again", name);
+            return false;
+        }
+        final long start = System.currentTimeMillis();
+        final AtomicBoolean started = new AtomicBoolean();
+        final Future<?> future;
+        try {
+            future = executor.submit(() -> {
+                if (!started.compareAndSet(false, true)) {
+                    // Cancelled before it started, the marker was cleared on cancellation
+                    return;
+                }
+                try {
+                    action.run();
+                    lastCompleted.put(name, System.currentTimeMillis());
+                    LOGGER.log(Level.FINE, "Clean up of {0} completed in {1} ms",
+                            new Object[]{name, System.currentTimeMillis() - start});
+                } finally {
+                    running.remove(name);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.remove(name);
+            LOGGER.log(Level.WARNING, "Cannot start clean up of " + name, e);
+            return false;
+        }
+        submitted.add(new Phase(name, start + budgetMillis, future, started));
+        return true;
+    }
+
+    /**
+     * Waits for the phases started so far, cancelling those exceeding their budget.
+     */
+    void awaitAll() throws InterruptedException {
+        final List<Phase> phases;
+        synchronized (this) {
+            phases = new ArrayList<>(submitted);
+            submitted.clear();
+        }
+        for (Phase phase : phases) {
+            try {
+                phase.future.get(Math.max(0, phase.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                phase.future.cancel(true);
+                if (phase.started.compareAndSet(false, true)) {
+                    // Never started, nothing is left to clear the marker
+                    running.remove(phase.name);
+                }
+                Long last = lastCompleted.get(phase.name);
+                LOGGER.log(Level.WARNING, "Clean up of {0} exceeded its time budget and was cancelled, "
+                        + "last completed {1}", new Object[]{phase.name, last == null ? "never" : new Date(last)});
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Clean up of " + phase.name + " failed", e.getCause());
+            } catch (CancellationException e) {
+                LOGGER.log(Level.FINE, "Clean up of {0} was cancelled", phase.name);
+            }
+        }
+    }
+
+    Long getLastCompleted(String name) {
+        return lastCompleted.get(name);
+    }
+
+    private static final class Phase {
+        private final String name;
+
+        private final long deadline;
+
+        private final Future<?> future;
+
+        private final AtomicBoolean started;
+
+        Phase(String name, long deadline, Future<?> future, AtomicBoolean started) {
+            this.name = name;
+            this.deadline = deadline;
+            this.future = future;
+            this.started = started;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the deployments waiting to be cleaned up.
+ * <p>
+ * Each change (deployment registered, removed, or failed delete attempt) is appended as one record made of its
+ * length, a CRC32 checksum and its payload, and forced to disk, so registering a deployment costs the same
+ * whatever the number of deployments tracked. Replaying the journal applies the records in order and stops at
+ * the first incomplete or corrupted record, which is what a crash in the middle of an append leaves behind;
+ * that tail is truncated before appending again. The journal keeps the live deployments it recorded, whether
+ * they are waiting in the schedule or being checked, and once it holds many more records than live
+ * deployments it is compacted: the live deployments are written to a new file which atomically replaces the
+ * journal.
+ */
+final class DeploymentJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentJournal.class.getName());
+
+    private static final byte ADDED = 1;
+
+    private static final byte REMOVED = 2;
+
+    private static final byte ATTEMPTED = 3;
+
+    private static final int HEADER_BYTES = Integer.BYTES + Integer.BYTES;
+
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+    private static final int COMPACTION_MIN_RECORDS = 1000;
+
+    private final Path file;
+
+    private FileChannel channel;
+
+    private int records;
+
+    private final Map<String, AzureVMAgentCleanUpTask.DeploymentInfo> live = new LinkedHashMap<>();
+
+    DeploymentJournal(Path file) {
+        this.file = file;
+    }
+
+    boolean exists() {
+        return Files.exists(file);
+    }
+
+    /**
+     * Reads the deployments recorded in the journal and opens it for appending.
+     *
+     * @return The live deployments, in registration order
+     */
+    synchronized List<AzureVMAgentCleanUpTask.DeploymentInfo> replay() throws IOException {
+        Map<String, AzureVMAgentCleanUpTask.DeploymentInfo> deployments = new LinkedHashMap<>();
+        long validLength = 0;
+        int replayed = 0;
+        if (Files.exists(file)) {
+            ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file));
+            while (content.remaining() >= HEADER_BYTES) {
+                int length = content.getInt();
+                int checksum = content.getInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES || length > content.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                content.get(payload);
+                if (checksum != checksum(payload)) {
+                    break;
+                }
+                try {
+                    apply(deployments, payload);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Unreadable record in " + file, e);
+                    break;
+                }
+                validLength = content.position();
+                replayed++;
+            }
+            if (validLength < content.capacity()) {
+                LOGGER.log(Level.WARNING, "Discarding {0} bytes of incomplete records at the end of {1}",
+                        new Object[]{content.capacity() - validLength, file});
+            }
+        }
+        open();
+        channel.truncate(validLength);
+        channel.position(validLength);
+        records = replayed;
+        live.clear();
+        live.putAll(deployments);
+        return new ArrayList<>(deployments.values());
+    }
+
+    synchronized void added(AzureVMAgentCleanUpTask.DeploymentInfo info) throws IOException {
+        live.put(keyOf(info), info);
+        append(encode(ADDED, info));
+    }
+
+    synchronized void removed(AzureVMAgentCleanUpTask.DeploymentInfo info) throws IOException {
+        live.remove(keyOf(info));
+        append(encode(REMOVED, info));
+    }
+
+    synchronized void attempted(AzureVMAgentCleanUpTask.DeploymentInfo info) throws IOException {
+        // The given deployment carries the attempts remaining written on compaction
+        live.computeIfPresent(keyOf(info), (key, previous) -> info);
+        append(encode(ATTEMPTED, info));
+    }
+
+    /**
+     * Compacts the journal if it has grown well beyond the live deployments.
+     *
+     * @return true if the journal was compacted
+     */
+    synchronized boolean compactIfNeeded() throws IOException {
+        if (records < COMPACTION_MIN_RECORDS || records < 2 * live.size()) {
+            return false;
+        }
+        compact();
+        return true;
+    }
+
+    /**
+     * Replaces the live deployments, e.g. with those migrated from another store, and compacts the journal.
+     */
+    synchronized void replaceAll(Collection<AzureVMAgentCleanUpTask.DeploymentInfo> deployments)
+            throws IOException {
+        live.clear();
+        for (AzureVMAgentCleanUpTask.DeploymentInfo info : deployments) {
+            live.put(keyOf(info), info);
+        }
+        compact();
+    }
+
+    /**
+     * Replaces the journal with one record per live deployment.
+     */
+    synchronized void compact() throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        int written = 0;
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (AzureVMAgentCleanUpTask.DeploymentInfo info : live.values()) {
+                write(out, encode(ADDED, info));
+                written++;
+            }
+            out.force(true);
+        }
+        close();
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+        LOGGER.log(Level.FINE, "Compacted {0} from {1} to {2} records", new Object[]{file, records, written});
+        records = written;
+    }
+
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void open() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+    }
+
+    private void append(byte[] payload) throws IOException {
+        open();
+        write(channel, payload);
+        channel.force(false);
+        records++;
+    }
+
+    private static void write(FileChannel out, byte[] payload) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        record.putInt(payload.length).putInt(checksum(payload)).put(payload).flip();
+        while (record.hasRemaining()) {
+            out.write(record);
+        }
+    }
+
+    private static String keyOf(AzureVMAgentCleanUpTask.DeploymentInfo info) {
+        return AzureVMAgentCleanUpTask.DeploymentInfo.keyOf(info.getResourceGroupName(), info.getDeploymentName());
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(byte type, AzureVMAgentCleanUpTask.DeploymentInfo info) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeUTF(info.getResourceGroupName());
+            out.writeUTF(info.getDeploymentName());
+            if (type == ADDED) {
+                out.writeUTF(info.getCloudName());
+                out.writeBoolean(info.getScriptUri() != null);
+                out.writeUTF(info.getScriptUri() == null ? "" : info.getScriptUri());
+                out.writeInt(info.getAttemptsRemaining());
+                out.writeBoolean(info.isUseEntraIdForStorageAccount());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void apply(Map<String, AzureVMAgentCleanUpTask.DeploymentInfo> deployments, byte[] payload)
+            throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            byte type = in.readByte();
+            String resourceGroupName = in.readUTF();
+            String deploymentName = in.readUTF();
+            String key = AzureVMAgentCleanUpTask.DeploymentInfo.keyOf(resourceGroupName, deploymentName);
+            switch (type) {
+                case ADDED:
+                    String cloudName = in.readUTF();
+                    boolean hasScriptUri = in.readBoolean();
+                    String scriptUri = in.readUTF();
+                    int attemptsRemaining = in.readInt();
+                    boolean useEntraId = in.readBoolean();
+                    deployments.put(key, new AzureVMAgentCleanUpTask.DeploymentInfo(cloudName, resourceGroupName,
+                            deploymentName, hasScriptUri ? scriptUri : null, attemptsRemaining, useEntraId));
+                    break;
+                case REMOVED:
+                    deployments.remove(key);
+                    break;
+                case ATTEMPTED:
+                    AzureVMAgentCleanUpTask.DeploymentInfo info = deployments.get(key);
+                    if (info != null) {
+                        info.decrementAttemptsRemaining();
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown journal record type " + type);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.microsoft.azure.vmagent.util.TemplateUtil;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * ARM deployment template of an agent template with everything derived from its configuration already applied:
+ * the embedded template choice, identity, availability, image and purchase plan, tags, network and disks.
+ * <p>
+ * Plans are kept per cloud and template name. A plan is reused as long as the template configuration is the
+ * same (see {@link TemplateUtil#checkSameDeployment}) and it is younger than
+ * {@code com.microsoft.azure.vmagent.DeploymentPlan.maxAgeMinutes} (60 by default), so that "latest" image
+ * versions and other values read from Azure are eventually refreshed. Each deployment then only fills in its
+ * names, count and secrets on a copy of the plan.
+ */
+final class DeploymentPlan {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentPlan.class.getName());
+
+    private static final long DEFAULT_MAX_AGE_MINUTES = 60;
+
+    private static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(SystemProperties.getLong(
+            DeploymentPlan.class.getName() + ".maxAgeMinutes", DEFAULT_MAX_AGE_MINUTES));
+
+    private static final Map<String, DeploymentPlan> PLANS = new ConcurrentHashMap<>();
+
+    private final AzureVMAgentTemplate template;
+
+    private final List<AzureTagPair> cloudTags;
+
+    private final long createdAt;
+
+    private final Map<String, Object> properties;
+
+    private final boolean useCustomScriptExtension;
+
+    private final boolean preInstallSshInWindows;
+
+    private final JsonNode deploymentTemplate;
+
+    DeploymentPlan(
+            AzureVMAgentTemplate template,
+            List<AzureTagPair> cloudTags,
+            long createdAt,
+            Map<String, Object> properties,
+            boolean useCustomScriptExtension,
+            boolean preInstallSshInWindows,
+            JsonNode deploymentTemplate) {
+        this.template = template;
+        this.cloudTags = cloudTags == null ? null : new ArrayList<>(cloudTags);
+        this.createdAt = createdAt;
+        this.properties = Collections.unmodifiableMap(properties);
+        this.useCustomScriptExtension = useCustomScriptExtension;
+        this.preInstallSshInWindows = preInstallSshInWindows;
+        this.deploymentTemplate = deploymentTemplate;
+    }
+
+    /**
+     * Returns the plan cached for the template if it still applies to its configuration.
+     *
+     * @param template Template about to be deployed
+     * @return The plan, or null if it has to be built again
+     */
+    static DeploymentPlan getCached(AzureVMAgentTemplate template) {
+        String key = keyOf(template);
+        DeploymentPlan plan = PLANS.get(key);
+        if (plan == null) {
+            return null;
+        }
+        if (!plan.isValidFor(template, System.currentTimeMillis())) {
+            LOGGER.log(Level.FINE, "Deployment plan of {0} is outdated", key);
+            PLANS.remove(key, plan);
+            return null;
+        }
+        return plan;
+    }
+
+    static void cache(AzureVMAgentTemplate template, DeploymentPlan plan) {
+        PLANS.put(keyOf(template), plan);
+    }
+
+    /**
+     * Drops the plan of the template, e.g. after a failed deployment, so the next one is built from scratch.
+     */
+    static void invalidate(AzureVMAgentTemplate template) {
+        if (template.retrieveAzureCloudReference() != null) {
+            PLANS.remove(keyOf(template));
+        }
+    }
+
+    boolean isValidFor(AzureVMAgentTemplate candidate, long now) {
+        if (now - createdAt >= MAX_AGE_MILLIS) {
+            return false;
+        }
+        List<AzureTagPair> candidateCloudTags = candidate.retrieveAzureCloudReference().getCloudTags();
+        if (!Objects.equals(cloudTags, candidateCloudTags)) {
+            return false;
+        }
+        return candidate == template || TemplateUtil.checkSameDeployment(template, candidate);
+    }
+
+    /**
+     * Returns a copy of the planned ARM template, free to be completed for a single deployment.
+     */
+    JsonNode newDeploymentTemplate() {
+        return deploymentTemplate.deepCopy();
+    }
+
+    Map<String, Object> getProperties() {
+        return properties;
+    }
+
+    boolean isUseCustomScriptExtension() {
+        return useCustomScriptExtension;
+    }
+
+    boolean isPreInstallSshInWindows() {
+        return preInstallSshInWindows;
+    }
+
+    private static String keyOf(AzureVMAgentTemplate template) {
+        return template.retrieveAzureCloudReference().getCloudName() + "/" + template.getTemplateName();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Deployments waiting to be cleaned up, ordered by the earliest time they may be deleted.
+ * <p>
+ * A deployment can be deleted once it is older than the timeout matching its provisioning state. The
+ * deployments are kept in one queue per kind of state (not final yet, succeeded, failed or canceled), each
+ * ordered by creation time, so the due deployments are found by looking at the heads of the queues only,
+ * whatever timeouts are used. Deployments whose state was never read or was still changing (e.g. Running or
+ * Accepted) are due once older than the shortest timeout, so they are read again rather than kept for the
+ * timeout of failed deployments.
+ */
+final class DeploymentSchedule {
+
+    private static final Comparator<AzureVMAgentCleanUpTask.DeploymentInfo> BY_TIMESTAMP =
+            Comparator.comparingLong(AzureVMAgentCleanUpTask.DeploymentInfo::getTimestampMillis);
+
+    private final PriorityQueue<AzureVMAgentCleanUpTask.DeploymentInfo> unknown = new PriorityQueue<>(BY_TIMESTAMP);
+
+    private final PriorityQueue<AzureVMAgentCleanUpTask.DeploymentInfo> succeeded = new PriorityQueue<>(BY_TIMESTAMP);
+
+    private final PriorityQueue<AzureVMAgentCleanUpTask.DeploymentInfo> failed = new PriorityQueue<>(BY_TIMESTAMP);
+
+    synchronized void add(AzureVMAgentCleanUpTask.DeploymentInfo info) {
+        queueOf(info).add(info);
+    }
+
+    /**
+     * Removes and returns the deployments that may be deleted by now.
+     *
+     * @param now                   Current time
+     * @param successTimeoutMillis  Age after which a successful deployment is deleted
+     * @param failTimeoutMillis     Age after which a failed or canceled deployment is deleted
+     * @return The due deployments, to be checked and added back if they are kept
+     */
+    synchronized List<AzureVMAgentCleanUpTask.DeploymentInfo> pollDue(
+            long now, long successTimeoutMillis, long failTimeoutMillis) {
+        List<AzureVMAgentCleanUpTask.DeploymentInfo> due = new ArrayList<>();
+        pollDue(unknown, now - Math.min(successTimeoutMillis, failTimeoutMillis), due);
+        pollDue(succeeded, now - successTimeoutMillis, due);
+        pollDue(failed, now - failTimeoutMillis, due);
+        return due;
+    }
+
+    synchronized List<AzureVMAgentCleanUpTask.DeploymentInfo> snapshot() {
+        List<AzureVMAgentCleanUpTask.DeploymentInfo> all = new ArrayList<>(size());
+        all.addAll(unknown);
+        all.addAll(succeeded);
+        all.addAll(failed);
+        return all;
+    }
+
+    synchronized int size() {
+        return unknown.size() + succeeded.size() + failed.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private static void pollDue(PriorityQueue<AzureVMAgentCleanUpTask.DeploymentInfo> queue, long createdBefore,
+                                List<AzureVMAgentCleanUpTask.DeploymentInfo> due) {
+        while (!queue.isEmpty() && queue.peek().getTimestampMillis() < createdBefore) {
+            due.add(queue.poll());
+        }
+    }
+
+    private PriorityQueue<AzureVMAgentCleanUpTask.DeploymentInfo> queueOf(AzureVMAgentCleanUpTask.DeploymentInfo info) {
+        String state = info.getProvisioningState();
+        if ("succeeded".equalsIgnoreCase(state)) {
+            return succeeded;
+        }
+        if ("failed".equalsIgnoreCase(state) || "canceled".equalsIgnoreCase(state)) {
+            return failed;
+        }
+        return unknown;
+    }
+}
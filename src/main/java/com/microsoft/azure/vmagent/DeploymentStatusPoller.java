@@ -0,0 +1,359 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import static com.microsoft.azure.vmagent.util.Constants.MILLIS_IN_SECOND;
+
+import com.azure.core.management.exception.ManagementError;
+import com.azure.resourcemanager.AzureResourceManager;
+import com.azure.resourcemanager.resources.models.Deployment;
+import com.azure.resourcemanager.resources.models.DeploymentOperation;
+import com.azure.resourcemanager.resources.models.StatusMessage;
+import com.microsoft.azure.vmagent.exceptions.AzureCloudException;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Watches the operations of a single ARM deployment on behalf of every VM waiting for it.
+ * <p>
+ * The operation list is fetched once per tick and the state of each VM is fanned out to the future of its
+ * waiter, so a deployment of N VMs costs one ARM read per tick instead of N. The polling interval starts
+ * short and backs off while no operation changes state.
+ */
+public final class DeploymentStatusPoller {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentStatusPoller.class.getName());
+
+    static final long MIN_INTERVAL_MILLIS = 2 * MILLIS_IN_SECOND;
+
+    static final long MAX_INTERVAL_MILLIS = 30 * MILLIS_IN_SECOND;
+
+    private static final double BACKOFF_MULTIPLIER = 1.5;
+
+    private static final int POLLER_THREADS = 2;
+
+    private static final Map<String, DeploymentStatusPoller> POLLERS = new HashMap<>();
+
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Source of the VM operations of a deployment; one call per tick.
+     */
+    interface OperationsFetcher {
+        List<VmOperation> fetch() throws Exception;
+    }
+
+    /**
+     * State of the deployment operation targeting a single virtual machine.
+     */
+    static final class VmOperation {
+        private final String resourceName;
+
+        private final String resourceType;
+
+        private final String state;
+
+        private final String statusMessage;
+
+        VmOperation(String resourceName, String resourceType, String state, String statusMessage) {
+            this.resourceName = resourceName;
+            this.resourceType = resourceType;
+            this.state = state;
+            this.statusMessage = statusMessage;
+        }
+
+        boolean isSucceeded() {
+            return "succeeded".equalsIgnoreCase(state);
+        }
+
+        boolean isInProgress() {
+            return state == null || "creating".equalsIgnoreCase(state) || "running".equalsIgnoreCase(state);
+        }
+    }
+
+    private static final class Waiter {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private final long deadline;
+
+        private final int timeoutInSeconds;
+
+        Waiter(long deadline, int timeoutInSeconds) {
+            this.deadline = deadline;
+            this.timeoutInSeconds = timeoutInSeconds;
+        }
+    }
+
+    private final String key;
+
+    private final String deploymentName;
+
+    private final OperationsFetcher fetcher;
+
+    private final Map<String, Waiter> waiters = new HashMap<>();
+
+    private final Map<String, String> lastStates = new HashMap<>();
+
+    private long intervalMillis = MIN_INTERVAL_MILLIS;
+
+    private boolean scheduled;
+
+    DeploymentStatusPoller(String key, String deploymentName, OperationsFetcher fetcher) {
+        this.key = key;
+        this.deploymentName = deploymentName;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Returns a future that completes once the deployment operation of the given VM has succeeded, or
+     * completes exceptionally with an {@link AzureCloudException} if it failed, the deployment could not be
+     * read or the timeout elapsed.
+     *
+     * @param resourceGroupName Resource group containing the deployment
+     * @param deploymentName    Name of the deployment
+     * @param vmName            Name of the VM to wait for
+     * @param timeoutInSeconds  Maximum time to wait for the VM
+     * @param clientSupplier    Supplies the client used for each poll
+     * @return Future completed when the VM is available
+     */
+    public static CompletableFuture<Void> watch(
+            String resourceGroupName,
+            String deploymentName,
+            String vmName,
+            int timeoutInSeconds,
+            Supplier<AzureResourceManager> clientSupplier) {
+        String key = resourceGroupName + "/" + deploymentName;
+        long deadline = System.currentTimeMillis() + (long) timeoutInSeconds * MILLIS_IN_SECOND;
+
+        synchronized (DeploymentStatusPoller.class) {
+            DeploymentStatusPoller poller = POLLERS.get(key);
+            if (poller == null) {
+                poller = new DeploymentStatusPoller(key, deploymentName,
+                        armFetcher(resourceGroupName, deploymentName, clientSupplier));
+                POLLERS.put(key, poller);
+                LOGGER.log(Level.FINE, "Started status poller for deployment {0}", deploymentName);
+            }
+            CompletableFuture<Void> future = poller.register(vmName, deadline, timeoutInSeconds);
+            poller.scheduleNextIfIdle();
+            return future;
+        }
+    }
+
+    /**
+     * Number of deployments currently being polled.
+     */
+    public static synchronized int getActivePollerCount() {
+        return POLLERS.size();
+    }
+
+    synchronized CompletableFuture<Void> register(String vmName, long deadline, int timeoutInSeconds) {
+        String name = vmName.toLowerCase(Locale.ENGLISH);
+        Waiter waiter = waiters.get(name);
+        if (waiter == null) {
+            waiter = new Waiter(deadline, timeoutInSeconds);
+            waiters.put(name, waiter);
+        }
+        return waiter.future;
+    }
+
+    synchronized int getWaiterCount() {
+        return waiters.size();
+    }
+
+    synchronized long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Fetches the operation list once and completes the futures of all waiters whose VM reached a final
+     * state or whose timeout elapsed.
+     */
+    void tick() {
+        List<VmOperation> operations;
+        try {
+            operations = fetcher.fetch();
+        } catch (AzureCloudException e) {
+            failAll(e);
+            return;
+        } catch (Exception e) {
+            failAll(AzureCloudException.create(e));
+            return;
+        }
+
+        synchronized (this) {
+            boolean progressed = false;
+            Map<String, VmOperation> byName = new HashMap<>();
+            for (VmOperation operation : operations) {
+                String name = operation.resourceName.toLowerCase(Locale.ENGLISH);
+                byName.put(name, operation);
+                String previous = lastStates.put(name, operation.state);
+                if (previous == null || !previous.equalsIgnoreCase(String.valueOf(operation.state))) {
+                    progressed = true;
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<String, Waiter>> it = waiters.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Waiter> entry = it.next();
+                Waiter waiter = entry.getValue();
+                VmOperation operation = byName.get(entry.getKey());
+                if (operation != null && operation.isSucceeded()) {
+                    LOGGER.log(Level.FINE, "VM available: {0}", operation.resourceName);
+                    waiter.future.complete(null);
+                    it.remove();
+                } else if (operation != null && !operation.isInProgress()) {
+                    waiter.future.completeExceptionally(AzureCloudException.create(
+                            String.format("Deployment %s: %s:%s - %s", operation.state,
+                                    operation.resourceType, operation.resourceName, operation.statusMessage)));
+                    it.remove();
+                } else if (now >= waiter.deadline) {
+                    waiter.future.completeExceptionally(AzureCloudException.create(String.format(
+                            "Deployment %s failed, max timeout reached (%d seconds)",
+                            deploymentName, waiter.timeoutInSeconds)));
+                    it.remove();
+                } else if (operation != null) {
+                    LOGGER.log(Level.FINE, "Deployment {0} not yet finished ({1}): {2}:{3}",
+                            new Object[]{deploymentName, operation.state, operation.resourceType,
+                                    operation.resourceName});
+                }
+            }
+
+            if (progressed) {
+                intervalMillis = MIN_INTERVAL_MILLIS;
+            } else {
+                intervalMillis = Math.min(MAX_INTERVAL_MILLIS, (long) (intervalMillis * BACKOFF_MULTIPLIER));
+            }
+        }
+    }
+
+    private synchronized void failAll(AzureCloudException e) {
+        for (Waiter waiter : waiters.values()) {
+            waiter.future.completeExceptionally(e);
+        }
+        waiters.clear();
+    }
+
+    /**
+     * Delay until the next tick: the current interval, shortened so that the earliest deadline is honoured.
+     */
+    private synchronized long nextDelayMillis() {
+        long delay = intervalMillis;
+        long now = System.currentTimeMillis();
+        for (Waiter waiter : waiters.values()) {
+            delay = Math.min(delay, Math.max(0, waiter.deadline - now));
+        }
+        return delay;
+    }
+
+    private void scheduleNextIfIdle() {
+        synchronized (this) {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        getScheduler().schedule(this::run, nextDelayMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void run() {
+        try {
+            tick();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Unexpected error while polling deployment " + deploymentName, e);
+            failAll(AzureCloudException.create(e));
+        }
+
+        synchronized (DeploymentStatusPoller.class) {
+            synchronized (this) {
+                scheduled = false;
+                if (waiters.isEmpty()) {
+                    POLLERS.remove(key, this);
+                    LOGGER.log(Level.FINE, "Stopped status poller for deployment {0}", deploymentName);
+                    return;
+                }
+            }
+            scheduleNextIfIdle();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newScheduledThreadPool(POLLER_THREADS,
+                    new NamingThreadFactory(new DaemonThreadFactory(), "AzureVMAgents.DeploymentStatusPoller"));
+        }
+        return scheduler;
+    }
+
+    private static OperationsFetcher armFetcher(
+            String resourceGroupName,
+            String deploymentName,
+            Supplier<AzureResourceManager> clientSupplier) {
+        return () -> {
+            // Resolve the client on every tick because the config may expire while
+            // in this long running operation
+            AzureResourceManager azureClient = clientSupplier.get();
+            Deployment dep = azureClient.deployments().getByResourceGroup(resourceGroupName, deploymentName);
+            // Might find no deployment.
+            if (dep == null) {
+                throw AzureCloudException.create(String.format("Could not find deployment %s", deploymentName));
+            }
+
+            List<VmOperation> operations = new ArrayList<>();
+            for (DeploymentOperation op : dep.deploymentOperations().list()) {
+                if (op.targetResource() == null
+                        || !op.targetResource().resourceType().contains("virtualMachine")) {
+                    continue;
+                }
+                operations.add(new VmOperation(
+                        op.targetResource().resourceName(),
+                        op.targetResource().resourceType(),
+                        op.provisioningState(),
+                        getStatusMessage(op.statusCode(), op.statusMessage())));
+            }
+            return operations;
+        };
+    }
+
+    @Restricted(NoExternalUse.class)
+    static String getStatusMessage(String statusCode, Object statusMessage) {
+        String finalStatusMessage = statusCode;
+
+        if (statusMessage != null) {
+            if (statusMessage instanceof StatusMessage) {
+                ManagementError error = ((StatusMessage) statusMessage).error();
+                finalStatusMessage += " - " + error.getMessage();
+            } else {
+                finalStatusMessage += " - " + statusMessage;
+            }
+        }
+        return finalStatusMessage;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import com.azure.resourcemanager.AzureResourceManager;
+import com.microsoft.azure.vmagent.exceptions.AzureCloudException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jenkins.util.SystemProperties;
+
+/**
+ * Bulk queries over the resources of a resource group, used to count VMs, build the
+ * {@link VirtualMachineInventory} and find leaked resources.
+ * <p>
+ * By default the resource group is listed through the paged ARM endpoints. Setting
+ * {@code com.microsoft.azure.vmagent.InventoryBackend.resourceGraph} to {@code true} issues a single Azure
+ * Resource Graph query per listing instead, which also returns the power state of the VMs.
+ */
+interface InventoryBackend {
+
+    /**
+     * Lists the virtual machines of the resource group.
+     */
+    List<VirtualMachineInventory.Entry> listVirtualMachines(String resourceGroup) throws AzureCloudException;
+
+    /**
+     * Lists the resources of the resource group carrying the deployment tag of the plugin.
+     */
+    List<TaggedResource> listTaggedResources(String resourceGroup) throws AzureCloudException;
+
+    static InventoryBackend create(AzureResourceManager azureClient) {
+        InventoryBackend arm = new ArmInventoryBackend(azureClient);
+        if (SystemProperties.getBoolean(InventoryBackend.class.getName() + ".resourceGraph")) {
+            return new ResourceGraphInventoryBackend(azureClient, arm);
+        }
+        return arm;
+    }
+
+    /**
+     * Identity, type and tags of a resource.
+     */
+    final class TaggedResource {
+        private final String id;
+
+        private final String name;
+
+        private final String type;
+
+        private final Map<String, String> tags;
+
+        TaggedResource(String id, String name, String type, Map<String, String> tags) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.tags = tags == null ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(tags));
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        public Map<String, String> tags() {
+            return tags;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import com.microsoft.azure.vmagent.util.CompletableFutures;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Deletes leaked resources, grouping them by the VM they were deployed with.
+ * <p>
+ * The resources of a deployment are named after their VM ({@code <vm>}, {@code <vm>NIC}, {@code <vm>IPName},
+ * ...), and a VM has to be gone before its network interface, which has to be gone before its public IP. Each
+ * group is deleted in that order, while groups are deleted concurrently, at most
+ * {@code com.microsoft.azure.vmagent.LeakedResourceDeleter.parallelism} (8 by default) at a time.
+ * <p>
+ * Deletions in flight are remembered across clean up runs: a run that stops waiting before everything is gone
+ * leaves them running, and the next run joins them instead of deleting the same resources again.
+ */
+final class LeakedResourceDeleter {
+
+    private static final Logger LOGGER = Logger.getLogger(LeakedResourceDeleter.class.getName());
+
+    private static final int DEFAULT_PARALLELISM = 8;
+
+    static final int PARALLELISM = Math.max(1, SystemProperties.getInteger(
+            LeakedResourceDeleter.class.getName() + ".parallelism", DEFAULT_PARALLELISM));
+
+    private static final Map<String, CompletableFuture<Void>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    private static final int VIRTUAL_MACHINE_PRIORITY = 1;
+
+    private static final int NETWORK_INTERFACE_PRIORITY = 2;
+
+    private static final int IP_ADDRESS_PRIORITY = 3;
+
+    private static final int OTHER_PRIORITY = 4;
+
+    private static final Comparator<InventoryBackend.TaggedResource> DELETION_ORDER =
+            Comparator.comparingInt(LeakedResourceDeleter::getPriority);
+
+    private final Function<InventoryBackend.TaggedResource, CompletableFuture<Void>> deletion;
+
+    private final int parallelism;
+
+    /**
+     * @param deletion    Starts the deletion of a single resource, completing once it is gone
+     * @param parallelism Maximum number of groups deleted at the same time
+     */
+    LeakedResourceDeleter(Function<InventoryBackend.TaggedResource, CompletableFuture<Void>> deletion,
+                          int parallelism) {
+        this.deletion = deletion;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Starts deleting the resources.
+     *
+     * @return Future completed once every group was processed. Failures are logged, not reported.
+     */
+    CompletableFuture<Void> deleteAll(Collection<InventoryBackend.TaggedResource> resources) {
+        Queue<List<InventoryBackend.TaggedResource>> groups = new ConcurrentLinkedQueue<>(group(resources));
+        int workers = Math.min(parallelism, groups.size());
+        List<CompletableFuture<Void>> drains = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            drains.add(drain(groups));
+        }
+        return CompletableFuture.allOf(drains.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Splits the resources into groups owned by the same VM, each sorted in deletion order. Resources not named
+     * after one of the VMs get a group of their own.
+     */
+    static List<List<InventoryBackend.TaggedResource>> group(Collection<InventoryBackend.TaggedResource> resources) {
+        List<String> vmNames = new ArrayList<>();
+        for (InventoryBackend.TaggedResource resource : resources) {
+            if (isVirtualMachine(resource)) {
+                vmNames.add(resource.name());
+            }
+        }
+        // Longest names first so that vm10NIC belongs to vm10 rather than vm1
+        vmNames.sort(Comparator.comparingInt(String::length).reversed());
+
+        Map<String, List<InventoryBackend.TaggedResource>> groups = new LinkedHashMap<>();
+        for (InventoryBackend.TaggedResource resource : resources) {
+            String owner = resource.id();
+            for (String vmName : vmNames) {
+                if (StringUtils.startsWith(resource.name(), vmName)) {
+                    owner = vmName;
+                    break;
+                }
+            }
+            groups.computeIfAbsent(owner, key -> new ArrayList<>()).add(resource);
+        }
+        List<List<InventoryBackend.TaggedResource>> result = new ArrayList<>(groups.values());
+        for (List<InventoryBackend.TaggedResource> group : result) {
+            group.sort(DELETION_ORDER);
+        }
+        return result;
+    }
+
+    static int inFlight() {
+        return IN_FLIGHT.size();
+    }
+
+    private CompletableFuture<Void> drain(Queue<List<InventoryBackend.TaggedResource>> groups) {
+        List<InventoryBackend.TaggedResource> group = groups.poll();
+        if (group == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return deleteGroup(group, 0).thenCompose(ignored -> drain(groups));
+    }
+
+    private CompletableFuture<Void> deleteGroup(List<InventoryBackend.TaggedResource> group, int index) {
+        if (index >= group.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        InventoryBackend.TaggedResource resource = group.get(index);
+        return delete(resource).handle((ignored, e) -> {
+            if (e == null) {
+                return true;
+            }
+            // What comes next in the group likely depends on this resource, retry the group on the next run
+            LOGGER.log(Level.WARNING, "Failed to clean resource " + resource.name()
+                    + ", skipping the " + (group.size() - index - 1) + " remaining resources of its group",
+                    CompletableFutures.unwrap(e));
+            return false;
+        }).thenCompose(deleted -> deleted ? deleteGroup(group, index + 1) : CompletableFuture.completedFuture(null));
+    }
+
+    private CompletableFuture<Void> delete(InventoryBackend.TaggedResource resource) {
+        CompletableFuture<Void> future = IN_FLIGHT.computeIfAbsent(resource.id(), id -> {
+            LOGGER.log(Level.FINE, "Deleting leaked resource {0}", resource.name());
+            CompletableFuture<Void> started;
+            try {
+                started = deletion.apply(resource);
+            } catch (RuntimeException e) {
+                started = CompletableFuture.failedFuture(e);
+            }
+            return started;
+        });
+        future.whenComplete((ignored, e) -> IN_FLIGHT.remove(resource.id(), future));
+        return future;
+    }
+
+    static boolean isVirtualMachine(InventoryBackend.TaggedResource resource) {
+        return StringUtils.containsIgnoreCase(resource.type(), "virtualMachine");
+    }
+
+    private static int getPriority(InventoryBackend.TaggedResource resource) {
+        final String type = resource.type();
+        if (isVirtualMachine(resource)) {
+            return VIRTUAL_MACHINE_PRIORITY;
+        }
+        if (StringUtils.containsIgnoreCase(type, "networkInterface")) {
+            return NETWORK_INTERFACE_PRIORITY;
+        }
+        if (StringUtils.containsIgnoreCase(type, "IPAddress")) {
+            return IP_ADDRESS_PRIORITY;
+        }
+        return OTHER_PRIORITY;
+    }
+}
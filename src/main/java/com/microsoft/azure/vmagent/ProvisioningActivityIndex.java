@@ -0,0 +1,80 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.cloudstats.ProvisioningActivity;
+
+/**
+ * Provisioning activities of the planned nodes of the Azure clouds.
+ * <p>
+ * An activity is tracked from the creation of its planned node, and for a grace period after the node
+ * future completed, while Jenkins adds the node and moves the activity past the provisioning phase. An
+ * activity still provisioning that is not tracked was lost, e.g. across a restart.
+ */
+final class ProvisioningActivityIndex {
+
+    private static final ProvisioningActivityIndex INSTANCE = new ProvisioningActivityIndex();
+
+    static final long GRACE_PERIOD_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final long IN_FLIGHT = -1;
+
+    private final Map<ProvisioningActivity.Id, Long> finishedAt = new ConcurrentHashMap<>();
+
+    static ProvisioningActivityIndex get() {
+        return INSTANCE;
+    }
+
+    void started(ProvisioningActivity.Id id) {
+        finishedAt.put(id, IN_FLIGHT);
+    }
+
+    void finished(ProvisioningActivity.Id id, long now) {
+        finishedAt.replace(id, IN_FLIGHT, now);
+    }
+
+    boolean isTracked(ProvisioningActivity.Id id, long now) {
+        Long finished = finishedAt.get(id);
+        return finished != null && (finished == IN_FLIGHT || now - finished < GRACE_PERIOD_MILLIS);
+    }
+
+    /**
+     * Forgets the activities finished for longer than the grace period.
+     */
+    void prune(long now) {
+        finishedAt.values().removeIf(finished -> finished != IN_FLIGHT && now - finished >= GRACE_PERIOD_MILLIS);
+    }
+
+    /**
+     * @return Number of activities whose node future has not completed yet
+     */
+    int inFlight() {
+        int count = 0;
+        for (Long finished : finishedAt.values()) {
+            if (finished == IN_FLIGHT) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return finishedAt.size();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import com.azure.core.http.HttpHeaderName;
+import com.azure.core.http.HttpMethod;
+import com.azure.core.http.HttpPipeline;
+import com.azure.core.http.HttpRequest;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.util.Context;
+import com.azure.resourcemanager.AzureResourceManager;
+import com.azure.resourcemanager.resources.ResourceManager;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.azure.vmagent.exceptions.AzureCloudException;
+import com.microsoft.azure.vmagent.util.Constants;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Lists resources with Azure Resource Graph: one query per listing, filtered on the deployment tag of the plugin
+ * and paged by 1000 rows, instead of paging through every resource of the resource group.
+ * <p>
+ * The query is sent through the HTTP pipeline of the ARM client, so it uses the same credentials, retry policy
+ * and proxy settings. Resource Graph is eventually consistent and may not be enabled for every cloud, so any
+ * failure falls back to the ARM backend.
+ */
+final class ResourceGraphInventoryBackend implements InventoryBackend {
+
+    private static final Logger LOGGER = Logger.getLogger(ResourceGraphInventoryBackend.class.getName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String API_PATH = "providers/Microsoft.ResourceGraph/resources?api-version=2021-03-01";
+
+    private static final int PAGE_SIZE = 1000;
+
+    private static final String VIRTUAL_MACHINES_QUERY = "Resources"
+            + " | where type =~ 'microsoft.compute/virtualmachines'"
+            + " | where resourceGroup =~ '%s' and isnotnull(tags['" + Constants.AZURE_RESOURCES_TAG_NAME + "'])"
+            + " | project id, name, tags,"
+            + " provisioningState = tostring(properties.provisioningState),"
+            + " powerState = tostring(properties.extended.instanceView.powerState.code),"
+            + " osDiskId = tostring(properties.storageProfile.osDisk.managedDisk.id),"
+            + " osDiskVhdUri = tostring(properties.storageProfile.osDisk.vhd.uri)";
+
+    private static final String TAGGED_RESOURCES_QUERY = "Resources"
+            + " | where resourceGroup =~ '%s' and isnotnull(tags['" + Constants.AZURE_RESOURCES_TAG_NAME + "'])"
+            + " | project id, name, type, tags";
+
+    private final AzureResourceManager azureClient;
+
+    private final InventoryBackend fallback;
+
+    ResourceGraphInventoryBackend(AzureResourceManager azureClient, InventoryBackend fallback) {
+        this.azureClient = azureClient;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public List<VirtualMachineInventory.Entry> listVirtualMachines(String resourceGroup)
+            throws AzureCloudException {
+        try {
+            List<VirtualMachineInventory.Entry> entries = new ArrayList<>();
+            for (JsonNode row : query(String.format(VIRTUAL_MACHINES_QUERY, escape(resourceGroup)))) {
+                entries.add(parseVirtualMachine(row));
+            }
+            return entries;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Resource Graph query for the VMs of " + resourceGroup
+                    + " failed, listing them through ARM", e);
+            return fallback.listVirtualMachines(resourceGroup);
+        }
+    }
+
+    @Override
+    public List<TaggedResource> listTaggedResources(String resourceGroup) throws AzureCloudException {
+        try {
+            List<TaggedResource> resources = new ArrayList<>();
+            for (JsonNode row : query(String.format(TAGGED_RESOURCES_QUERY, escape(resourceGroup)))) {
+                resources.add(parseTaggedResource(row));
+            }
+            return resources;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Resource Graph query for the resources of " + resourceGroup
+                    + " failed, listing them through ARM", e);
+            return fallback.listTaggedResources(resourceGroup);
+        }
+    }
+
+    private List<JsonNode> query(String kql) throws Exception {
+        ResourceManager manager = azureClient.genericResources().manager();
+        HttpPipeline pipeline = manager.httpPipeline();
+        String url = StringUtils.appendIfMissing(manager.serviceClient().getEndpoint(), "/") + API_PATH;
+
+        List<JsonNode> rows = new ArrayList<>();
+        String skipToken = null;
+        do {
+            HttpRequest request = new HttpRequest(HttpMethod.POST, url)
+                    .setHeader(HttpHeaderName.CONTENT_TYPE, "application/json")
+                    .setBody(MAPPER.writeValueAsString(requestBody(azureClient.subscriptionId(), kql, skipToken)));
+            JsonNode page;
+            try (HttpResponse response = pipeline.sendSync(request, Context.NONE)) {
+                String body = response.getBodyAsBinaryData().toString();
+                if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+                    throw AzureCloudException.create("Resource Graph query failed with status "
+                            + response.getStatusCode() + ": " + body);
+                }
+                page = MAPPER.readTree(body);
+            }
+            page.path("data").forEach(rows::add);
+            skipToken = page.path("$skipToken").asText(null);
+        } while (skipToken != null);
+        return rows;
+    }
+
+    static ObjectNode requestBody(String subscriptionId, String kql, String skipToken) {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.putArray("subscriptions").add(subscriptionId);
+        body.put("query", kql);
+        ObjectNode options = body.putObject("options");
+        options.put("resultFormat", "objectArray");
+        options.put("$top", PAGE_SIZE);
+        if (skipToken != null) {
+            options.put("$skipToken", skipToken);
+        }
+        return body;
+    }
+
+    static VirtualMachineInventory.Entry parseVirtualMachine(JsonNode row) {
+        String powerState = text(row, "powerState");
+        String osDiskId = text(row, "osDiskId");
+        return new VirtualMachineInventory.Entry(
+                text(row, "name"),
+                text(row, "id"),
+                tags(row),
+                text(row, "provisioningState"),
+                powerState == null ? null : AzureVMManagementServiceDelegate.VMStatus.fromString(powerState),
+                osDiskId != null,
+                osDiskId,
+                text(row, "osDiskVhdUri"));
+    }
+
+    static TaggedResource parseTaggedResource(JsonNode row) {
+        return new TaggedResource(text(row, "id"), text(row, "name"), text(row, "type"), tags(row));
+    }
+
+    private static String text(JsonNode row, String field) {
+        return StringUtils.defaultIfEmpty(row.path(field).asText(null), null);
+    }
+
+    private static Map<String, String> tags(JsonNode row) {
+        Map<String, String> tags = new HashMap<>();
+        Iterator<Map.Entry<String, JsonNode>> it = row.path("tags").fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> tag = it.next();
+            tags.put(tag.getKey(), tag.getValue().asText());
+        }
+        return tags;
+    }
+
+    private static String escape(String value) {
+        return value.replace("'", "\\'");
+    }
+}
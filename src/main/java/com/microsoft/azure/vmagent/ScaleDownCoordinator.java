@@ -0,0 +1,288 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import com.microsoft.azure.vmagent.util.AsyncPermits;
+import com.microsoft.azure.vmagent.util.AzureVMThreadPools;
+import com.microsoft.azure.vmagent.util.CleanUpAction;
+import com.microsoft.azure.vmagent.util.CompletableFutures;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.jvnet.localizer.Localizable;
+
+/**
+ * Collects the agents deleted on idle timeout during a short window and deprovisions them as one batch.
+ * <p>
+ * Agents reaching their idle timeout together, e.g. at the end of a burst of builds, are batched for
+ * {@code com.microsoft.azure.vmagent.ScaleDownCoordinator.windowMillis} (2000 by default). A batch runs the
+ * terminate scripts of its agents concurrently, then deletes their VMs through the asynchronous teardown of
+ * {@link AzureVMManagementServiceDelegate}, at most
+ * {@code com.microsoft.azure.vmagent.ScaleDownCoordinator.maxConcurrentDeletes} (20 by default) at a time
+ * across all batches so a storm stays within the ARM write limits. The stages of each agent are chained
+ * futures, so a batch holds no thread while its agents are deleted and batches may overlap. The approximate
+ * VM count of each template is adjusted once per batch. An agent whose deletion fails is left to the clean up
+ * task, like an agent whose deprovisioning failed before.
+ */
+final class ScaleDownCoordinator {
+
+    private static final Logger LOGGER = Logger.getLogger(ScaleDownCoordinator.class.getName());
+
+    private static final long DEFAULT_WINDOW_MILLIS = 2000;
+
+    private static final int DEFAULT_MAX_CONCURRENT_DELETES = 20;
+
+    private static final long WINDOW_MILLIS = SystemProperties.getLong(
+            ScaleDownCoordinator.class.getName() + ".windowMillis", DEFAULT_WINDOW_MILLIS);
+
+    private static final int MAX_CONCURRENT_DELETES = Math.max(1, SystemProperties.getInteger(
+            ScaleDownCoordinator.class.getName() + ".maxConcurrentDeletes", DEFAULT_MAX_CONCURRENT_DELETES));
+
+    private static final AsyncPermits DELETES = new AsyncPermits(MAX_CONCURRENT_DELETES);
+
+    private static ScaleDownCoordinator instance;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final long windowMillis;
+
+    private final Consumer<List<Request>> processor;
+
+    private final Map<String, Request> pending = new LinkedHashMap<>();
+
+    private final Map<String, Request> running = new ConcurrentHashMap<>();
+
+    ScaleDownCoordinator(ScheduledExecutorService scheduler, long windowMillis, Consumer<List<Request>> processor) {
+        this.scheduler = scheduler;
+        this.windowMillis = windowMillis;
+        this.processor = processor;
+    }
+
+    static synchronized ScaleDownCoordinator get() {
+        if (instance == null) {
+            instance = new ScaleDownCoordinator(Timer.get(), WINDOW_MILLIS, ScaleDownCoordinator::deprovision);
+        }
+        return instance;
+    }
+
+    /**
+     * Queues the agent for deletion with the next batch. Queuing an agent already queued or being deleted
+     * returns the pending deletion.
+     *
+     * @return Future completed once the agent is deprovisioned, or failed if it could not be
+     */
+    CompletableFuture<Void> submit(AzureVMAgent agent, Localizable reason) {
+        return submit(agent.getNodeName(), agent, reason);
+    }
+
+    synchronized CompletableFuture<Void> submit(String name, AzureVMAgent agent, Localizable reason) {
+        Request existing = running.get(name);
+        if (existing == null) {
+            existing = pending.get(name);
+        }
+        if (existing != null) {
+            return existing.result;
+        }
+        if (pending.isEmpty()) {
+            scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        Request request = new Request(name, agent, reason);
+        pending.put(name, request);
+        return request.result;
+    }
+
+    /**
+     * @return true if the agent is waiting for the next batch or being deprovisioned
+     */
+    synchronized boolean isHandling(String name) {
+        return pending.containsKey(name) || running.containsKey(name);
+    }
+
+    void flush() {
+        final List<Request> batch;
+        synchronized (this) {
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+            for (Request request : batch) {
+                running.put(request.name, request);
+                request.result.whenComplete((ignored, e) -> running.remove(request.name, request));
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            processor.accept(batch);
+        } catch (RuntimeException e) {
+            for (Request request : batch) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Starts deprovisioning a batch of agents. Every stage runs on the {@link AzureVMThreadPools.Workload#RETRY}
+     * pool or completes with the Azure calls, so no thread waits for the batch to finish.
+     */
+    private static void deprovision(List<Request> batch) {
+        try {
+            startDeprovisioning(batch);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to deprovision a batch of " + batch.size() + " idle agents", e);
+            for (Request request : batch) {
+                fail(request, e);
+            }
+        }
+    }
+
+    private static void startDeprovisioning(List<Request> batch) {
+        final long start = System.currentTimeMillis();
+        final Executor executor = AzureVMThreadPools.get(AzureVMThreadPools.Workload.RETRY);
+        LOGGER.log(Level.INFO, "Deprovisioning a batch of {0} idle agents", batch.size());
+
+        final Map<AzureVMCloud, Map<AzureVMAgentTemplate, Integer>> deletedByCloud = new HashMap<>();
+        final AtomicInteger deleted = new AtomicInteger();
+        List<CompletableFuture<Void>> deprovisioned = new ArrayList<>();
+        for (Request request : batch) {
+            final AzureVMAgent agent = request.agent;
+            // Terminate scripts and disconnection only involve the agent itself
+            CompletableFuture<Boolean> prepared;
+            try {
+                prepared = CompletableFuture.supplyAsync(() -> agent.prepareDeprovision(request.reason), executor);
+            } catch (RuntimeException e) {
+                prepared = CompletableFuture.failedFuture(e);
+            }
+            deprovisioned.add(prepared.thenCompose(ready -> {
+                if (!ready) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return terminate(agent, executor).thenApplyAsync(ignored -> remove(agent, deletedByCloud), executor);
+            }).handle((removed, e) -> {
+                if (e == null) {
+                    if (removed) {
+                        deleted.incrementAndGet();
+                    }
+                    request.result.complete(null);
+                } else {
+                    Throwable cause = CompletableFutures.unwrap(e);
+                    LOGGER.log(Level.WARNING, String.format("Exception occurred while deprovisioning %s",
+                            request.name), cause);
+                    fail(request, cause);
+                }
+                return null;
+            }));
+        }
+
+        CompletableFuture.allOf(deprovisioned.toArray(new CompletableFuture[0])).whenComplete((ignored, e) -> {
+            synchronized (deletedByCloud) {
+                deletedByCloud.forEach((cloud, byTemplate) -> byTemplate.forEach(
+                        (template, count) -> cloud.adjustApproximateVirtualMachineCount(-count, template)));
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            LOGGER.log(Level.INFO, "Deprovisioned {0} of {1} idle agents in {2} ms ({3} agents per minute)",
+                    new Object[]{deleted.get(), batch.size(), elapsed,
+                            deleted.get() * TimeUnit.MINUTES.toMillis(1) / elapsed});
+        });
+    }
+
+    private static boolean remove(AzureVMAgent agent,
+                                  Map<AzureVMCloud, Map<AzureVMAgentTemplate, Integer>> deletedByCloud) {
+        LOGGER.log(Level.INFO, "{0} has been deprovisioned. Remove node ...", agent.getDisplayName());
+        AzureVMCloud cloud = agent.getCloud();
+        if (cloud != null) {
+            synchronized (deletedByCloud) {
+                deletedByCloud.computeIfAbsent(cloud, key -> new HashMap<>())
+                        .merge(agent.getTemplate(), 1, Integer::sum);
+            }
+        }
+        try {
+            Jenkins.get().removeNode(agent);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        return true;
+    }
+
+    /* Completes a request that did not go through, leaving the agent to the clean up task. */
+    private static void fail(Request request, Throwable cause) {
+        if (request.result.isDone()) {
+            return;
+        }
+        if (request.agent != null) {
+            // It's unlikely we'll be able to shut it down properly ever.
+            request.agent.setCleanUpAction(CleanUpAction.DELETE, Messages._Failed_Initial_Shutdown_Or_Delete());
+        }
+        request.result.completeExceptionally(cause);
+    }
+
+    private static CompletableFuture<Void> terminate(AzureVMAgent agent, Executor executor) {
+        AzureVMManagementServiceDelegate delegate = agent.getServiceDelegate();
+        if (delegate == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return DELETES.acquire().thenComposeAsync(ignored -> delegate.terminateVirtualMachineAsync(
+                agent.getNodeName(), agent.getResourceGroupName(),
+                agent.getTemplate().isUseEntraIdForStorageAccount()), executor).whenComplete((ignored, e) -> {
+                    DELETES.release();
+                    if (e == null && agent.getCloudName() != null) {
+                        VirtualMachineInventory.of(agent.getCloudName()).remove(agent.getNodeName());
+                    }
+                });
+    }
+
+    /**
+     * Agent waiting to be deprovisioned.
+     */
+    static final class Request {
+        private final String name;
+
+        private final AzureVMAgent agent;
+
+        private final Localizable reason;
+
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Request(String name, AzureVMAgent agent, Localizable reason) {
+            this.name = name;
+            this.agent = agent;
+            this.reason = reason;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        CompletableFuture<Void> getResult() {
+            return result;
+        }
+    }
+}
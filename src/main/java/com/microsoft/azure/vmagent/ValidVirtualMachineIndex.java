@@ -0,0 +1,105 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Names of the VMs backing a Jenkins agent, used to tell the resources of live agents from leaked ones.
+ * <p>
+ * A resource belongs to an agent when its name is the name of the VM, or is derived from it the way the ARM
+ * templates of the plugin name resources ({@code <vm>NIC}, {@code <vm>IPName}, {@code customScript<vm>}) or the
+ * way Azure names managed OS disks ({@code <vm>_OsDisk_1_<id>}). The image created for custom image templates
+ * is shared by the VMs of a deployment and named after their base name ({@code <base>Image} for VMs
+ * {@code <base>0}, {@code <base>1}, ...). Each lookup costs a handful of hash lookups, whatever the number of
+ * agents, and {@code vm1} does not own {@code vm10}.
+ */
+final class ValidVirtualMachineIndex {
+
+    private static final String[] SUFFIXES = {"NIC", "IPName"};
+
+    private static final String IMAGE_SUFFIX = "Image";
+
+    private static final String[] PREFIXES = {"customScript"};
+
+    private static final char MANAGED_DISK_SEPARATOR = '_';
+
+    private final Set<String> vmNames;
+
+    private final Map<String, String> vmNamesByBaseName = new HashMap<>();
+
+    ValidVirtualMachineIndex(Collection<String> vmNames) {
+        this.vmNames = new HashSet<>(vmNames);
+        for (String vmName : this.vmNames) {
+            // The index appended to the base name is made of digits, but the base name may end with digits too
+            for (int i = vmName.length() - 1; i > 0 && Character.isDigit(vmName.charAt(i)); i--) {
+                vmNamesByBaseName.putIfAbsent(vmName.substring(0, i), vmName);
+            }
+        }
+    }
+
+    /**
+     * Returns the agent VM owning a resource.
+     *
+     * @param resourceName Name of the resource
+     * @return Name of the VM, one of them for a shared image, or null if the resource does not belong to any
+     *         agent
+     */
+    String getOwner(String resourceName) {
+        if (resourceName == null) {
+            return null;
+        }
+        if (vmNames.contains(resourceName)) {
+            return resourceName;
+        }
+        for (String suffix : SUFFIXES) {
+            if (resourceName.endsWith(suffix)) {
+                String owner = resourceName.substring(0, resourceName.length() - suffix.length());
+                if (vmNames.contains(owner)) {
+                    return owner;
+                }
+            }
+        }
+        if (resourceName.endsWith(IMAGE_SUFFIX)) {
+            String owner = vmNamesByBaseName.get(
+                    resourceName.substring(0, resourceName.length() - IMAGE_SUFFIX.length()));
+            if (owner != null) {
+                return owner;
+            }
+        }
+        for (String prefix : PREFIXES) {
+            if (resourceName.startsWith(prefix)) {
+                String owner = resourceName.substring(prefix.length());
+                if (vmNames.contains(owner)) {
+                    return owner;
+                }
+            }
+        }
+        int separator = resourceName.indexOf(MANAGED_DISK_SEPARATOR);
+        if (separator > 0 && vmNames.contains(resourceName.substring(0, separator))) {
+            return resourceName.substring(0, separator);
+        }
+        return null;
+    }
+
+    boolean isOwned(String resourceName) {
+        return getOwner(resourceName) != null;
+    }
+}
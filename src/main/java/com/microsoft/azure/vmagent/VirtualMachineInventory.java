@@ -0,0 +1,228 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import com.azure.resourcemanager.compute.models.VirtualMachine;
+import com.microsoft.azure.vmagent.util.Constants;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Index of the virtual machines in the resource group of a cloud, keyed by VM name.
+ * <p>
+ * The index is rebuilt by a single listing of the resource group, done when the verification task counts the
+ * VMs of the cloud and, while the index is being read, by {@link VirtualMachineInventoryRefresher} every
+ * {@code com.microsoft.azure.vmagent.VirtualMachineInventory.refreshPeriodSeconds} (60 by default). It is kept
+ * up to date in between with the power states read and the VMs deleted by the plugin. Other checks (existence
+ * of agents, leaked resource clean up) use it while it is younger than
+ * {@code com.microsoft.azure.vmagent.VirtualMachineInventory.maxAgeSeconds} (two and a half refresh periods by
+ * default) instead of reading each VM again. Absence from the index is never trusted on its own, as a VM may
+ * have been created after the last listing. Health checks still read the power state of the VM, which a
+ * listing does not return and which changes within seconds when an agent is stopped or deleted.
+ */
+final class VirtualMachineInventory {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualMachineInventory.class.getName());
+
+    private static final long DEFAULT_REFRESH_PERIOD_SECONDS = 60;
+
+    static final long REFRESH_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(Math.max(1, SystemProperties.getLong(
+            VirtualMachineInventory.class.getName() + ".refreshPeriodSeconds", DEFAULT_REFRESH_PERIOD_SECONDS)));
+
+    // Long enough for one refresh to fail or be late without the index going stale
+    static final long MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(SystemProperties.getLong(
+            VirtualMachineInventory.class.getName() + ".maxAgeSeconds",
+            TimeUnit.MILLISECONDS.toSeconds(REFRESH_PERIOD_MILLIS * 5 / 2)));
+
+    private static final Map<String, VirtualMachineInventory> INVENTORIES = new ConcurrentHashMap<>();
+
+    private final String cloudName;
+
+    private volatile String resourceGroupName;
+
+    private volatile long refreshedAt;
+
+    private volatile long readAt;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    VirtualMachineInventory(String cloudName) {
+        this.cloudName = cloudName;
+    }
+
+    /**
+     * Returns the inventory of the cloud, creating an empty one on first use.
+     */
+    static VirtualMachineInventory of(String cloudName) {
+        return INVENTORIES.computeIfAbsent(cloudName, VirtualMachineInventory::new);
+    }
+
+    /**
+     * Replaces the content of the index with the result of a full listing of the resource group.
+     */
+    synchronized void refresh(String resourceGroup, List<Entry> listed, long now) {
+        Map<String, Entry> updated = new HashMap<>();
+        for (Entry entry : listed) {
+            Entry previous = entries.get(entry.getName());
+            // The listing does not include the power state, keep the last one we know of
+            if (entry.getStatus() == null && previous != null && previous.getStatus() != null) {
+                entry = entry.withStatus(previous.getStatus());
+            }
+            updated.put(entry.getName(), entry);
+        }
+        entries.keySet().retainAll(updated.keySet());
+        entries.putAll(updated);
+        resourceGroupName = resourceGroup;
+        refreshedAt = now;
+        LOGGER.log(Level.FINE, "Inventory of cloud {0} refreshed with {1} VMs in {2}",
+                new Object[]{cloudName, updated.size(), resourceGroup});
+    }
+
+    /**
+     * Returns the entry of a VM if the index is recent enough and knows about it.
+     *
+     * @return The entry, or null if the VM has to be looked up in Azure
+     */
+    Entry get(String resourceGroup, String vmName, long now) {
+        readAt = now;
+        if (!isFresh(resourceGroup, now)) {
+            return null;
+        }
+        return entries.get(vmName);
+    }
+
+    /**
+     * @return true if the index was looked up since its last refresh, i.e. refreshing it saves reads of VMs
+     */
+    boolean wasReadSinceRefresh() {
+        return readAt > refreshedAt;
+    }
+
+    boolean isFresh(String resourceGroup, long now) {
+        return resourceGroup != null && resourceGroup.equalsIgnoreCase(resourceGroupName)
+                && now - refreshedAt < MAX_AGE_MILLIS;
+    }
+
+    void updateStatus(String vmName, AzureVMManagementServiceDelegate.VMStatus status) {
+        entries.computeIfPresent(vmName, (name, entry) -> entry.withStatus(status));
+    }
+
+    void remove(String vmName) {
+        entries.remove(vmName);
+    }
+
+    /**
+     * What is known about a VM.
+     */
+    static final class Entry {
+        private final String name;
+
+        private final String id;
+
+        private final Map<String, String> tags;
+
+        private final String provisioningState;
+
+        private final AzureVMManagementServiceDelegate.VMStatus status;
+
+        private final boolean managedDiskEnabled;
+
+        private final String osDiskId;
+
+        private final String osUnmanagedDiskVhdUri;
+
+        Entry(String name, String id, Map<String, String> tags, String provisioningState,
+              AzureVMManagementServiceDelegate.VMStatus status, boolean managedDiskEnabled, String osDiskId,
+              String osUnmanagedDiskVhdUri) {
+            this.name = name;
+            this.id = id;
+            this.tags = tags == null ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(tags));
+            this.provisioningState = provisioningState;
+            this.status = status;
+            this.managedDiskEnabled = managedDiskEnabled;
+            this.osDiskId = osDiskId;
+            this.osUnmanagedDiskVhdUri = osUnmanagedDiskVhdUri;
+        }
+
+        /**
+         * Builds an entry from a VM as returned by a listing, without reading its instance view.
+         */
+        static Entry from(VirtualMachine vm) {
+            boolean managed = vm.isManagedDiskEnabled();
+            return new Entry(vm.name(), vm.id(), vm.tags(), vm.provisioningState(), null, managed,
+                    managed ? vm.osDiskId() : null, managed ? null : vm.osUnmanagedDiskVhdUri());
+        }
+
+        Entry withStatus(AzureVMManagementServiceDelegate.VMStatus newStatus) {
+            return new Entry(name, id, tags, provisioningState, newStatus, managedDiskEnabled, osDiskId,
+                    osUnmanagedDiskVhdUri);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        Map<String, String> getTags() {
+            return tags;
+        }
+
+        String getTemplateName() {
+            return tags.get(Constants.AZURE_TEMPLATE_TAG_NAME);
+        }
+
+        String getCloudTag() {
+            return tags.get(Constants.AZURE_CLOUD_TAG_NAME);
+        }
+
+        String getDeploymentTag() {
+            return tags.get(Constants.AZURE_RESOURCES_TAG_NAME);
+        }
+
+        String getProvisioningState() {
+            return provisioningState;
+        }
+
+        /**
+         * @return The last known power state, or null if it was never read
+         */
+        AzureVMManagementServiceDelegate.VMStatus getStatus() {
+            return status;
+        }
+
+        boolean isManagedDiskEnabled() {
+            return managedDiskEnabled;
+        }
+
+        String getOsDiskId() {
+            return osDiskId;
+        }
+
+        String getOsUnmanagedDiskVhdUri() {
+            return osUnmanagedDiskVhdUri;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent;
+
+import com.microsoft.azure.vmagent.util.AzureVMThreadPools;
+import hudson.model.Node;
+import hudson.slaves.Cloud;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Rebuilds the {@link VirtualMachineInventory} of the Azure clouds in use every
+ * {@link VirtualMachineInventory#REFRESH_PERIOD_MILLIS}, so the checks reading it find a fresh listing
+ * instead of reading each VM.
+ * <p>
+ * Only the clouds having agents and whose inventory was read since its last refresh are listed, so a
+ * controller without Azure agents, or whose agents are not being checked, does not list anything. The
+ * listings run on the {@link AzureVMThreadPools.Workload#CLEANUP} pool. A cloud whose previous listing is
+ * still running is skipped until the next period.
+ */
+final class VirtualMachineInventoryRefresher {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualMachineInventoryRefresher.class.getName());
+
+    private static VirtualMachineInventoryRefresher instance;
+
+    private final Executor executor;
+
+    private final Supplier<Collection<String>> cloudNames;
+
+    private final Consumer<String> refresh;
+
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param executor   Executor running the listings
+     * @param cloudNames Names of the clouds to refresh
+     * @param refresh    Lists the VMs of a cloud and rebuilds its inventory
+     */
+    VirtualMachineInventoryRefresher(Executor executor, Supplier<Collection<String>> cloudNames,
+                                     Consumer<String> refresh) {
+        this.executor = executor;
+        this.cloudNames = cloudNames;
+        this.refresh = refresh;
+    }
+
+    /**
+     * Starts refreshing the inventories periodically, once.
+     */
+    static synchronized void start() {
+        if (instance == null) {
+            instance = new VirtualMachineInventoryRefresher(
+                    AzureVMThreadPools.get(AzureVMThreadPools.Workload.CLEANUP),
+                    VirtualMachineInventoryRefresher::getCloudsInUse,
+                    VirtualMachineInventoryRefresher::refreshCloud);
+            instance.schedule(Timer.get(), VirtualMachineInventory.REFRESH_PERIOD_MILLIS);
+        }
+    }
+
+    void schedule(ScheduledExecutorService scheduler, long periodMillis) {
+        scheduler.scheduleWithFixedDelay(this::refreshAll, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts refreshing the inventory of every cloud not being refreshed already.
+     */
+    void refreshAll() {
+        for (String cloudName : cloudNames.get()) {
+            if (!refreshing.add(cloudName)) {
+                LOGGER.log(Level.FINE, "Inventory of cloud {0} is still being refreshed", cloudName);
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        refresh.accept(cloudName);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to refresh the inventory of cloud " + cloudName, e);
+                    } finally {
+                        refreshing.remove(cloudName);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refreshing.remove(cloudName);
+                LOGGER.log(Level.FINE, "Inventory of cloud {0} not refreshed: {1}",
+                        new Object[]{cloudName, e.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * @return Names of the Azure clouds having agents and whose inventory was read since its last refresh
+     */
+    private static Collection<String> getCloudsInUse() {
+        List<String> names = new ArrayList<>();
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null) {
+            return names;
+        }
+        Set<String> withAgents = new HashSet<>();
+        for (Node node : jenkins.getNodes()) {
+            if (node instanceof AzureVMAgent && ((AzureVMAgent) node).getCloudName() != null) {
+                withAgents.add(((AzureVMAgent) node).getCloudName());
+            }
+        }
+        for (Cloud cloud : jenkins.clouds) {
+            if (cloud instanceof AzureVMCloud) {
+                String cloudName = ((AzureVMCloud) cloud).getCloudName();
+                if (withAgents.contains(cloudName) && VirtualMachineInventory.of(cloudName).wasReadSinceRefresh()) {
+                    names.add(cloudName);
+                }
+            }
+        }
+        return names;
+    }
+
+    private static void refreshCloud(String cloudName) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        Cloud cloud = jenkins == null ? null : jenkins.getCloud(cloudName);
+        if (!(cloud instanceof AzureVMCloud)) {
+            return;
+        }
+        AzureVMCloud azureCloud = (AzureVMCloud) cloud;
+        try {
+            azureCloud.getServiceDelegate().refreshVirtualMachineInventory(cloudName,
+                    azureCloud.getResourceGroupName());
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to refresh the inventory of cloud " + cloudName, e);
+        }
+    }
+}
@@ -36,17 +36,22 @@ import hudson.remoting.Channel;
 import hudson.remoting.Channel.Listener;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import hudson.util.Secret;
-import jenkins.model.Jenkins;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.jvnet.localizer.Localizable;
 
 import java.io.*;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.TimeUnit;
+import java.time.Clock;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,6 +68,23 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
 
     private static final String REMOTE_INIT_FILE_NAME_WINDOWS = "/init.ps1";
 
+    // The exit status comes with the close of the channel, shortly after the end of its output
+    private static final long CHANNEL_CLOSE_POLL_INTERVAL_IN_MILLIS = 20;
+
+    private static final long CHANNEL_CLOSE_TIMEOUT_IN_MILLIS = 10 * 1000;
+
+    // Connection attempts start quickly and back off while the agent boots, for as long as 36 attempts 10 seconds apart
+    private static final long SSH_CONNECT_INITIAL_DELAY_IN_MILLIS = 500;
+
+    private static final long SSH_CONNECT_MAX_DELAY_IN_MILLIS = 10 * 1000;
+
+    private static final long SSH_CONNECT_TIMEOUT_IN_MILLIS = 6 * 60 * 1000;
+
+    private static final int SSH_PORT_PROBE_TIMEOUT_IN_MILLIS = 2 * 1000;
+
+    private static final ThreadFactory OUTPUT_PUMP_THREADS =
+            new NamingThreadFactory(new DaemonThreadFactory(), "AzureVMAgents.ssh-stderr");
+
     @Override
     public void launch(SlaveComputer agentComputer, TaskListener listener) {
         if (!(agentComputer instanceof AzureVMComputer)) {
@@ -99,6 +121,7 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
         PrintStream logger = listener.getLogger();
         boolean successful = false;
         Session session = null;
+        final LaunchTimings timings = new LaunchTimings();
 
         SlaveComputer slaveComputer = agent.getComputer();
         if (slaveComputer == null) {
@@ -109,6 +132,7 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
 
         try {
             session = connectToSsh(agent);
+            timings.step("connect");
         } catch (UnknownHostException e) {
             LOGGER.log(Level.SEVERE, "Got unknown host exception. Virtual machine might have been deleted already", e);
         } catch (ConnectException e) {
@@ -134,7 +158,6 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
         Localizable cleanUpReason = null;
 
         try {
-            final Session cleanupSession = session;
             String initScript = agent.getInitScript();
 
             // Executing script only if script is not executed even once
@@ -144,8 +167,10 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
             } else {
                 command = "dir C:\\.azure-agent-init";
             }
-            if (StringUtils.isNotBlank(initScript)
-                    && executeRemoteCommand(session, command, logger, isUnix) != 0) {
+            boolean initScriptNeeded = StringUtils.isNotBlank(initScript)
+                    && executeRemoteCommand(session, command, logger, isUnix) != 0;
+            timings.step("init check");
+            if (initScriptNeeded) {
                 LOGGER.fine("Init script is not null, "
                         + "preparing to execute script remotely on " + agent.getNodeName());
                 if (isUnix) {
@@ -158,6 +183,7 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
                             new ByteArrayInputStream(initScript.getBytes(StandardCharsets.UTF_8)),
                             REMOTE_INIT_FILE_NAME_WINDOWS);
                 }
+                timings.step("init script upload");
                 // Execute initialization script
                 // Make sure to change file permission for execute if needed. TODO: need to test
 
@@ -173,6 +199,7 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
                         isUnix,
                         agent.getExecuteInitScriptAsRoot()
                 );
+                timings.step("init script");
                 if (exitStatus != 0) {
                     if (agent.getDoNotUseMachineIfInitFails()) {
                         LOGGER.log(Level.SEVERE, "Init script failed on " + agent.getNodeName() + ": exit code={0} "
@@ -201,6 +228,7 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
                  */
                 session.disconnect();
                 session = connectToSsh(agent);
+                timings.step("reconnect");
 
                 // Create tracking file
                 if (isUnix) {
@@ -209,11 +237,14 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
                     command = "copy NUL C:\\.azure-agent-init";
                 }
                 executeRemoteCommand(session, command, logger, isUnix);
+                timings.step("init marker");
             }
 
             LOGGER.fine("Checking for java runtime on " + agent.getNodeName());
 
-            if (executeRemoteCommand(session, agent.getJavaPath() + " -fullversion", logger, isUnix) != 0) {
+            int javaStatus = executeRemoteCommand(session, agent.getJavaPath() + " -fullversion", logger, isUnix);
+            timings.step("java check");
+            if (javaStatus != 0) {
                 LOGGER.info("Java not found on " + agent.getNodeName() + ". "
                         + "At a minimum init script should ensure that java runtime is installed");
                 handleLaunchFailure(agent, Constants.AGENT_POST_PROV_JAVA_NOT_FOUND);
@@ -221,9 +252,12 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
             }
 
             LOGGER.fine("Java runtime present on " + agent.getNodeName() + ", copying remoting.jar to remote");
-            InputStream inputStream = new ByteArrayInputStream(Jenkins.get().getJnlpJars("remoting.jar").
-                    readFully());
-            copyFileToRemote(session, inputStream, "remoting.jar");
+            if (copyRemotingJar(session, logger, isUnix)) {
+                timings.step("remoting.jar upload");
+            } else {
+                LOGGER.fine("remoting.jar on " + agent.getNodeName() + " is up to date");
+                timings.step("remoting.jar check");
+            }
 
             String remotingWorkingDirectory = getRemotingWorkingDirectory(isUnix);
             String remotingDefaultOptions = "-workDir " + remotingWorkingDirectory;
@@ -241,16 +275,22 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
             jschChannel.setCommand(execCommand);
             jschChannel.connect();
             LOGGER.info("Connected " + agent.getNodeName() + " successfully");
+            timings.step("agent start");
 
+            // Commands run later on the agent, such as the terminate script, share the session of the channel
+            final Session channelSession = session;
+            SshSessionPool.get().pin(agent.getNodeName(), channelSession);
             computer.setChannel(jschChannel.getInputStream(), jschChannel.getOutputStream(), logger, new Listener() {
                 @Override
                 public void onClosed(Channel channel, IOException cause) {
+                    SshSessionPool.get().remove(agent.getNodeName(), channelSession);
                     jschChannel.disconnect();
-                    cleanupSession.disconnect();
+                    channelSession.disconnect();
                 }
             });
 
-            LOGGER.info("Launched agent " + agent.getNodeName() + " successfully");
+            LOGGER.log(Level.INFO, "Launched agent " + agent.getNodeName() + " successfully in {0}, SSH sessions: {1}",
+                    new Object[]{timings, SshSessionPool.get()});
             // There's a chance that it was marked as delete for instance, if the node
             // was unreachable and then someone hit connect and it worked.  Reset the node cleanup
             // state to the default for the node.
@@ -261,6 +301,8 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
             LOGGER.log(Level.SEVERE,"Got exception on agent " + agent.getNodeName(), e);
         } finally {
             if (!successful) {
+                LOGGER.log(Level.INFO, "Failed to launch agent " + agent.getNodeName() + " after {0}", timings);
+                SshSessionPool.get().remove(agent.getNodeName(), session);
                 session.disconnect();
                 if (cleanUpReason == null) {
                     cleanUpReason = Messages._Agent_Failed_To_Connect();
@@ -279,10 +321,8 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
         return "C:\\remoting";
     }
 
-    private Session getRemoteSession(String userName, String passwordOrKey, String passphrase, String dnsName, int sshPort, String sshConfig, boolean passwordAuth) throws JSchException {
-        LOGGER.log(Level.INFO,
-                "Getting remote session for user {0} to host {1}:{2}",
-                new Object[]{userName, dnsName, sshPort});
+    /* Prepares a client with the config and identity of the agent, shared by all the connection attempts. */
+    private JSch createRemoteClient(String passwordOrKey, String passphrase, String sshConfig, boolean passwordAuth) throws JSchException {
         JSch remoteClient = new JSch();
         if (StringUtils.isNotBlank(sshConfig)) {
             try {
@@ -290,20 +330,28 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
                 remoteClient.setConfigRepository(configRepository);
             } catch (IOException e) {
                 LOGGER.log(Level.SEVERE,
-                        "AzureVMAgentSSHLauncher: getRemoteSession: "
+                        "AzureVMAgentSSHLauncher: createRemoteClient: "
                                 + "Got exception while using custom openssh config: {0} {1}",
                         new Object[]{sshConfig, e.getMessage()});
                 throw new JSchException("Unable to parse openssh config", e);
             }
         }
+        if (!passwordAuth) {
+            remoteClient.addIdentity("key", passwordOrKey.getBytes(StandardCharsets.UTF_8),
+                    null,
+                    passphrase != null ? passphrase.getBytes(StandardCharsets.UTF_8) : null);
+        }
+        return remoteClient;
+    }
+
+    private Session getRemoteSession(JSch remoteClient, String userName, String passwordOrKey, String dnsName, int sshPort, boolean passwordAuth) throws JSchException {
+        LOGGER.log(Level.INFO,
+                "Getting remote session for user {0} to host {1}:{2}",
+                new Object[]{userName, dnsName, sshPort});
         final Session session = remoteClient.getSession(userName, dnsName, sshPort);
         session.setConfig("StrictHostKeyChecking", "no");
         if (passwordAuth) {
             session.setPassword(passwordOrKey);
-        } else {
-            remoteClient.addIdentity("key", passwordOrKey.getBytes(StandardCharsets.UTF_8),
-                    null,
-                    passphrase != null ? passphrase.getBytes(StandardCharsets.UTF_8) : null);
         }
         // pinging server for every 1 minutes to keep the connection alive
         final int serverAliveIntervalInMillis = 60 * 1000;
@@ -315,8 +363,53 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
         return session;
     }
 
+    /* Opens and closes a TCP connection to the SSH port, failing fast while the agent is not listening yet. */
+    private void probeSshPort(String dnsName, int sshPort) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(dnsName, sshPort);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(dnsName);
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(address, SSH_PORT_PROBE_TIMEOUT_IN_MILLIS);
+        }
+    }
+
+    /* Copies remoting.jar unless the agent already has the same one. Returns true if it was copied. */
+    private boolean copyRemotingJar(Session jschSession, PrintStream logger, boolean isUnix) throws Exception {
+        final RemotingJar remotingJar = RemotingJar.get();
+        if (getRemoteFileSize(jschSession, RemotingJar.FILE_NAME) == remotingJar.getSize()
+                && executeRemoteCommand(jschSession, remotingJar.getVerifyCommand(isUnix), logger, isUnix) == 0) {
+            return false;
+        }
+        copyFileToRemote(jschSession, remotingJar.openStream(), RemotingJar.FILE_NAME);
+        return true;
+    }
+
+    /* Returns the size of a remote file, or -1 if it cannot be read. */
+    private long getRemoteFileSize(Session jschSession, String remotePath) {
+        ChannelSftp sftpChannel = null;
+        try {
+            sftpChannel = (ChannelSftp) jschSession.openChannel("sftp");
+            sftpChannel.connect();
+            return sftpChannel.stat(remotePath).getSize();
+        } catch (JSchException | SftpException e) {
+            LOGGER.log(Level.FINE, "Cannot read the size of {0}: {1}", new Object[]{remotePath, e.getMessage()});
+            return -1;
+        } finally {
+            if (sftpChannel != null) {
+                sftpChannel.disconnect();
+            }
+        }
+    }
+
     public void copyFileToRemote(AzureVMAgent agent, InputStream stream, String remotePath) throws Exception {
-    	copyFileToRemote(connectToSsh(agent), stream, remotePath);
+        final SshSessionPool pool = SshSessionPool.get();
+        final Session session = pool.acquire(agent.getNodeName(), () -> connectToSsh(agent));
+        try {
+            copyFileToRemote(session, stream, remotePath);
+        } finally {
+            pool.release(agent.getNodeName(), session);
+        }
     }
 
     private void copyFileToRemote(Session jschSession, InputStream stream, String remotePath) throws Exception {
@@ -326,15 +419,8 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
         try {
             sftpChannel = (ChannelSftp) jschSession.openChannel("sftp");
             sftpChannel.connect();
+            // put returns once the server acknowledged the whole file, the channel stays open until disconnected
             sftpChannel.put(stream, remotePath);
-
-            if (!sftpChannel.isClosed()) {
-                try {
-                    Thread.sleep(10 * 1000);
-                } catch (InterruptedException e) {
-                    //ignore error
-                }
-            }
             LOGGER.log(Level.FINE, "Copied file Successfully to {0}", remotePath);
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Error occurred while copying file to remote host", e);
@@ -351,11 +437,26 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
     }
 
     public int executeRemoteCommand(AzureVMAgent agent, String command, PrintStream logger, boolean isUnix)  throws Exception {
-    	return executeRemoteCommand(connectToSsh(agent), command, logger, isUnix, false);
+        return executeRemoteCommand(agent, command, logger, isUnix, false);
     }
 
     public int executeRemoteCommand(AzureVMAgent agent, String command, PrintStream logger, boolean isUnix, boolean executeAsRoot)  throws Exception {
-    	return executeRemoteCommand(connectToSsh(agent), command, logger, isUnix, executeAsRoot);
+        final SshSessionPool pool = SshSessionPool.get();
+        final Session session = pool.acquire(agent.getNodeName(), () -> connectToSsh(agent));
+        try {
+            return executeRemoteCommand(session, command, logger, isUnix, executeAsRoot);
+        } finally {
+            pool.release(agent.getNodeName(), session);
+        }
+    }
+
+    /**
+     * Disconnects the SSH session kept for the agent, once no more commands will be run on it.
+     *
+     * @param agent Agent going away
+     */
+    public void closeSession(AzureVMAgent agent) {
+        SshSessionPool.get().close(agent.getNodeName());
     }
 
     /* Helper method for most common call (without root). */
@@ -384,35 +485,31 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
             channel = (ChannelExec) jschSession.openChannel("exec");
             channel.setCommand(finalCommand);
             channel.setInputStream(null);
-            channel.setErrStream(System.err);
             final InputStream inputStream = channel.getInputStream();
             final InputStream errorStream = channel.getErrStream();
             final int connectTimeoutInMillis = 60 * 1000;
             channel.connect(connectTimeoutInMillis);
 
-
-            // Read from input stream
+            // Both outputs are read at the same time so that neither can fill up and stall the command
+            final RemoteOutputPump errorPump = new RemoteOutputPump(
+                    errorStream, logger, "[stderr] ", Clock.systemDefaultZone());
+            final Thread errorThread = OUTPUT_PUMP_THREADS.newThread(errorPump);
+            errorThread.start();
+            final RemoteOutputPump outputPump = new RemoteOutputPump(
+                    inputStream, logger, "", Clock.systemDefaultZone());
             try {
-                IOUtils.copy(inputStream, logger);
+                outputPump.run();
+                errorThread.join(CHANNEL_CLOSE_TIMEOUT_IN_MILLIS);
             } finally {
                 IOUtils.closeQuietly(inputStream);
-            }
-
-            // Read from error stream
-            try {
-                IOUtils.copy(errorStream, logger);
-            } finally {
                 IOUtils.closeQuietly(errorStream);
             }
-
-            if (!channel.isClosed()) {
-                try {
-                    Thread.sleep(10 * 1000);
-                } catch (InterruptedException e) {
-                    //ignore error
-                }
+            if (outputPump.getFailure() != null) {
+                throw outputPump.getFailure();
             }
 
+            awaitClosed(channel);
+
             LOGGER.fine("Executed command successfully");
             return channel.getExitStatus();
         } catch (JSchException jse) {
@@ -430,54 +527,71 @@ public class AzureVMAgentSSHLauncher extends ComputerLauncher {
         return -1;
     }
 
+    /* Waits for the exit status of a command, which is received with the close of its channel. */
+    private static void awaitClosed(ChannelExec channel) {
+        final long deadline = System.currentTimeMillis() + CHANNEL_CLOSE_TIMEOUT_IN_MILLIS;
+        while (!channel.isClosed() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(CHANNEL_CLOSE_POLL_INTERVAL_IN_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (!channel.isClosed()) {
+            LOGGER.log(Level.FINE, "Channel still open {0} ms after the end of the command output",
+                    CHANNEL_CLOSE_TIMEOUT_IN_MILLIS);
+        }
+    }
+
     private Session connectToSsh(AzureVMAgent agent) throws Exception {
         LOGGER.fine("Start connecting to SSH");
-        Session session;
-        final int maxRetryCount = 36;
-        int currRetryCount = 0;
-
+        // Grab the username/pass
+        StandardUsernameCredentials creds = AzureUtil.getCredentials(agent.getVMCredentialsId());
+        String passwordOrKey;
+        String passphrase = null;
+        boolean passwordAuth = false;
+        if (creds instanceof StandardUsernamePasswordCredentials) {
+            passwordOrKey = ((StandardUsernamePasswordCredentials) creds).getPassword().getPlainText();
+            passwordAuth = true;
+        } else {
+            SSHUserPrivateKey sshCreds = (SSHUserPrivateKey) creds;
+            passwordOrKey = sshCreds.getPrivateKeys().get(0);
+            Secret secretPassphrase = sshCreds.getPassphrase();
+            passphrase = secretPassphrase != null ? secretPassphrase.getPlainText() : null;
+        }
+        final String sshConfig = agent.getSshConfig();
+        final JSch remoteClient = createRemoteClient(passwordOrKey, passphrase, sshConfig, passwordAuth);
+        final String dnsName = agent.getPublicDNSName();
+        final int sshPort = agent.getSshPort();
+        // A custom config may redirect the connection (host name, proxy), leave it to the SSH client then
+        final boolean probe = StringUtils.isBlank(sshConfig);
+
+        final ConnectBackoff backoff = new ConnectBackoff(System.currentTimeMillis(),
+                SSH_CONNECT_INITIAL_DELAY_IN_MILLIS, SSH_CONNECT_MAX_DELAY_IN_MILLIS,
+                SSH_CONNECT_TIMEOUT_IN_MILLIS, new Random());
         while (true) {
-            currRetryCount++;
+            boolean probed = false;
             try {
-                // Grab the username/pass
-                StandardUsernameCredentials creds = AzureUtil.getCredentials(agent.getVMCredentialsId());
-                String passwordOrKey;
-                String passphrase = null;
-                boolean passwordAuth = false;
-                if (creds instanceof StandardUsernamePasswordCredentials) {
-                    passwordOrKey = ((StandardUsernamePasswordCredentials) creds).getPassword().getPlainText();
-                    passwordAuth = true;
-                } else {
-                    SSHUserPrivateKey sshCreds = (SSHUserPrivateKey) creds;
-                    passwordOrKey = sshCreds.getPrivateKeys().get(0);
-                    Secret secretPassphrase = sshCreds.getPassphrase();
-                    passphrase = secretPassphrase != null ? secretPassphrase.getPlainText() : null;
+                if (probe) {
+                    probeSshPort(dnsName, sshPort);
+                    probed = true;
                 }
-
-                session = getRemoteSession(
-                        creds.getUsername(),
-                        passwordOrKey,
-                        passphrase,
-                        agent.getPublicDNSName(),
-                        agent.getSshPort(),
-                        agent.getSshConfig(),
-                        passwordAuth);
+                Session session = getRemoteSession(remoteClient, creds.getUsername(), passwordOrKey, dnsName, sshPort, passwordAuth);
                 LOGGER.fine("Got remote connection");
+                return session;
             } catch (Exception e) {
-                // Retry till max count and throw exception if not successful even after that
-                if (currRetryCount >= maxRetryCount) {
+                // Retry till the deadline and throw exception if not successful even after that
+                final long backoffTime = backoff.failed(System.currentTimeMillis());
+                if (backoffTime < 0) {
                     throw e;
                 }
                 // keep retrying till time out
-                int backoffTime = 10;
-                LOGGER.log(Level.INFO, String.format("Failed connecting to host %s:%s. Will be trying again after %s seconds, error was: %s ", agent.getPublicDNSName(), agent.getSshPort(), backoffTime, e.getMessage()));
-                LOGGER.log(Level.FINE, String.format("Failed connecting to host %s:%s.", agent.getPublicDNSName(), agent.getSshPort()), e);
-                final long sleepInMills = TimeUnit.SECONDS.toMillis(backoffTime);
-                Thread.sleep(sleepInMills);
-                // continue again
-                continue;
+                Level level = probe && !probed ? Level.FINE : Level.INFO;
+                LOGGER.log(level, String.format("Failed connecting to host %s:%s (attempt %s). Will be trying again after %s ms, error was: %s ", dnsName, sshPort, backoff.getAttempts(), backoffTime, e.getMessage()));
+                LOGGER.log(Level.FINE, String.format("Failed connecting to host %s:%s.", dnsName, sshPort), e);
+                Thread.sleep(backoffTime);
             }
-            return session;
         }
     }
 
@@ -0,0 +1,74 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent.remote;
+
+import java.util.Random;
+
+/**
+ * Delays between the attempts to connect to a booting agent.
+ * <p>
+ * The delay starts below a second and doubles after each attempt up to a cap, so an agent that is up quickly
+ * is reached quickly while one that takes minutes is not polled more than needed. Each delay is drawn between
+ * half and all of its nominal value, so agents provisioned together do not all retry at the same time. No
+ * delay goes past the deadline; once it is reached, there is no further attempt.
+ */
+final class ConnectBackoff {
+
+    private final long maxDelayMillis;
+
+    private final long deadline;
+
+    private final Random random;
+
+    private long nominalDelayMillis;
+
+    private int attempts;
+
+    /**
+     * @param now                Time of the first attempt
+     * @param initialDelayMillis Nominal delay after the first failed attempt
+     * @param maxDelayMillis     Maximum nominal delay
+     * @param timeoutMillis      Time after the first attempt past which there is no further attempt
+     * @param random             Source of the jitter
+     */
+    ConnectBackoff(long now, long initialDelayMillis, long maxDelayMillis, long timeoutMillis, Random random) {
+        this.maxDelayMillis = Math.max(initialDelayMillis, maxDelayMillis);
+        this.deadline = now + timeoutMillis;
+        this.random = random;
+        this.nominalDelayMillis = initialDelayMillis;
+    }
+
+    /**
+     * Records a failed attempt and returns how long to wait before the next one.
+     *
+     * @param now Current time
+     * @return The delay in milliseconds, or -1 if the deadline is reached
+     */
+    long failed(long now) {
+        attempts++;
+        if (now >= deadline) {
+            return -1;
+        }
+        long half = nominalDelayMillis / 2;
+        long delay = half + random.nextLong(nominalDelayMillis - half + 1);
+        nominalDelayMillis = Math.min(maxDelayMillis, nominalDelayMillis * 2);
+        return Math.min(delay, deadline - now);
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent.remote;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.function.LongSupplier;
+
+/**
+ * Time spent in each step of an agent launch, reported once the launch is over.
+ */
+final class LaunchTimings {
+
+    private final LongSupplier clock;
+
+    private final long start;
+
+    private long last;
+
+    private final Map<String, Long> steps = new LinkedHashMap<>();
+
+    LaunchTimings() {
+        this(System::currentTimeMillis);
+    }
+
+    LaunchTimings(LongSupplier clock) {
+        this.clock = clock;
+        this.start = clock.getAsLong();
+        this.last = start;
+    }
+
+    /**
+     * Records the time elapsed since the previous step as spent in the given one. Steps run several times
+     * are summed.
+     */
+    void step(String name) {
+        long now = clock.getAsLong();
+        steps.merge(name, now - last, Long::sum);
+        last = now;
+    }
+
+    long getTotalMillis() {
+        return last - start;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner details = new StringJoiner(", ", getTotalMillis() + " ms (", ")");
+        steps.forEach((name, millis) -> details.add(name + " " + millis + " ms"));
+        return details.toString();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent.remote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Copies the output of a remote command to a log line by line, each line prefixed with the time it was
+ * received.
+ * <p>
+ * The standard and error outputs of a command are pumped concurrently, so a command writing a lot to one of
+ * them cannot fill the SSH window while the other one is being read. Lines are written whole, so lines of the
+ * two outputs do not mix, and lines longer than {@link #MAX_LINE_BYTES} are split.
+ */
+final class RemoteOutputPump implements Runnable {
+
+    static final int MAX_LINE_BYTES = 8192;
+
+    private static final int BUFFER_BYTES = 4096;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private final InputStream in;
+
+    private final PrintStream out;
+
+    private final String prefix;
+
+    private final Clock clock;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    private IOException failure;
+
+    /**
+     * @param in     Output of the command
+     * @param out    Log to write to
+     * @param prefix Written before each line, after the time
+     * @param clock  Clock giving the time of the lines
+     */
+    RemoteOutputPump(InputStream in, PrintStream out, String prefix, Clock clock) {
+        this.in = in;
+        this.out = out;
+        this.prefix = prefix;
+        this.clock = clock;
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[BUFFER_BYTES];
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        emit();
+                    } else {
+                        line.write(buffer[i]);
+                        if (line.size() >= MAX_LINE_BYTES) {
+                            emit();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            if (line.size() > 0) {
+                emit();
+            }
+        }
+    }
+
+    /**
+     * @return The failure reading the output, if any
+     */
+    IOException getFailure() {
+        return failure;
+    }
+
+    private void emit() {
+        String text = line.toString(StandardCharsets.UTF_8);
+        if (text.endsWith("\r")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        line.reset();
+        out.println("[" + LocalTime.now(clock).format(TIME_FORMAT) + "] " + prefix + text);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import jenkins.model.Jenkins;
+
+/**
+ * The remoting.jar served by the controller, read once and shared by all the launches.
+ * <p>
+ * The jar only changes with the Jenkins version, so its content and SHA-256 are kept for the life of the
+ * controller. An agent already holding a copy with the same size and hash, e.g. a reused VM or an image with
+ * the jar baked in, does not get it again.
+ */
+final class RemotingJar {
+
+    static final String FILE_NAME = "remoting.jar";
+
+    private static RemotingJar instance;
+
+    private final byte[] content;
+
+    private final String sha256;
+
+    RemotingJar(byte[] content) {
+        this.content = content;
+        try {
+            this.sha256 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    static synchronized RemotingJar get() throws IOException {
+        if (instance == null) {
+            instance = new RemotingJar(Jenkins.get().getJnlpJars(FILE_NAME).readFully());
+        }
+        return instance;
+    }
+
+    InputStream openStream() {
+        return new ByteArrayInputStream(content);
+    }
+
+    long getSize() {
+        return content.length;
+    }
+
+    String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * @return Command exiting with 0 if the copy of the agent has the same content
+     */
+    String getVerifyCommand(boolean isUnix) {
+        if (isUnix) {
+            return "echo '" + sha256 + "  " + FILE_NAME + "' | sha256sum -c --status";
+        }
+        return "powershell -Command \"if ((Get-FileHash " + FILE_NAME + " -Algorithm SHA256).Hash -eq '"
+                + sha256 + "') { exit 0 } else { exit 1 }\"";
+    }
+}
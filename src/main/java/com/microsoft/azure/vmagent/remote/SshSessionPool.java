@@ -0,0 +1,282 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent.remote;
+
+import com.jcraft.jsch.Session;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * SSH sessions to the agents, shared by the commands and file transfers run on the same agent.
+ * <p>
+ * A session is checked before being handed out again and replaced if it is broken. Sessions not used for
+ * {@code com.microsoft.azure.vmagent.remote.SshSessionPool.idleTimeoutMillis} (2 minutes by default) are
+ * disconnected. The session carrying the remoting channel of an agent is pinned: it is shared while the agent
+ * is connected, and disconnected with the channel rather than by the pool.
+ */
+final class SshSessionPool {
+
+    private static final Logger LOGGER = Logger.getLogger(SshSessionPool.class.getName());
+
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private static final long IDLE_TIMEOUT_MILLIS = SystemProperties.getLong(
+            SshSessionPool.class.getName() + ".idleTimeoutMillis", DEFAULT_IDLE_TIMEOUT_MILLIS);
+
+    private static final long EVICTION_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static SshSessionPool instance;
+
+    private final long idleTimeoutMillis;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder opened = new LongAdder();
+
+    private final LongAdder reused = new LongAdder();
+
+    private final LongAdder evicted = new LongAdder();
+
+    SshSessionPool(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    static synchronized SshSessionPool get() {
+        if (instance == null) {
+            instance = new SshSessionPool(IDLE_TIMEOUT_MILLIS);
+            final SshSessionPool pool = instance;
+            Timer.get().scheduleWithFixedDelay(() -> pool.evictIdle(System.currentTimeMillis()),
+                    EVICTION_PERIOD_MILLIS, EVICTION_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the session of the agent, connecting a new one if there is none or it is broken. Sessions are
+     * connected one at a time per agent. Each call must be followed by {@link #release}.
+     *
+     * @param key     Name of the agent
+     * @param connect Connects a new session
+     */
+    Session acquire(String key, Callable<Session> connect) throws Exception {
+        while (true) {
+            Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+            // Connecting can take minutes, only other acquisitions of the same agent wait for it
+            synchronized (entry.connectLock) {
+                synchronized (entry) {
+                    if (entry.removed) {
+                        continue;
+                    }
+                    if (entry.session != null && isHealthy(entry.session)) {
+                        reused.increment();
+                        entry.inUse++;
+                        entry.lastUsed = System.currentTimeMillis();
+                        return entry.session;
+                    }
+                    if (entry.session != null && !entry.pinned) {
+                        entry.session.disconnect();
+                    }
+                    // Users of the broken session disconnect it on release, the new one is reserved for us
+                    entry.session = null;
+                    entry.pinned = false;
+                    entry.inUse = 1;
+                }
+                final Session session;
+                try {
+                    session = connect.call();
+                } catch (Exception e) {
+                    synchronized (entry) {
+                        entry.inUse--;
+                        removeIfUnused(key, entry);
+                    }
+                    throw e;
+                }
+                synchronized (entry) {
+                    opened.increment();
+                    entry.session = session;
+                    entry.pinned = false;
+                    entry.lastUsed = System.currentTimeMillis();
+                    return session;
+                }
+            }
+        }
+    }
+
+    void release(String key, Session session) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            disconnectUnlessPinned(null, session);
+            return;
+        }
+        synchronized (entry) {
+            if (entry.session == session) {
+                entry.inUse = Math.max(0, entry.inUse - 1);
+                entry.lastUsed = System.currentTimeMillis();
+            } else {
+                // Replaced while in use
+                disconnectUnlessPinned(entry, session);
+            }
+        }
+    }
+
+    /**
+     * Shares the session carrying the remoting channel of the agent until {@link #remove} is called.
+     */
+    void pin(String key, Session session) {
+        while (true) {
+            Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+            synchronized (entry) {
+                if (entry.removed) {
+                    continue;
+                }
+                if (entry.session != null && entry.session != session && !entry.pinned && entry.inUse == 0) {
+                    entry.session.disconnect();
+                }
+                entry.session = session;
+                entry.pinned = true;
+                entry.lastUsed = System.currentTimeMillis();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets the session, which its owner disconnects.
+     */
+    void remove(String key, Session session) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.session == session) {
+                entry.session = null;
+                entry.pinned = false;
+                removeIfUnused(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Disconnects the session of an agent going away, unless it carries its remoting channel.
+     */
+    void close(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.session != null && !entry.pinned) {
+                entry.session.disconnect();
+                entry.session = null;
+            }
+            removeIfUnused(key, entry);
+        }
+    }
+
+    /**
+     * Disconnects the sessions idle for longer than the idle timeout.
+     */
+    void evictIdle(long now) {
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            synchronized (entry) {
+                if (entry.inUse > 0 || entry.pinned) {
+                    continue;
+                }
+                if (entry.session != null && now - entry.lastUsed < idleTimeoutMillis) {
+                    continue;
+                }
+                if (entry.session != null) {
+                    entry.session.disconnect();
+                    entry.session = null;
+                    evicted.increment();
+                }
+                removeIfUnused(e.getKey(), entry);
+            }
+        }
+        LOGGER.log(Level.FINE, "SSH sessions: {0}", this);
+    }
+
+    long getOpened() {
+        return opened.sum();
+    }
+
+    long getReused() {
+        return reused.sum();
+    }
+
+    long getEvicted() {
+        return evicted.sum();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d agents, %d opened, %d reused, %d evicted",
+                entries.size(), getOpened(), getReused(), getEvicted());
+    }
+
+    private void removeIfUnused(String key, Entry entry) {
+        if (entry.session == null && entry.inUse == 0) {
+            entry.removed = true;
+            entries.remove(key, entry);
+        }
+    }
+
+    private static void disconnectUnlessPinned(Entry entry, Session session) {
+        if (entry == null || !entry.pinned || entry.session != session) {
+            session.disconnect();
+        }
+    }
+
+    private static boolean isHealthy(Session session) {
+        if (!session.isConnected()) {
+            return false;
+        }
+        try {
+            session.sendKeepAliveMsg();
+            return true;
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "SSH session is broken: {0}", e.getMessage());
+            return false;
+        }
+    }
+
+    private static final class Entry {
+        private final Object connectLock = new Object();
+
+        private Session session;
+
+        private boolean pinned;
+
+        private int inUse;
+
+        private long lastUsed;
+
+        private boolean removed;
+    }
+}
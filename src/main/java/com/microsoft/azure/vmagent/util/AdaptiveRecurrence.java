@@ -0,0 +1,97 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent.util;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Interval of a periodic task adapting to the work it finds.
+ * <p>
+ * The task is triggered every {@link #getMinPeriodMillis()} and only runs when its current period has elapsed.
+ * A run finding work to do brings the period down to the minimum, each run finding nothing doubles it, up to
+ * the maximum. Both bounds can be overridden with the system properties
+ * {@code <task class>.minRecurrencePeriodMillis} and {@code <task class>.maxRecurrencePeriodMillis}.
+ */
+public final class AdaptiveRecurrence {
+
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveRecurrence.class.getName());
+
+    private final String name;
+
+    private final long minPeriodMillis;
+
+    private final long maxPeriodMillis;
+
+    private long periodMillis;
+
+    private long nextRunMillis;
+
+    private String reason = "starting";
+
+    public AdaptiveRecurrence(Class<?> task, long defaultMinPeriodMillis, long defaultMaxPeriodMillis) {
+        this(task.getSimpleName(),
+                SystemProperties.getLong(task.getName() + ".minRecurrencePeriodMillis", defaultMinPeriodMillis),
+                SystemProperties.getLong(task.getName() + ".maxRecurrencePeriodMillis", defaultMaxPeriodMillis));
+    }
+
+    AdaptiveRecurrence(String name, long minPeriodMillis, long maxPeriodMillis) {
+        this.name = name;
+        this.minPeriodMillis = Math.max(1, minPeriodMillis);
+        this.maxPeriodMillis = Math.max(this.minPeriodMillis, maxPeriodMillis);
+        this.periodMillis = this.minPeriodMillis;
+    }
+
+    /**
+     * @return true if the current period elapsed since the end of the last run
+     */
+    public synchronized boolean isDue(long now) {
+        return now >= nextRunMillis;
+    }
+
+    /**
+     * Records the outcome of a run and computes the next period.
+     *
+     * @param now     End of the run
+     * @param backlog Amount of work found by the run
+     * @param details Description of the work found, reported as the reason for the period
+     */
+    public synchronized void completed(long now, int backlog, String details) {
+        long previous = periodMillis;
+        if (backlog > 0) {
+            periodMillis = minPeriodMillis;
+        } else {
+            periodMillis = Math.min(maxPeriodMillis, periodMillis * 2);
+        }
+        reason = details;
+        nextRunMillis = now + periodMillis;
+        LOGGER.log(periodMillis != previous ? Level.INFO : Level.FINE, "{0} runs every {1} s: {2}",
+                new Object[]{name, periodMillis / Constants.MILLIS_IN_SECOND, reason});
+    }
+
+    public long getMinPeriodMillis() {
+        return minPeriodMillis;
+    }
+
+    public synchronized long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    public synchronized String getReason() {
+        return reason;
+    }
+}
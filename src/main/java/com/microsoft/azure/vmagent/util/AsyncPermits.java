@@ -0,0 +1,70 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent.util;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Semaphore handing out permits as futures, so work waiting for a permit does not park a thread.
+ * <p>
+ * Permits are granted in the order they were requested. A future granted on release is completed by the
+ * releasing thread, so the work it starts should be light or run on an executor.
+ */
+public final class AsyncPermits {
+
+    private final Queue<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+
+    private int available;
+
+    public AsyncPermits(int permits) {
+        this.available = permits;
+    }
+
+    /**
+     * @return Future completed once a permit is granted, to be given back with {@link #release()}
+     */
+    public synchronized CompletableFuture<Void> acquire() {
+        if (available > 0) {
+            available--;
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        waiting.add(permit);
+        return permit;
+    }
+
+    public void release() {
+        CompletableFuture<Void> next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                available++;
+                return;
+            }
+        }
+        next.complete(null);
+    }
+
+    public synchronized int getAvailable() {
+        return available;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+}
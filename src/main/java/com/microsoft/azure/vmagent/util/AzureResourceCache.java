@@ -0,0 +1,143 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent.util;
+
+import com.azure.core.exception.HttpResponseException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.microsoft.azure.vmagent.exceptions.AzureCloudException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Short lived cache of the resources every deployment relies on: resource groups known to exist, storage
+ * accounts and their keys.
+ * <p>
+ * Entries are keyed by credentials, subscription, resource group and resource name, and expire after
+ * {@code com.microsoft.azure.vmagent.util.AzureResourceCache.ttlMinutes} (10 by default). Callers drop the
+ * entries of a resource group with {@link #invalidate} when Azure answers 404 or 403 for one of them, e.g.
+ * because the storage account was deleted or its keys were rotated.
+ */
+public final class AzureResourceCache {
+
+    private static final Logger LOGGER = Logger.getLogger(AzureResourceCache.class.getName());
+
+    private static final long DEFAULT_TTL_MINUTES = 10;
+
+    private static final long MAXIMUM_SIZE = 1000;
+
+    public static final String RESOURCE_GROUP = "resourceGroup";
+
+    public static final String STORAGE_ACCOUNT = "storageAccount";
+
+    public static final String STORAGE_ACCOUNT_KEY = "storageAccountKey";
+
+    private static final Cache<String, Object> CACHE = Caffeine.newBuilder()
+            .expireAfterWrite(SystemProperties.getLong(AzureResourceCache.class.getName() + ".ttlMinutes",
+                    DEFAULT_TTL_MINUTES), TimeUnit.MINUTES)
+            .maximumSize(MAXIMUM_SIZE)
+            .build();
+
+    /**
+     * Returns the cached value, calling the loader on a miss. Failures are not cached.
+     *
+     * @param kind           Kind of resource, one of the constants of this class
+     * @param credentialsId  Credentials used to access the resource
+     * @param subscriptionId Subscription of the resource
+     * @param resourceGroup  Resource group of the resource
+     * @param name           Name of the resource, or the resource group name for resource groups
+     * @param loader         Reads or creates the resource
+     * @return The cached or loaded value
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T get(
+            String kind,
+            String credentialsId,
+            String subscriptionId,
+            String resourceGroup,
+            String name,
+            Callable<T> loader) throws AzureCloudException {
+        String key = keyOf(kind, credentialsId, subscriptionId, resourceGroup, name);
+        Object value = CACHE.getIfPresent(key);
+        if (value != null) {
+            return (T) value;
+        }
+        T loaded;
+        try {
+            loaded = loader.call();
+        } catch (AzureCloudException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw AzureCloudException.create(e);
+        }
+        if (loaded != null) {
+            CACHE.put(key, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Drops everything cached for a resource group.
+     */
+    public static void invalidate(String credentialsId, String subscriptionId, String resourceGroup) {
+        String prefix = prefixOf(credentialsId, subscriptionId, resourceGroup);
+        LOGGER.log(Level.FINE, "Invalidating cached resources of resource group {0}", resourceGroup);
+        CACHE.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Whether the failure, or one of its causes, is an HTTP 404 or 403 answer, meaning that what was cached
+     * about the resource is probably outdated.
+     */
+    public static boolean isNotFoundOrForbidden(Throwable throwable) {
+        for (Throwable current = throwable; current != null; current = current.getCause()) {
+            if (current instanceof HttpResponseException) {
+                HttpResponseException responseException = (HttpResponseException) current;
+                if (responseException.getResponse() != null) {
+                    int status = responseException.getResponse().getStatusCode();
+                    return status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_FORBIDDEN;
+                }
+            }
+        }
+        return false;
+    }
+
+    static long size() {
+        CACHE.cleanUp();
+        return CACHE.estimatedSize();
+    }
+
+    static void invalidateAll() {
+        CACHE.invalidateAll();
+    }
+
+    private static String keyOf(String kind, String credentialsId, String subscriptionId, String resourceGroup,
+                                String name) {
+        return prefixOf(credentialsId, subscriptionId, resourceGroup) + kind + "|" + name;
+    }
+
+    private static String prefixOf(String credentialsId, String subscriptionId, String resourceGroup) {
+        return credentialsId + "|" + subscriptionId + "|" + resourceGroup + "|";
+    }
+
+    private AzureResourceCache() {
+        // hide constructor
+    }
+}
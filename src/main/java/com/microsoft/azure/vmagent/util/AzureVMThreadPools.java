@@ -0,0 +1,327 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent.util;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Bounded thread pools of the plugin, one per class of work.
+ * <p>
+ * Each pool has named threads, a fixed maximum size and a bounded queue, so a burst of one kind of work
+ * (e.g. deployments during a provisioning storm) cannot starve another one (e.g. cleanup). Submissions beyond
+ * the queue limit are rejected with a {@link RejectedExecutionException}. Sizes can be overridden with the
+ * system properties {@code com.microsoft.azure.vmagent.util.AzureVMThreadPools.<workload>.threads} and
+ * {@code com.microsoft.azure.vmagent.util.AzureVMThreadPools.<workload>.queue}.
+ * <p>
+ * Setting {@code com.microsoft.azure.vmagent.util.AzureVMThreadPools.virtualThreads} to {@code true} runs
+ * the pools on virtual threads when the JVM supports them. Almost all work of the plugin is waiting on Azure
+ * or on agents, so each task then gets its own cheap thread instead of a slot in a small platform pool; the
+ * queue limit and the statistics still apply. On JVMs without virtual threads the platform pools are used.
+ */
+public final class AzureVMThreadPools {
+
+    private static final Logger LOGGER = Logger.getLogger(AzureVMThreadPools.class.getName());
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static final String PROPERTY_PREFIX = AzureVMThreadPools.class.getName();
+
+    private static final boolean VIRTUAL_THREADS_REQUESTED =
+            SystemProperties.getBoolean(PROPERTY_PREFIX + ".virtualThreads");
+
+    private static final int VIRTUAL_THREADS_LIMIT =
+            SystemProperties.getInteger(PROPERTY_PREFIX + ".virtualThreads.limit", 10000);
+
+    private static Boolean virtualThreadsEnabled;
+
+    public enum Workload {
+        /**
+         * Submission of ARM deployments.
+         */
+        DEPLOYMENT(10, 200),
+        /**
+         * Template verification.
+         */
+        VERIFICATION(4, 100),
+        /**
+         * Periodic clean up of agents, deployments and leaked resources, and the deletions it fans out.
+         */
+        CLEANUP(10, 500),
+        /**
+         * Phases of the periodic clean up, one per cloud and kind of resource. The deletions they start run on
+         * {@link #CLEANUP}.
+         */
+        CLEANUP_PHASE(8, 100),
+        /**
+         * Tasks run through {@link ExecutionEngine}, such as deprovisioning and shutting down agents.
+         */
+        RETRY(20, 1000),
+        /**
+         * Waits for inbound agents to come online.
+         */
+        JNLP_WAIT(20, 200),
+        /**
+         * Restarting reused agents and connecting them again, and the blocking steps of bringing up new agents.
+         */
+        AGENT_LAUNCH(20, 200);
+
+        private final int defaultThreads;
+
+        private final int defaultQueueLimit;
+
+        Workload(int defaultThreads, int defaultQueueLimit) {
+            this.defaultThreads = defaultThreads;
+            this.defaultQueueLimit = defaultQueueLimit;
+        }
+
+        public String getPropertyName() {
+            return name().toLowerCase(Locale.ENGLISH).replace('_', '-');
+        }
+    }
+
+    private static final Map<Workload, InstrumentedThreadPoolExecutor> POOLS = new EnumMap<>(Workload.class);
+
+    /**
+     * Returns the pool of the given workload, creating it on first use.
+     *
+     * @param workload Class of work to run
+     * @return Pool dedicated to the workload
+     */
+    public static synchronized ExecutorService get(Workload workload) {
+        InstrumentedThreadPoolExecutor pool = POOLS.get(workload);
+        if (pool == null) {
+            String prefix = PROPERTY_PREFIX + "." + workload.getPropertyName();
+            int queueLimit = Math.max(1, SystemProperties.getInteger(prefix + ".queue", workload.defaultQueueLimit));
+            String threadName = "AzureVMAgents." + workload.getPropertyName();
+            ThreadFactory virtualThreadFactory = isVirtualThreadsEnabled() ? newVirtualThreadFactory(threadName) : null;
+            if (virtualThreadFactory != null) {
+                pool = new InstrumentedThreadPoolExecutor(workload, Math.max(1, VIRTUAL_THREADS_LIMIT), queueLimit,
+                        virtualThreadFactory);
+            } else {
+                int threads = Math.max(1, SystemProperties.getInteger(prefix + ".threads", workload.defaultThreads));
+                pool = new InstrumentedThreadPoolExecutor(workload, threads, queueLimit,
+                        new NamingThreadFactory(new DaemonThreadFactory(), threadName));
+            }
+            POOLS.put(workload, pool);
+            LOGGER.log(Level.FINE, "Created {0} pool with {1} {2} threads and a queue of {3}",
+                    new Object[]{workload, pool.getMaximumPoolSize(),
+                            virtualThreadFactory != null ? "virtual" : "platform", queueLimit});
+        }
+        return pool;
+    }
+
+    /**
+     * Whether the pools run on virtual threads: requested through the system property and supported by the
+     * running JVM.
+     */
+    public static synchronized boolean isVirtualThreadsEnabled() {
+        if (virtualThreadsEnabled == null) {
+            virtualThreadsEnabled = VIRTUAL_THREADS_REQUESTED && newVirtualThreadFactory("probe") != null;
+            if (VIRTUAL_THREADS_REQUESTED && !virtualThreadsEnabled) {
+                LOGGER.log(Level.INFO, "Virtual threads were requested but are not supported by this JVM ({0}), "
+                        + "using platform threads", System.getProperty("java.version"));
+            }
+        }
+        return virtualThreadsEnabled;
+    }
+
+    /**
+     * Builds a factory of named virtual threads through reflection, as the plugin is compiled for a Java
+     * release that predates them.
+     *
+     * @return The factory, or null if virtual threads are not available
+     */
+    static ThreadFactory newVirtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Virtual threads are not available", e);
+            return null;
+        }
+    }
+
+    /**
+     * Snapshot of the statistics of all pools created so far.
+     *
+     * @return One entry per pool
+     */
+    public static synchronized List<Statistics> getStatistics() {
+        List<Statistics> result = new ArrayList<>();
+        for (InstrumentedThreadPoolExecutor pool : POOLS.values()) {
+            result.add(pool.snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Point in time statistics of a pool.
+     */
+    public static final class Statistics {
+        private final Workload workload;
+
+        private final int activeCount;
+
+        private final int queuedCount;
+
+        private final int maximumPoolSize;
+
+        private final long completedCount;
+
+        private final long rejectedCount;
+
+        private final long averageQueueMillis;
+
+        private final long averageRunMillis;
+
+        Statistics(Workload workload, int activeCount, int queuedCount, int maximumPoolSize,
+                   long completedCount, long rejectedCount, long averageQueueMillis, long averageRunMillis) {
+            this.workload = workload;
+            this.activeCount = activeCount;
+            this.queuedCount = queuedCount;
+            this.maximumPoolSize = maximumPoolSize;
+            this.completedCount = completedCount;
+            this.rejectedCount = rejectedCount;
+            this.averageQueueMillis = averageQueueMillis;
+            this.averageRunMillis = averageRunMillis;
+        }
+
+        public Workload getWorkload() {
+            return workload;
+        }
+
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        public int getQueuedCount() {
+            return queuedCount;
+        }
+
+        public int getMaximumPoolSize() {
+            return maximumPoolSize;
+        }
+
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        public long getAverageQueueMillis() {
+            return averageQueueMillis;
+        }
+
+        public long getAverageRunMillis() {
+            return averageRunMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: active=%d/%d queued=%d completed=%d rejected=%d avgQueue=%dms avgRun=%dms",
+                    workload, activeCount, maximumPoolSize, queuedCount, completedCount, rejectedCount,
+                    averageQueueMillis, averageRunMillis);
+        }
+    }
+
+    /**
+     * Fixed-size pool recording how long tasks wait in the queue and how long they run.
+     */
+    static final class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+        private final Workload workload;
+
+        private final LongAdder completed = new LongAdder();
+
+        private final LongAdder rejected = new LongAdder();
+
+        private final LongAdder queueNanos = new LongAdder();
+
+        private final LongAdder runNanos = new LongAdder();
+
+        InstrumentedThreadPoolExecutor(Workload workload, int threads, int queueLimit, ThreadFactory threadFactory) {
+            super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueLimit),
+                    threadFactory);
+            this.workload = workload;
+            allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            try {
+                super.execute(new TimedTask(command));
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                LOGGER.log(Level.WARNING, "{0} pool is saturated ({1} active, {2} queued), rejecting task",
+                        new Object[]{workload, getActiveCount(), getQueue().size()});
+                throw e;
+            }
+        }
+
+        Statistics snapshot() {
+            long count = completed.sum();
+            long averageQueueMillis = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(queueNanos.sum() / count);
+            long averageRunMillis = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(runNanos.sum() / count);
+            return new Statistics(workload, getActiveCount(), getQueue().size(), getMaximumPoolSize(),
+                    count, rejected.sum(), averageQueueMillis, averageRunMillis);
+        }
+
+        private final class TimedTask implements Runnable {
+            private final Runnable delegate;
+
+            private final long submittedAt = System.nanoTime();
+
+            TimedTask(Runnable delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override
+            public void run() {
+                long startedAt = System.nanoTime();
+                queueNanos.add(startedAt - submittedAt);
+                try {
+                    delegate.run();
+                } finally {
+                    runNanos.add(System.nanoTime() - startedAt);
+                    completed.increment();
+                }
+            }
+        }
+    }
+
+    private AzureVMThreadPools() {
+        // hide constructor
+    }
+}
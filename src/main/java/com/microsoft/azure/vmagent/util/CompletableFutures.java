@@ -0,0 +1,213 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Helpers to wait for blocking futures and conditions without parking a thread on each of them.
+ * <p>
+ * Instead of calling {@link Future#get()} the state is checked periodically on a shared scheduler, so many
+ * waits in flight only cost a scheduled task each.
+ */
+public final class CompletableFutures {
+
+    /**
+     * Adapts a plain {@link Future} into a {@link CompletableFuture} by checking it every
+     * {@code intervalMillis}.
+     *
+     * @param future         Future to observe
+     * @param scheduler      Scheduler running the checks
+     * @param intervalMillis Delay between two checks
+     * @return Future completed with the outcome of the observed future
+     */
+    public static <T> CompletableFuture<T> poll(
+            Future<T> future,
+            ScheduledExecutorService scheduler,
+            long intervalMillis) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable check = new Runnable() {
+            @Override
+            public void run() {
+                if (result.isDone()) {
+                    return;
+                }
+                if (!future.isDone()) {
+                    scheduler.schedule(this, intervalMillis, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                try {
+                    result.complete(future.get());
+                } catch (ExecutionException e) {
+                    result.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+                } catch (CancellationException e) {
+                    result.completeExceptionally(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result.completeExceptionally(e);
+                }
+            }
+        };
+        check.run();
+        return result;
+    }
+
+    /**
+     * Returns a future completed once the condition holds, checking it every {@code intervalMillis}. The
+     * future fails with a {@link TimeoutException} if the condition does not hold within
+     * {@code timeoutMillis}, or with whatever the condition throws.
+     *
+     * @param condition      Condition to wait for
+     * @param scheduler      Scheduler running the checks
+     * @param intervalMillis Delay between two checks
+     * @param timeoutMillis  Maximum time to wait
+     * @param description    Description of the wait, used in the timeout message
+     * @return Future completed when the condition holds
+     */
+    public static CompletableFuture<Void> waitFor(
+            BooleanSupplier condition,
+            ScheduledExecutorService scheduler,
+            long intervalMillis,
+            long timeoutMillis,
+            String description) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Runnable check = new Runnable() {
+            @Override
+            public void run() {
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    if (condition.getAsBoolean()) {
+                        result.complete(null);
+                    } else if (System.currentTimeMillis() >= deadline) {
+                        result.completeExceptionally(new TimeoutException(String.format(
+                                "Timed out after %d ms waiting for %s", timeoutMillis, description)));
+                    } else {
+                        scheduler.schedule(this, intervalMillis, TimeUnit.MILLISECONDS);
+                    }
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        };
+        scheduler.execute(check);
+        return result;
+    }
+
+    /**
+     * Runs an asynchronous action on each item, with at most {@code parallelism} actions in flight. The
+     * actions are started in the order of the items, each one as soon as a previous one completes.
+     *
+     * @param items       Items to process
+     * @param parallelism Maximum number of actions in flight
+     * @param action      Starts the action on one item. Its failures are ignored, handle them in the action.
+     * @return Future completed once every action completed
+     */
+    public static <T> CompletableFuture<Void> forEach(
+            Collection<T> items,
+            int parallelism,
+            Function<T, CompletableFuture<Void>> action) {
+        Queue<T> remaining = new ConcurrentLinkedQueue<>(items);
+        int workers = Math.min(parallelism, remaining.size());
+        List<CompletableFuture<Void>> drains = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            drains.add(drain(remaining, action));
+        }
+        return CompletableFuture.allOf(drains.toArray(new CompletableFuture[0]));
+    }
+
+    private static <T> CompletableFuture<Void> drain(Queue<T> remaining, Function<T, CompletableFuture<Void>> action) {
+        T item = remaining.poll();
+        while (item != null) {
+            CompletableFuture<Void> started;
+            try {
+                started = action.apply(item);
+            } catch (RuntimeException e) {
+                started = CompletableFuture.failedFuture(e);
+            }
+            // Actions completing synchronously are chained in a loop rather than recursively
+            if (!started.isDone()) {
+                return started.handle((ignored, e) -> null).thenCompose(ignored -> drain(remaining, action));
+            }
+            item = remaining.poll();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Runs a blocking call on an executor. Unlike {@link CompletableFuture#supplyAsync}, a checked exception of
+     * the call or the rejection of the task by a bounded executor fails the returned future instead of being
+     * thrown.
+     *
+     * @param call     Call to run
+     * @param executor Executor running the call
+     * @return Future completed with the result of the call
+     */
+    public static <T> CompletableFuture<T> callAsync(Callable<T> call, Executor executor) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Strips the {@link CompletionException} and {@link ExecutionException} wrappers added by future
+     * composition.
+     *
+     * @param throwable Throwable reported by a future
+     * @return The underlying cause
+     */
+    public static Throwable unwrap(Throwable throwable) {
+        Throwable current = throwable;
+        while ((current instanceof CompletionException || current instanceof ExecutionException)
+                && current.getCause() != null) {
+            current = current.getCause();
+        }
+        return current;
+    }
+
+    private CompletableFutures() {
+        // hide constructor
+    }
+}
@@ -15,7 +15,6 @@
  */
 package com.microsoft.azure.vmagent.util;
 
-import com.microsoft.azure.vmagent.AzureVMCloud;
 import com.microsoft.azure.vmagent.exceptions.AzureCloudException;
 import com.microsoft.azure.vmagent.retry.NoRetryStrategy;
 import com.microsoft.azure.vmagent.retry.RetryStrategy;
@@ -23,6 +22,7 @@ import com.microsoft.azure.vmagent.retry.RetryTask;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -34,7 +34,7 @@ public class ExecutionEngine {
 
     public static <T> T executeWithRetry(Callable<T> task, RetryStrategy retryStrategy)
             throws AzureCloudException {
-        Future<T> result = AzureVMCloud.getThreadPool().submit(new RetryTask<>(task, retryStrategy));
+        Future<T> result = submit(task, retryStrategy);
 
         try {
             if (retryStrategy.getMaxTimeoutInSeconds() == 0) {
@@ -51,6 +51,16 @@ public class ExecutionEngine {
 
     public <T> Future<T> executeAsync(Callable<T> task, RetryStrategy retryStrategy)
             throws AzureCloudException {
-        return AzureVMCloud.getThreadPool().submit(new RetryTask<>(task, retryStrategy));
+        return submit(task, retryStrategy);
+    }
+
+    private static <T> Future<T> submit(Callable<T> task, RetryStrategy retryStrategy)
+            throws AzureCloudException {
+        try {
+            return AzureVMThreadPools.get(AzureVMThreadPools.Workload.RETRY)
+                    .submit(new RetryTask<>(task, retryStrategy));
+        } catch (RejectedExecutionException e) {
+            throw AzureCloudException.create("Too many operations in progress: ", e);
+        }
     }
 }
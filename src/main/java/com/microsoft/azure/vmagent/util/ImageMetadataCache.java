@@ -0,0 +1,172 @@
+/*
+ Copyright 2016 Microsoft, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoft.azure.vmagent.util;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.microsoft.azure.vmagent.exceptions.AzureCloudException;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Cache of the image metadata read from Azure while deploying agents: purchase plans of marketplace images,
+ * tags of custom images and resolved gallery image versions.
+ * <p>
+ * Entries are keyed by credentials, subscription and image coordinates. They expire after
+ * {@code com.microsoft.azure.vmagent.util.ImageMetadataCache.ttlMinutes} (60 by default). Once older than
+ * {@code com.microsoft.azure.vmagent.util.ImageMetadataCache.refreshMinutes} (10 by default) the cached value is
+ * still returned but reloaded in the background, so a new "latest" gallery version is picked up without making
+ * a deployment wait for it. Missing images are cached as well. {@link #invalidateAll()} flushes the cache.
+ */
+public final class ImageMetadataCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ImageMetadataCache.class.getName());
+
+    private static final String PROPERTY_PREFIX = ImageMetadataCache.class.getName();
+
+    private static final long DEFAULT_TTL_MINUTES = 60;
+
+    private static final long DEFAULT_REFRESH_MINUTES = 10;
+
+    private static final long MAXIMUM_SIZE = 1000;
+
+    private static final LoadingCache<Lookup<?>, Optional<?>> CACHE = Caffeine.newBuilder()
+            .expireAfterWrite(SystemProperties.getLong(PROPERTY_PREFIX + ".ttlMinutes", DEFAULT_TTL_MINUTES),
+                    TimeUnit.MINUTES)
+            .refreshAfterWrite(SystemProperties.getLong(PROPERTY_PREFIX + ".refreshMinutes",
+                    DEFAULT_REFRESH_MINUTES), TimeUnit.MINUTES)
+            .maximumSize(MAXIMUM_SIZE)
+            .executor(task -> AzureVMThreadPools.get(AzureVMThreadPools.Workload.DEPLOYMENT).execute(task))
+            .build(ImageMetadataCache::load);
+
+    /**
+     * Reads metadata from Azure.
+     */
+    @FunctionalInterface
+    public interface Loader<T> {
+        /**
+         * @return The metadata, or null if the image does not exist
+         */
+        T load() throws Exception;
+    }
+
+    /**
+     * Returns the cached metadata, loading it on a miss.
+     *
+     * @param kind           Kind of metadata, e.g. "plan" or "galleryVersion"
+     * @param credentialsId  Credentials used to read it
+     * @param subscriptionId Subscription holding the image
+     * @param coordinates    Coordinates of the image within the subscription
+     * @param loader         Reads the metadata from Azure, also used for background refreshes
+     * @return The metadata, or null if the image does not exist
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T get(
+            String kind,
+            String credentialsId,
+            String subscriptionId,
+            List<String> coordinates,
+            Loader<T> loader) throws AzureCloudException {
+        try {
+            return (T) CACHE.get(new Lookup<>(kind, credentialsId, subscriptionId, coordinates, loader))
+                    .orElse(null);
+        } catch (CompletionException e) {
+            Throwable cause = CompletableFutures.unwrap(e);
+            if (cause instanceof AzureCloudException) {
+                throw (AzureCloudException) cause;
+            }
+            throw AzureCloudException.create(e);
+        }
+    }
+
+    /**
+     * Flushes all cached metadata, e.g. after an image was replaced.
+     */
+    public static void invalidateAll() {
+        LOGGER.log(Level.FINE, "Flushing {0} cached image lookups", CACHE.estimatedSize());
+        CACHE.invalidateAll();
+    }
+
+    static long size() {
+        CACHE.cleanUp();
+        return CACHE.estimatedSize();
+    }
+
+    private static Optional<?> load(Lookup<?> lookup) throws Exception {
+        LOGGER.log(Level.FINE, "Loading {0}", lookup);
+        return Optional.ofNullable(lookup.loader.load());
+    }
+
+    /**
+     * Cache key. The loader is not part of the identity of the key, the one of the first lookup is kept for
+     * refreshes.
+     */
+    private static final class Lookup<T> {
+        private final String kind;
+
+        private final String credentialsId;
+
+        private final String subscriptionId;
+
+        private final List<String> coordinates;
+
+        private final Loader<T> loader;
+
+        Lookup(String kind, String credentialsId, String subscriptionId, List<String> coordinates,
+               Loader<T> loader) {
+            this.kind = kind;
+            this.credentialsId = credentialsId;
+            this.subscriptionId = subscriptionId;
+            this.coordinates = coordinates;
+            this.loader = loader;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Lookup)) {
+                return false;
+            }
+            Lookup<?> other = (Lookup<?>) o;
+            return Objects.equals(kind, other.kind)
+                    && Objects.equals(credentialsId, other.credentialsId)
+                    && Objects.equals(subscriptionId, other.subscriptionId)
+                    && Objects.equals(coordinates, other.coordinates);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, credentialsId, subscriptionId, coordinates);
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + coordinates + " in subscription " + subscriptionId;
+        }
+    }
+
+    private ImageMetadataCache() {
+        // hide constructor
+    }
+}
@@ -1,8 +1,10 @@
 package com.microsoft.azure.vmagent.util;
 
 import com.microsoft.azure.vmagent.AzureVMAgentTemplate;
+import com.microsoft.azure.vmagent.DataDisk;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.List;
 import java.util.Objects;
 
 public final class TemplateUtil {
@@ -59,6 +61,57 @@ public final class TemplateUtil {
         return false;
     }
 
+    /**
+     * Like {@link #checkSame}, but also compares the settings that only affect the ARM deployment of the agents,
+     * such as tags, disks, gallery image and security options.
+     */
+    public static boolean checkSameDeployment(AzureVMAgentTemplate a, AzureVMAgentTemplate b) {
+        return checkSame(a, b)
+                && Objects.equals(a.getTags(), b.getTags())
+                && StringUtils.equals(a.getResourceGroupName(), b.getResourceGroupName())
+                && StringUtils.equals(a.getResourceGroupReferenceType(), b.getResourceGroupReferenceType())
+                && StringUtils.equals(a.getOsDiskStorageAccountType(), b.getOsDiskStorageAccountType())
+                && a.isEphemeralOSDisk() == b.isEphemeralOSDisk()
+                && a.isEncryptionAtHost() == b.isEncryptionAtHost()
+                && a.isDisableWindowsUpdates() == b.isDisableWindowsUpdates()
+                && a.isSpotInstance() == b.isSpotInstance()
+                && a.isTrustedLaunch() == b.isTrustedLaunch()
+                && a.isAcceleratedNetworking() == b.isAcceleratedNetworking()
+                && a.isUseEntraIdForStorageAccount() == b.isUseEntraIdForStorageAccount()
+                && StringUtils.equals(a.getLicenseType(), b.getLicenseType())
+                && StringUtils.equals(a.getImageReference().getGalleryName(),
+                b.getImageReference().getGalleryName())
+                && StringUtils.equals(a.getImageReference().getGalleryImageDefinition(),
+                b.getImageReference().getGalleryImageDefinition())
+                && StringUtils.equals(a.getImageReference().getGalleryImageVersion(),
+                b.getImageReference().getGalleryImageVersion())
+                && StringUtils.equals(a.getImageReference().getGallerySubscriptionId(),
+                b.getImageReference().getGallerySubscriptionId())
+                && StringUtils.equals(a.getImageReference().getGalleryResourceGroup(),
+                b.getImageReference().getGalleryResourceGroup())
+                && a.getImageReference().getGalleryImageSpecialized()
+                == b.getImageReference().getGalleryImageSpecialized()
+                && checkSameDataDisks(a.getDataDisks(), b.getDataDisks());
+    }
+
+    private static boolean checkSameDataDisks(List<DataDisk> a, List<DataDisk> b) {
+        int sizeA = a == null ? 0 : a.size();
+        int sizeB = b == null ? 0 : b.size();
+        if (sizeA != sizeB) {
+            return false;
+        }
+        for (int i = 0; i < sizeA; i++) {
+            DataDisk diskA = a.get(i);
+            DataDisk diskB = b.get(i);
+            if (diskA.getDiskSize() != diskB.getDiskSize()
+                    || !StringUtils.equals(diskA.getDiskCache(), diskB.getDiskCache())
+                    || !StringUtils.equals(diskA.getStorageAccountType(), diskB.getStorageAccountType())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private TemplateUtil() {
 
     }
@@ -0,0 +1,85 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class AgentCleanUpQueueTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final List<String> checked = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void agentQueuedSeveralTimesBeforeTheDelayIsCheckedOnce() throws Exception {
+        // Given
+        AgentCleanUpQueue queue = new AgentCleanUpQueue(scheduler, Runnable::run, 50, name -> {
+            checked.add(name);
+            return false;
+        });
+
+        // When
+        queue.enqueue("agent1");
+        queue.enqueue("agent1");
+        queue.enqueue("agent2");
+        waitForChecks(2);
+        Thread.sleep(100);
+
+        // Then
+        assertThat(checked, contains("agent1", "agent2"));
+        assertThat(queue.isQueued("agent1"), equalTo(false));
+    }
+
+    @Test
+    void busyAgentIsCheckedAgainUntilItCanBeCleanedUp() throws Exception {
+        // Given
+        AgentCleanUpQueue queue = new AgentCleanUpQueue(scheduler, Runnable::run, 10,
+                name -> checked.add(name) && checked.size() < 3);
+
+        // When
+        queue.enqueue("agent1");
+        waitForChecks(3);
+        Thread.sleep(100);
+
+        // Then
+        assertThat(checked, contains("agent1", "agent1", "agent1"));
+        assertThat(queue.isQueued("agent1"), equalTo(false));
+    }
+
+    @Test
+    void failingCheckIsNotRetried() throws Exception {
+        // Given
+        AgentCleanUpQueue queue = new AgentCleanUpQueue(scheduler, Runnable::run, 10, name -> {
+            checked.add(name);
+            throw new IllegalStateException("no Jenkins");
+        });
+
+        // When
+        queue.enqueue("agent1");
+        waitForChecks(1);
+        Thread.sleep(100);
+
+        // Then
+        assertThat(checked, contains("agent1"));
+    }
+
+    private void waitForChecks(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (checked.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+class AzureVMManagementServiceDelegateTest {
+
+    @Test
+    void loadEmbeddedTemplateReturnsIndependentCopies() throws Exception {
+        // Given
+        JsonNode first = AzureVMManagementServiceDelegate.loadEmbeddedTemplate("/publicIPFragment.json");
+
+        // When
+        ((ObjectNode) first).put("modified", true);
+        JsonNode second = AzureVMManagementServiceDelegate.loadEmbeddedTemplate("/publicIPFragment.json");
+
+        // Then
+        assertThat(second, not(sameInstance(first)));
+        assertThat(second.has("modified"), equalTo(false));
+    }
+
+    @Test
+    void loadDeploymentSkeletonKeepsOnlyTheScriptExtensionOfTheOs() throws Exception {
+        // Given
+        String location = "/referenceImageTemplateWithScript.json";
+        int extensions = virtualMachineResources(AzureVMManagementServiceDelegate.loadEmbeddedTemplate(location));
+
+        // When
+        JsonNode windows = AzureVMManagementServiceDelegate.loadDeploymentSkeleton(location, true, true);
+        JsonNode linux = AzureVMManagementServiceDelegate.loadDeploymentSkeleton(location, true, false);
+        JsonNode linuxAgain = AzureVMManagementServiceDelegate.loadDeploymentSkeleton(location, true, false);
+
+        // Then
+        assertThat(virtualMachineResources(windows), equalTo(extensions - 1));
+        assertThat(virtualMachineResources(linux), equalTo(extensions - 1));
+        assertThat(virtualMachineResources(linuxAgain), equalTo(extensions - 1));
+    }
+
+    @Test
+    void onlyTheImageOfTheDeploymentIsRemovedWithTheVm() {
+        // Given
+        String vmName = "linux1a2b3";
+
+        // When / Then
+        assertThat(AzureVMManagementServiceDelegate.isDeploymentImage(vmName, "linux1a2bImage"), equalTo(true));
+        assertThat(AzureVMManagementServiceDelegate.isDeploymentImage(vmName, "linux1aImage"), equalTo(false));
+        assertThat(AzureVMManagementServiceDelegate.isDeploymentImage(vmName, "linux1a2b3Image"), equalTo(false));
+        assertThat(AzureVMManagementServiceDelegate.isDeploymentImage(vmName, "myCustomImage"), equalTo(false));
+    }
+
+    private static int virtualMachineResources(JsonNode template) {
+        for (JsonNode resource : template.get("resources")) {
+            if (resource.get("type").asText().contains("virtualMachine")) {
+                return resource.get("resources").size();
+            }
+        }
+        return -1;
+    }
+}
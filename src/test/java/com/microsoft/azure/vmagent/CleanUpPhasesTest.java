@@ -0,0 +1,131 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CleanUpPhasesTest {
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void slowPhaseIsCancelledWithoutDelayingTheOthers() throws Exception {
+        // Given
+        CleanUpPhases phases = new CleanUpPhases(executor);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        phases.submit("slow", 100, () -> {
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        phases.submit("fast", TimeUnit.MINUTES.toMillis(1), () -> { });
+
+        // When
+        long start = System.currentTimeMillis();
+        phases.awaitAll();
+
+        // Then
+        assertThat(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(30), equalTo(true));
+        assertThat(interrupted.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(phases.getLastCompleted("fast"), notNullValue());
+        assertThat(phases.getLastCompleted("slow"), nullValue());
+    }
+
+    @Test
+    void phaseStillRunningIsNotStartedAgain() throws Exception {
+        // Given
+        CleanUpPhases phases = new CleanUpPhases(executor);
+        CountDownLatch release = new CountDownLatch(1);
+        phases.submit("cloud", TimeUnit.MINUTES.toMillis(1), () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // When
+        boolean started = phases.submit("cloud", TimeUnit.MINUTES.toMillis(1), () -> { });
+
+        // Then
+        assertThat(started, equalTo(false));
+        release.countDown();
+        phases.awaitAll();
+        assertThat(phases.submit("cloud", TimeUnit.MINUTES.toMillis(1), () -> { }), equalTo(true));
+        phases.awaitAll();
+    }
+
+    @Test
+    void cancelledPhaseIgnoringTheInterruptionIsNotStartedAgain() throws Exception {
+        // Given
+        CleanUpPhases phases = new CleanUpPhases(executor);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        phases.submit("cloud", 100, () -> {
+            while (true) {
+                try {
+                    release.await();
+                    return;
+                } catch (InterruptedException e) {
+                    // Carries on, like a clean up catching the interruption
+                    interrupted.countDown();
+                }
+            }
+        });
+        phases.awaitAll();
+        assertThat(interrupted.await(5, TimeUnit.SECONDS), equalTo(true));
+
+        // When
+        boolean started = phases.submit("cloud", TimeUnit.MINUTES.toMillis(1), () -> { });
+
+        // Then
+        assertThat(started, equalTo(false));
+        release.countDown();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        boolean startedOnceFinished = false;
+        while (!startedOnceFinished && System.currentTimeMillis() < deadline) {
+            startedOnceFinished = phases.submit("cloud", TimeUnit.MINUTES.toMillis(1), () -> { });
+            Thread.sleep(10);
+        }
+        assertThat(startedOnceFinished, equalTo(true));
+        phases.awaitAll();
+    }
+
+    @Test
+    void failingPhaseDoesNotStopTheOthers() throws Exception {
+        // Given
+        CleanUpPhases phases = new CleanUpPhases(executor);
+        phases.submit("failing", TimeUnit.MINUTES.toMillis(1), () -> {
+            throw new IllegalStateException("throttled");
+        });
+        phases.submit("other", TimeUnit.MINUTES.toMillis(1), () -> { });
+
+        // When
+        phases.awaitAll();
+
+        // Then
+        assertThat(phases.getLastCompleted("failing"), nullValue());
+        assertThat(phases.getLastCompleted("other"), notNullValue());
+    }
+}
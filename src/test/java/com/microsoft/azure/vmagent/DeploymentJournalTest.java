@@ -0,0 +1,137 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeploymentJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replayAppliesTheRecordsInOrder() throws Exception {
+        // Given
+        Path file = directory.resolve("deployment.journal");
+        DeploymentJournal journal = new DeploymentJournal(file);
+        journal.replay();
+        AzureVMAgentCleanUpTask.DeploymentInfo first = deployment("first");
+        AzureVMAgentCleanUpTask.DeploymentInfo second = deployment("second");
+        journal.added(first);
+        journal.added(second);
+        journal.attempted(second);
+        journal.removed(first);
+        journal.close();
+
+        // When
+        List<AzureVMAgentCleanUpTask.DeploymentInfo> replayed = new DeploymentJournal(file).replay();
+
+        // Then
+        assertThat(names(replayed), contains("second"));
+        assertThat(replayed.get(0).getAttemptsRemaining(), equalTo(2));
+        assertThat(replayed.get(0).getScriptUri(), equalTo(null));
+    }
+
+    @Test
+    void aTornTailRecordIsDiscarded() throws Exception {
+        // Given
+        Path file = directory.resolve("deployment.journal");
+        DeploymentJournal journal = new DeploymentJournal(file);
+        journal.replay();
+        journal.added(deployment("kept"));
+        journal.close();
+        long validLength = Files.size(file);
+        Files.write(file, new byte[]{0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+
+        // When
+        DeploymentJournal reopened = new DeploymentJournal(file);
+        List<AzureVMAgentCleanUpTask.DeploymentInfo> replayed = reopened.replay();
+        reopened.added(deployment("appended"));
+        reopened.close();
+
+        // Then
+        assertThat(names(replayed), contains("kept"));
+        assertThat(names(new DeploymentJournal(file).replay()), contains("kept", "appended"));
+        assertThat(validLength, lessThan(Files.size(file)));
+    }
+
+    @Test
+    void compactionKeepsOnlyTheLiveDeployments() throws Exception {
+        // Given
+        Path file = directory.resolve("deployment.journal");
+        DeploymentJournal journal = new DeploymentJournal(file);
+        journal.replay();
+        List<AzureVMAgentCleanUpTask.DeploymentInfo> live = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            AzureVMAgentCleanUpTask.DeploymentInfo info = deployment("deployment" + i);
+            journal.added(info);
+            if (i % 100 == 0) {
+                live.add(info);
+            } else {
+                journal.removed(info);
+            }
+        }
+        long sizeBefore = Files.size(file);
+
+        // When
+        boolean compacted = journal.compactIfNeeded();
+        journal.close();
+
+        // Then
+        assertThat(compacted, equalTo(true));
+        assertThat(Files.size(file), lessThan(sizeBefore));
+        assertThat(names(new DeploymentJournal(file).replay()), equalTo(names(live)));
+    }
+
+    @Test
+    void compactionKeepsDeploymentsBeingChecked() throws Exception {
+        // Given
+        Path file = directory.resolve("deployment.journal");
+        DeploymentJournal journal = new DeploymentJournal(file);
+        journal.replay();
+        DeploymentSchedule schedule = new DeploymentSchedule();
+        AzureVMAgentCleanUpTask.DeploymentInfo checkedOut = deployment("checked-out");
+        checkedOut.setTimestampMillis(0);
+        schedule.add(checkedOut);
+        journal.added(checkedOut);
+        for (int i = 0; i < 1000; i++) {
+            AzureVMAgentCleanUpTask.DeploymentInfo info = deployment("deployment" + i);
+            journal.added(info);
+            journal.removed(info);
+        }
+        // Taken out of the schedule by the clean up, which has not decided about it yet
+        assertThat(names(schedule.pollDue(1000, 1, 1)), contains("checked-out"));
+        checkedOut.decrementAttemptsRemaining();
+        journal.attempted(checkedOut);
+
+        // When
+        boolean compacted = journal.compactIfNeeded();
+        journal.close();
+
+        // Then
+        assertThat(compacted, equalTo(true));
+        List<AzureVMAgentCleanUpTask.DeploymentInfo> replayed = new DeploymentJournal(file).replay();
+        assertThat(names(replayed), contains("checked-out"));
+        assertThat(replayed.get(0).getAttemptsRemaining(), equalTo(2));
+    }
+
+    private static AzureVMAgentCleanUpTask.DeploymentInfo deployment(String name) {
+        return new AzureVMAgentCleanUpTask.DeploymentInfo("cloud", "rg", name, null, 3, false);
+    }
+
+    private static List<String> names(List<AzureVMAgentCleanUpTask.DeploymentInfo> deployments) {
+        return deployments.stream()
+                .map(AzureVMAgentCleanUpTask.DeploymentInfo::getDeploymentName)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,81 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class DeploymentPlanTest {
+
+    @Test
+    void planIsValidForItsTemplateUntilItExpires() {
+        // Given
+        AzureVMAgentTemplate template = mkTemplate();
+        long now = System.currentTimeMillis();
+        DeploymentPlan plan = mkPlan(template, now);
+
+        // When
+        boolean fresh = plan.isValidFor(template, now + TimeUnit.MINUTES.toMillis(1));
+        boolean expired = plan.isValidFor(template, now + TimeUnit.DAYS.toMillis(1));
+
+        // Then
+        assertThat(fresh, equalTo(true));
+        assertThat(expired, equalTo(false));
+    }
+
+    @Test
+    void planIsInvalidatedByChangedCloudTags() {
+        // Given
+        AzureVMAgentTemplate template = mkTemplate();
+        long now = System.currentTimeMillis();
+        DeploymentPlan plan = mkPlan(template, now);
+
+        // When
+        template.retrieveAzureCloudReference().setCloudTags(List.of(new AzureTagPair("team", "ci")));
+
+        // Then
+        assertThat(plan.isValidFor(template, now), equalTo(false));
+    }
+
+    @Test
+    void newDeploymentTemplateReturnsIndependentCopies() {
+        // Given
+        DeploymentPlan plan = mkPlan(mkTemplate(), System.currentTimeMillis());
+
+        // When
+        JsonNode first = plan.newDeploymentTemplate();
+        ((ObjectNode) first).put("modified", true);
+        JsonNode second = plan.newDeploymentTemplate();
+
+        // Then
+        assertThat(second, not(sameInstance(first)));
+        assertThat(second.has("modified"), equalTo(false));
+    }
+
+    private static DeploymentPlan mkPlan(AzureVMAgentTemplate template, long createdAt) {
+        ObjectNode deploymentTemplate = new ObjectMapper().createObjectNode();
+        deploymentTemplate.putObject("variables");
+        return new DeploymentPlan(template, template.retrieveAzureCloudReference().getCloudTags(), createdAt,
+                new HashMap<>(), false, false, deploymentTemplate);
+    }
+
+    private static AzureVMAgentTemplate mkTemplate() {
+        AzureVMAgentTemplate template = new AzureVMAgentTemplate(
+                "testTemplate", null, null, null, null, null, null, null, null, null, null, null,
+                null, null, null, null, null, null, null, null, null, null, null, null, null, null,
+                null, false, false);
+        AzureVMCloud cloud = new AzureVMCloud(null, null, "0", null, null, null, null, null);
+        cloud.setCloudTags(Collections.emptyList());
+        template.addAzureCloudReference(cloud);
+        return template;
+    }
+}
@@ -0,0 +1,106 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class DeploymentScheduleTest {
+
+    private static final long MINUTE = 60_000;
+
+    private static final long NOW = 1_000 * MINUTE;
+
+    @Test
+    void pollDueReturnsDeploymentsOlderThanTheTimeoutOfTheirState() {
+        // Given
+        DeploymentSchedule schedule = new DeploymentSchedule();
+        AzureVMAgentCleanUpTask.DeploymentInfo oldSucceeded = deployment("oldSucceeded", NOW - 70 * MINUTE, "Succeeded");
+        AzureVMAgentCleanUpTask.DeploymentInfo newSucceeded = deployment("newSucceeded", NOW - 50 * MINUTE, "Succeeded");
+        AzureVMAgentCleanUpTask.DeploymentInfo oldFailed = deployment("oldFailed", NOW - 30 * MINUTE, "Failed");
+        AzureVMAgentCleanUpTask.DeploymentInfo newFailed = deployment("newFailed", NOW - 10 * MINUTE, "Failed");
+        schedule.add(newSucceeded);
+        schedule.add(newFailed);
+        schedule.add(oldFailed);
+        schedule.add(oldSucceeded);
+
+        // When
+        List<AzureVMAgentCleanUpTask.DeploymentInfo> due = schedule.pollDue(NOW, 60 * MINUTE, 20 * MINUTE);
+
+        // Then
+        assertThat(due, contains(oldSucceeded, oldFailed));
+        assertThat(schedule.size(), equalTo(2));
+        assertThat(schedule.pollDue(NOW, 60 * MINUTE, 20 * MINUTE), empty());
+    }
+
+    @Test
+    void pollDueUsesTheShortestTimeoutForDeploymentsNotReadYet() {
+        // Given
+        DeploymentSchedule schedule = new DeploymentSchedule();
+        AzureVMAgentCleanUpTask.DeploymentInfo recent = deployment("recent", NOW - 10 * MINUTE, null);
+        AzureVMAgentCleanUpTask.DeploymentInfo older = deployment("older", NOW - 30 * MINUTE, null);
+        AzureVMAgentCleanUpTask.DeploymentInfo replayed = deployment("replayed", 0, null);
+        schedule.add(recent);
+        schedule.add(older);
+        schedule.add(replayed);
+
+        // When
+        List<AzureVMAgentCleanUpTask.DeploymentInfo> due = schedule.pollDue(NOW, 60 * MINUTE, 20 * MINUTE);
+
+        // Then
+        assertThat(due, contains(replayed, older));
+        assertThat(schedule.snapshot(), contains(recent));
+    }
+
+    @Test
+    void runningDeploymentsAreCheckedAgainAfterTheShortestTimeout() {
+        // Given
+        DeploymentSchedule schedule = new DeploymentSchedule();
+        AzureVMAgentCleanUpTask.DeploymentInfo running = deployment("running", NOW - 70 * MINUTE, "Running");
+        AzureVMAgentCleanUpTask.DeploymentInfo accepted = deployment("accepted", NOW - 30 * MINUTE, "Accepted");
+        AzureVMAgentCleanUpTask.DeploymentInfo canceled = deployment("canceled", NOW - 70 * MINUTE, "Canceled");
+        schedule.add(running);
+        schedule.add(accepted);
+        schedule.add(canceled);
+
+        // When
+        List<AzureVMAgentCleanUpTask.DeploymentInfo> due = schedule.pollDue(NOW, 60 * MINUTE, 480 * MINUTE);
+
+        // Then
+        assertThat(due, contains(running));
+        assertThat(schedule.snapshot(), contains(accepted, canceled));
+    }
+
+    @Test
+    void pollDueWithNegativeTimeoutsReturnsEverything() {
+        // Given
+        DeploymentSchedule schedule = new DeploymentSchedule();
+        schedule.add(deployment("a", NOW, "Succeeded"));
+        schedule.add(deployment("b", NOW, "Running"));
+        schedule.add(deployment("c", NOW, null));
+
+        // When
+        List<AzureVMAgentCleanUpTask.DeploymentInfo> due = schedule.pollDue(NOW, -1, -1);
+
+        // Then
+        assertThat(due.size(), equalTo(3));
+        assertThat(schedule.isEmpty(), equalTo(true));
+    }
+
+    private static AzureVMAgentCleanUpTask.DeploymentInfo deployment(String name, long timestampMillis, String state) {
+        AzureVMAgentCleanUpTask.DeploymentInfo info =
+                new AzureVMAgentCleanUpTask.DeploymentInfo("cloud", "rg", name, null, 1, false);
+        if (state == null) {
+            info.setTimestampMillis(timestampMillis);
+        } else {
+            info.observed(OffsetDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), ZoneOffset.UTC), state);
+        }
+        return info;
+    }
+}
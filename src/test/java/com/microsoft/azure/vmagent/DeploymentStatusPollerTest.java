@@ -0,0 +1,128 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.microsoft.azure.vmagent.exceptions.AzureCloudException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class DeploymentStatusPollerTest {
+
+    private static final long FAR_FUTURE = Long.MAX_VALUE;
+
+    @Test
+    void tickFetchesOperationsOnceForAllWaiters() {
+        // Given
+        AtomicInteger fetches = new AtomicInteger();
+        List<DeploymentStatusPoller.VmOperation> operations = new ArrayList<>();
+        operations.add(vm("vm0", "Succeeded"));
+        operations.add(vm("vm1", "Succeeded"));
+        operations.add(vm("vm2", "Succeeded"));
+        DeploymentStatusPoller poller = new DeploymentStatusPoller("rg/dep", "dep", () -> {
+            fetches.incrementAndGet();
+            return operations;
+        });
+        CompletableFuture<Void> vm0 = poller.register("vm0", FAR_FUTURE, 60);
+        CompletableFuture<Void> vm1 = poller.register("VM1", FAR_FUTURE, 60);
+        CompletableFuture<Void> vm2 = poller.register("vm2", FAR_FUTURE, 60);
+
+        // When
+        poller.tick();
+
+        // Then
+        assertThat(fetches.get(), equalTo(1));
+        assertThat(vm0.isDone() && vm1.isDone() && vm2.isDone(), equalTo(true));
+        assertThat(poller.getWaiterCount(), equalTo(0));
+    }
+
+    @Test
+    void tickFailsOnlyTheWaiterOfTheFailedVm() {
+        // Given
+        List<DeploymentStatusPoller.VmOperation> operations = new ArrayList<>();
+        operations.add(vm("vm0", "Failed"));
+        operations.add(vm("vm1", "Creating"));
+        DeploymentStatusPoller poller = new DeploymentStatusPoller("rg/dep", "dep", () -> operations);
+        CompletableFuture<Void> vm0 = poller.register("vm0", FAR_FUTURE, 60);
+        CompletableFuture<Void> vm1 = poller.register("vm1", FAR_FUTURE, 60);
+
+        // When
+        poller.tick();
+
+        // Then
+        ExecutionException e = assertThrows(ExecutionException.class, vm0::get);
+        assertThat(e.getCause(), instanceOf(AzureCloudException.class));
+        assertThat(e.getCause().getMessage(), containsString("Deployment Failed"));
+        assertThat(vm1.isDone(), equalTo(false));
+        assertThat(poller.getWaiterCount(), equalTo(1));
+    }
+
+    @Test
+    void tickFailsWaitersPastTheirDeadline() {
+        // Given
+        List<DeploymentStatusPoller.VmOperation> operations = new ArrayList<>();
+        operations.add(vm("vm0", "Creating"));
+        DeploymentStatusPoller poller = new DeploymentStatusPoller("rg/dep", "dep", () -> operations);
+        CompletableFuture<Void> vm0 = poller.register("vm0", 0, 60);
+
+        // When
+        poller.tick();
+
+        // Then
+        ExecutionException e = assertThrows(ExecutionException.class, vm0::get);
+        assertThat(e.getCause().getMessage(), containsString("max timeout reached (60 seconds)"));
+    }
+
+    @Test
+    void tickFailsAllWaitersWhenDeploymentCannotBeRead() {
+        // Given
+        DeploymentStatusPoller poller = new DeploymentStatusPoller("rg/dep", "dep", () -> {
+            throw AzureCloudException.create("Could not find deployment dep");
+        });
+        CompletableFuture<Void> vm0 = poller.register("vm0", FAR_FUTURE, 60);
+        CompletableFuture<Void> vm1 = poller.register("vm1", FAR_FUTURE, 60);
+
+        // When
+        poller.tick();
+
+        // Then
+        assertThat(vm0.isCompletedExceptionally(), equalTo(true));
+        assertThat(vm1.isCompletedExceptionally(), equalTo(true));
+    }
+
+    @Test
+    void intervalBacksOffWhileNothingChangesAndResetsOnProgress() {
+        // Given
+        List<DeploymentStatusPoller.VmOperation> operations = new ArrayList<>();
+        operations.add(vm("vm0", "Creating"));
+        DeploymentStatusPoller poller = new DeploymentStatusPoller("rg/dep", "dep", () -> operations);
+        poller.register("vm0", FAR_FUTURE, 60);
+        poller.tick();
+
+        // When
+        poller.tick();
+        poller.tick();
+
+        // Then
+        assertThat(poller.getIntervalMillis(), greaterThan(DeploymentStatusPoller.MIN_INTERVAL_MILLIS));
+
+        // When
+        operations.set(0, vm("vm0", "Running"));
+        poller.tick();
+
+        // Then
+        assertThat(poller.getIntervalMillis(), equalTo(DeploymentStatusPoller.MIN_INTERVAL_MILLIS));
+    }
+
+    private static DeploymentStatusPoller.VmOperation vm(String name, String state) {
+        return new DeploymentStatusPoller.VmOperation(name, "Microsoft.Compute/virtualMachines", state, "Conflict");
+    }
+}
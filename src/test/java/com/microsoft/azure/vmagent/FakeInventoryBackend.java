@@ -0,0 +1,28 @@
+package com.microsoft.azure.vmagent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In memory {@link InventoryBackend} counting the listings it answers.
+ */
+class FakeInventoryBackend implements InventoryBackend {
+
+    final List<VirtualMachineInventory.Entry> virtualMachines = new ArrayList<>();
+
+    final List<TaggedResource> taggedResources = new ArrayList<>();
+
+    int listings;
+
+    @Override
+    public List<VirtualMachineInventory.Entry> listVirtualMachines(String resourceGroup) {
+        listings++;
+        return new ArrayList<>(virtualMachines);
+    }
+
+    @Override
+    public List<TaggedResource> listTaggedResources(String resourceGroup) {
+        listings++;
+        return new ArrayList<>(taggedResources);
+    }
+}
@@ -0,0 +1,93 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+class LeakedResourceDeleterTest {
+
+    private static final String VM = "Microsoft.Compute/virtualMachines";
+
+    private static final String NIC = "Microsoft.Network/networkInterfaces";
+
+    private static final String IP = "Microsoft.Network/publicIPAddresses";
+
+    @Test
+    void resourcesAreGroupedByTheirVmInDeletionOrder() {
+        // Given
+        List<InventoryBackend.TaggedResource> resources = Arrays.asList(
+                resource("vm1IPName", IP), resource("vm10NIC", NIC), resource("vm1NIC", NIC),
+                resource("vm10", VM), resource("vm1", VM), resource("orphanNIC", NIC));
+
+        // When
+        List<List<InventoryBackend.TaggedResource>> groups = LeakedResourceDeleter.group(resources);
+
+        // Then
+        List<List<String>> names = groups.stream()
+                .map(group -> group.stream().map(InventoryBackend.TaggedResource::name).collect(Collectors.toList()))
+                .collect(Collectors.toList());
+        assertThat(names, contains(
+                Arrays.asList("vm1", "vm1NIC", "vm1IPName"),
+                Arrays.asList("vm10", "vm10NIC"),
+                Collections.singletonList("orphanNIC")));
+    }
+
+    @Test
+    void groupsAreDeletedConcurrentlyUpToTheLimit() {
+        // Given
+        List<CompletableFuture<Void>> started = Collections.synchronizedList(new ArrayList<>());
+        LeakedResourceDeleter deleter = new LeakedResourceDeleter(resource -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            started.add(future);
+            return future;
+        }, 2);
+
+        // When
+        CompletableFuture<Void> done = deleter.deleteAll(Arrays.asList(
+                resource("a", VM), resource("b", VM), resource("c", VM)));
+
+        // Then
+        assertThat(started, hasSize(2));
+        started.get(0).complete(null);
+        assertThat(started, hasSize(3));
+        started.get(1).complete(null);
+        started.get(2).complete(null);
+        assertThat(done.isDone(), equalTo(true));
+    }
+
+    @Test
+    void failureSkipsTheRestOfTheGroup() throws Exception {
+        // Given
+        List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+        LeakedResourceDeleter deleter = new LeakedResourceDeleter(resource -> {
+            if (resource.name().equals("vm1")) {
+                return CompletableFuture.failedFuture(new IllegalStateException("conflict"));
+            }
+            deleted.add(resource.name());
+            return CompletableFuture.completedFuture(null);
+        }, 1);
+
+        // When
+        deleter.deleteAll(Arrays.asList(resource("vm1", VM), resource("vm1NIC", NIC), resource("vm2", VM)))
+                .get(1, TimeUnit.MINUTES);
+
+        // Then
+        assertThat(deleted, contains("vm2"));
+        assertThat(LeakedResourceDeleter.inFlight(), equalTo(0));
+    }
+
+    private static InventoryBackend.TaggedResource resource(String name, String type) {
+        return new InventoryBackend.TaggedResource("/subscriptions/s/" + type + "/" + name, name, type,
+                Collections.emptyMap());
+    }
+}
@@ -0,0 +1,59 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import org.jenkinsci.plugins.cloudstats.ProvisioningActivity;
+import org.junit.jupiter.api.Test;
+
+class ProvisioningActivityIndexTest {
+
+    private static final long NOW = 1_000_000_000L;
+
+    @Test
+    void activityIsTrackedWhileInFlightAndDuringTheGracePeriod() {
+        // Given
+        ProvisioningActivityIndex index = new ProvisioningActivityIndex();
+        ProvisioningActivity.Id id = new ProvisioningActivity.Id("cloud", "template");
+
+        // When
+        index.started(id);
+
+        // Then
+        assertThat(index.isTracked(id, NOW), equalTo(true));
+        index.finished(id, NOW);
+        assertThat(index.isTracked(id, NOW + ProvisioningActivityIndex.GRACE_PERIOD_MILLIS - 1), equalTo(true));
+        assertThat(index.isTracked(id, NOW + ProvisioningActivityIndex.GRACE_PERIOD_MILLIS), equalTo(false));
+    }
+
+    @Test
+    void activityNeverStartedIsNotTracked() {
+        // Given
+        ProvisioningActivityIndex index = new ProvisioningActivityIndex();
+
+        // When
+        index.finished(new ProvisioningActivity.Id("cloud", "template"), NOW);
+
+        // Then
+        assertThat(index.isTracked(new ProvisioningActivity.Id("cloud", "template"), NOW), equalTo(false));
+        assertThat(index.size(), equalTo(0));
+    }
+
+    @Test
+    void pruneForgetsOnlyActivitiesFinishedBeforeTheGracePeriod() {
+        // Given
+        ProvisioningActivityIndex index = new ProvisioningActivityIndex();
+        ProvisioningActivity.Id inFlight = new ProvisioningActivity.Id("cloud", "template");
+        ProvisioningActivity.Id finished = new ProvisioningActivity.Id("cloud", "other");
+        index.started(inFlight);
+        index.started(finished);
+        index.finished(finished, NOW);
+
+        // When
+        index.prune(NOW + ProvisioningActivityIndex.GRACE_PERIOD_MILLIS);
+
+        // Then
+        assertThat(index.size(), equalTo(1));
+        assertThat(index.isTracked(inFlight, NOW + ProvisioningActivityIndex.GRACE_PERIOD_MILLIS), equalTo(true));
+    }
+}
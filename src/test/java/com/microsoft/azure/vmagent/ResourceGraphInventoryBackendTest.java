@@ -0,0 +1,72 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+
+import com.azure.resourcemanager.AzureResourceManager;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.azure.vmagent.util.Constants;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ResourceGraphInventoryBackendTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    void parsesVirtualMachineRows() throws Exception {
+        // Given
+        JsonNode row = MAPPER.readTree("{\"id\":\"/subscriptions/s/vm1\",\"name\":\"vm1\","
+                + "\"tags\":{\"" + Constants.AZURE_TEMPLATE_TAG_NAME + "\":\"linux\"},"
+                + "\"provisioningState\":\"Succeeded\",\"powerState\":\"PowerState/running\","
+                + "\"osDiskId\":\"/subscriptions/s/disks/vm1-os\",\"osDiskVhdUri\":\"\"}");
+
+        // When
+        VirtualMachineInventory.Entry entry = ResourceGraphInventoryBackend.parseVirtualMachine(row);
+
+        // Then
+        assertThat(entry.getName(), equalTo("vm1"));
+        assertThat(entry.getTemplateName(), equalTo("linux"));
+        assertThat(entry.getProvisioningState(), equalTo("Succeeded"));
+        assertThat(entry.getStatus(), equalTo(AzureVMManagementServiceDelegate.VMStatus.RUNNING));
+        assertThat(entry.isManagedDiskEnabled(), equalTo(true));
+        assertThat(entry.getOsDiskId(), equalTo("/subscriptions/s/disks/vm1-os"));
+        assertThat(entry.getOsUnmanagedDiskVhdUri(), nullValue());
+    }
+
+    @Test
+    void requestsArePagedWithTheSkipToken() {
+        // Given
+        String kql = "Resources | project id";
+
+        // When
+        JsonNode first = ResourceGraphInventoryBackend.requestBody("sub", kql, null);
+        JsonNode next = ResourceGraphInventoryBackend.requestBody("sub", kql, "token");
+
+        // Then
+        assertThat(first.path("subscriptions").get(0).asText(), equalTo("sub"));
+        assertThat(first.path("options").has("$skipToken"), equalTo(false));
+        assertThat(next.path("options").path("$skipToken").asText(), equalTo("token"));
+    }
+
+    @Test
+    void fallsBackWhenTheQueryFails() throws Exception {
+        // Given
+        FakeInventoryBackend fallback = new FakeInventoryBackend();
+        fallback.taggedResources.add(new InventoryBackend.TaggedResource("/subscriptions/s/nic1", "nic1",
+                "Microsoft.Network/networkInterfaces", Collections.emptyMap()));
+        InventoryBackend backend = new ResourceGraphInventoryBackend(mock(AzureResourceManager.class), fallback);
+
+        // When
+        List<InventoryBackend.TaggedResource> resources = backend.listTaggedResources("rg");
+
+        // Then
+        assertThat(fallback.listings, equalTo(1));
+        assertThat(resources.stream().map(InventoryBackend.TaggedResource::name).toList(), contains("nic1"));
+    }
+}
@@ -0,0 +1,114 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ScaleDownCoordinatorTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final List<List<ScaleDownCoordinator.Request>> batches = new ArrayList<>();
+
+    @AfterEach
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void agentsQueuedWithinTheWindowAreDeletedAsOneBatch() throws Exception {
+        // Given
+        ScaleDownCoordinator coordinator = new ScaleDownCoordinator(scheduler, TimeUnit.HOURS.toMillis(1),
+                this::record);
+
+        // When
+        coordinator.submit("agent1", null, null);
+        coordinator.submit("agent2", null, null);
+        coordinator.submit("agent3", null, null);
+        coordinator.flush();
+        waitForBatches(1);
+
+        // Then
+        assertThat(batches, hasSize(1));
+        assertThat(names(batches.get(0)), contains("agent1", "agent2", "agent3"));
+    }
+
+    @Test
+    void anAgentAlreadyQueuedOrRunningIsNotQueuedAgain() throws Exception {
+        // Given
+        ScaleDownCoordinator coordinator = new ScaleDownCoordinator(scheduler, TimeUnit.HOURS.toMillis(1),
+                this::record);
+        CompletableFuture<Void> first = coordinator.submit("agent1", null, null);
+
+        // When
+        CompletableFuture<Void> queuedAgain = coordinator.submit("agent1", null, null);
+        coordinator.flush();
+        waitForBatches(1);
+        CompletableFuture<Void> runningAgain = coordinator.submit("agent1", null, null);
+
+        // Then
+        assertThat(queuedAgain, sameInstance(first));
+        assertThat(runningAgain, sameInstance(first));
+        assertThat(batches.get(0), hasSize(1));
+    }
+
+    @Test
+    void aBatchIsFlushedWhenTheWindowCloses() throws Exception {
+        // Given
+        ScaleDownCoordinator coordinator = new ScaleDownCoordinator(scheduler, 10, this::record);
+
+        // When
+        coordinator.submit("agent1", null, null);
+        waitForBatches(1);
+
+        // Then
+        assertThat(names(batches.get(0)), contains("agent1"));
+        assertThat(batches.get(0).get(0).getResult().isDone(), equalTo(false));
+    }
+
+    @Test
+    void aBatchThatCannotStartReleasesItsAgents() {
+        // Given
+        ScaleDownCoordinator coordinator = new ScaleDownCoordinator(scheduler, TimeUnit.HOURS.toMillis(1),
+                batch -> {
+                    throw new RejectedExecutionException("full");
+                });
+        CompletableFuture<Void> result = coordinator.submit("agent1", null, null);
+
+        // When
+        coordinator.flush();
+
+        // Then
+        assertThat(result.isCompletedExceptionally(), equalTo(true));
+        assertThat(coordinator.isHandling("agent1"), equalTo(false));
+    }
+
+    private synchronized void record(List<ScaleDownCoordinator.Request> batch) {
+        batches.add(batch);
+        notifyAll();
+    }
+
+    private synchronized void waitForBatches(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (batches.size() < count && System.currentTimeMillis() < deadline) {
+            wait(100);
+        }
+    }
+
+    private static List<String> names(List<ScaleDownCoordinator.Request> batch) {
+        return batch.stream().map(ScaleDownCoordinator.Request::getName).collect(Collectors.toList());
+    }
+}
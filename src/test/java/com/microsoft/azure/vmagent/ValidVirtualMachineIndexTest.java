@@ -0,0 +1,48 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class ValidVirtualMachineIndexTest {
+
+    @Test
+    void resourcesDerivedFromTheVmNameAreOwned() {
+        // Given
+        ValidVirtualMachineIndex index = new ValidVirtualMachineIndex(Arrays.asList("linux1", "linux10"));
+
+        // When / Then
+        assertThat(index.getOwner("linux1"), equalTo("linux1"));
+        assertThat(index.getOwner("linux1NIC"), equalTo("linux1"));
+        assertThat(index.getOwner("linux10IPName"), equalTo("linux10"));
+        assertThat(index.getOwner("customScriptlinux10"), equalTo("linux10"));
+        assertThat(index.getOwner("linux1_OsDisk_1_0123456789abcdef"), equalTo("linux1"));
+    }
+
+    @Test
+    void aShorterVmNameDoesNotProtectALongerOne() {
+        // Given
+        ValidVirtualMachineIndex index = new ValidVirtualMachineIndex(Arrays.asList("vm1"));
+
+        // When / Then
+        assertThat(index.getOwner("vm10"), nullValue());
+        assertThat(index.getOwner("vm10NIC"), nullValue());
+        assertThat(index.getOwner("vm10_OsDisk_1_abc"), nullValue());
+        assertThat(index.isOwned("vm1IPName"), equalTo(true));
+    }
+
+    @Test
+    void imagesAreOwnedThroughTheBaseNameOfTheDeployment() {
+        // Given
+        ValidVirtualMachineIndex index = new ValidVirtualMachineIndex(Arrays.asList("win1f3a2", "lin9c0"));
+
+        // When / Then
+        assertThat(index.getOwner("win1f3aImage"), equalTo("win1f3a2"));
+        assertThat(index.getOwner("lin9cImage"), equalTo("lin9c0"));
+        assertThat(index.getOwner("lin9Image"), nullValue());
+        assertThat(index.getOwner("otherImage"), nullValue());
+    }
+}
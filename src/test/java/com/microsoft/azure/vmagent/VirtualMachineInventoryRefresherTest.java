@@ -0,0 +1,75 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class VirtualMachineInventoryRefresherTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutdown() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void everyCloudIsRefreshedOnEachPeriod() throws Exception {
+        // Given
+        Map<String, AtomicInteger> refreshes = new ConcurrentHashMap<>();
+        CountDownLatch refreshedTwice = new CountDownLatch(4);
+        VirtualMachineInventoryRefresher refresher = new VirtualMachineInventoryRefresher(executor,
+                () -> List.of("cloud1", "cloud2"), cloudName -> {
+                    if (refreshes.computeIfAbsent(cloudName, key -> new AtomicInteger()).incrementAndGet() <= 2) {
+                        refreshedTwice.countDown();
+                    }
+                });
+
+        // When
+        refresher.schedule(scheduler, 10);
+
+        // Then
+        assertThat(refreshedTwice.await(10, TimeUnit.SECONDS), equalTo(true));
+    }
+
+    @Test
+    void aCloudStillBeingRefreshedIsSkipped() throws Exception {
+        // Given
+        AtomicInteger refreshes = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        VirtualMachineInventoryRefresher refresher = new VirtualMachineInventoryRefresher(executor,
+                () -> List.of("cloud1"), cloudName -> {
+                    refreshes.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+        refresher.refreshAll();
+        assertThat(started.await(10, TimeUnit.SECONDS), equalTo(true));
+
+        // When
+        refresher.refreshAll();
+
+        // Then
+        assertThat(refreshes.get(), equalTo(1));
+        release.countDown();
+    }
+}
@@ -0,0 +1,92 @@
+package com.microsoft.azure.vmagent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import com.microsoft.azure.vmagent.util.Constants;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class VirtualMachineInventoryTest {
+
+    @Test
+    void knownVmsAreOnlyReportedWhileTheListingIsFresh() {
+        // Given
+        VirtualMachineInventory inventory = new VirtualMachineInventory("cloud");
+        long now = System.currentTimeMillis();
+        inventory.refresh("rg", List.of(mkEntry("vm1")), now);
+
+        // When
+        VirtualMachineInventory.Entry fresh = inventory.get("RG", "vm1", now + 1);
+        VirtualMachineInventory.Entry unknown = inventory.get("rg", "vm2", now + 1);
+        VirtualMachineInventory.Entry stale =
+                inventory.get("rg", "vm1", now + VirtualMachineInventory.MAX_AGE_MILLIS);
+        VirtualMachineInventory.Entry otherGroup = inventory.get("other", "vm1", now + 1);
+
+        // Then
+        assertThat(fresh, notNullValue());
+        assertThat(fresh.getTemplateName(), equalTo("template"));
+        assertThat(unknown, nullValue());
+        assertThat(stale, nullValue());
+        assertThat(otherGroup, nullValue());
+    }
+
+    @Test
+    void anIndexIsOnlyWantedOnceReadSinceItsLastRefresh() {
+        // Given
+        VirtualMachineInventory inventory = new VirtualMachineInventory("cloud");
+        long now = System.currentTimeMillis();
+        inventory.refresh("rg", List.of(mkEntry("vm1")), now);
+
+        // When
+        boolean wantedUnread = inventory.wasReadSinceRefresh();
+        inventory.get("rg", "vm1", now + 1);
+        boolean wantedOnceRead = inventory.wasReadSinceRefresh();
+        inventory.refresh("rg", List.of(mkEntry("vm1")), now + 2);
+
+        // Then
+        assertThat(wantedUnread, equalTo(false));
+        assertThat(wantedOnceRead, equalTo(true));
+        assertThat(inventory.wasReadSinceRefresh(), equalTo(false));
+    }
+
+    @Test
+    void refreshDropsDeletedVmsAndKeepsKnownPowerStates() {
+        // Given
+        VirtualMachineInventory inventory = new VirtualMachineInventory("cloud");
+        long now = System.currentTimeMillis();
+        inventory.refresh("rg", List.of(mkEntry("vm1"), mkEntry("vm2")), now);
+        inventory.updateStatus("vm1", AzureVMManagementServiceDelegate.VMStatus.RUNNING);
+
+        // When
+        inventory.refresh("rg", List.of(mkEntry("vm1")), now + 1);
+
+        // Then
+        assertThat(inventory.get("rg", "vm1", now + 1).getStatus(),
+                equalTo(AzureVMManagementServiceDelegate.VMStatus.RUNNING));
+        assertThat(inventory.get("rg", "vm2", now + 1), nullValue());
+    }
+
+    @Test
+    void removedVmsAreForgotten() {
+        // Given
+        VirtualMachineInventory inventory = new VirtualMachineInventory("cloud");
+        long now = System.currentTimeMillis();
+        inventory.refresh("rg", List.of(mkEntry("vm1")), now);
+
+        // When
+        inventory.remove("vm1");
+
+        // Then
+        assertThat(inventory.get("rg", "vm1", now), nullValue());
+    }
+
+    private static VirtualMachineInventory.Entry mkEntry(String name) {
+        return new VirtualMachineInventory.Entry(name, "/subscriptions/sub/resourceGroups/rg/vm/" + name,
+                Map.of(Constants.AZURE_TEMPLATE_TAG_NAME, "template", Constants.AZURE_CLOUD_TAG_NAME, "cloud"),
+                "Succeeded", null, true, "disk-" + name, null);
+    }
+}
@@ -0,0 +1,37 @@
+package com.microsoft.azure.vmagent.remote;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class ConnectBackoffTest {
+
+    @Test
+    void delaysDoubleUpToTheCapWithJitter() {
+        // Given
+        ConnectBackoff backoff = new ConnectBackoff(0, 500, 4000, 60000, new Random(42));
+
+        // When / Then
+        long[] nominal = {500, 1000, 2000, 4000, 4000, 4000};
+        for (long expected : nominal) {
+            long delay = backoff.failed(0);
+            assertThat(delay, greaterThanOrEqualTo(expected / 2));
+            assertThat(delay, lessThanOrEqualTo(expected));
+        }
+        assertThat(backoff.getAttempts(), equalTo(nominal.length));
+    }
+
+    @Test
+    void delaysStopAtTheDeadline() {
+        // Given
+        ConnectBackoff backoff = new ConnectBackoff(1000, 10000, 10000, 3000, new Random(42));
+
+        // Then
+        assertThat(backoff.failed(3500), equalTo(500L));
+        assertThat(backoff.failed(4000), equalTo(-1L));
+    }
+}
@@ -0,0 +1,29 @@
+package com.microsoft.azure.vmagent.remote;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class LaunchTimingsTest {
+
+    @Test
+    void stepsAreReportedInOrderAndSummedWhenRepeated() {
+        // Given
+        AtomicLong clock = new AtomicLong(1000);
+        LaunchTimings timings = new LaunchTimings(clock::get);
+
+        // When
+        clock.addAndGet(300);
+        timings.step("connect");
+        clock.addAndGet(20);
+        timings.step("init check");
+        clock.addAndGet(100);
+        timings.step("connect");
+
+        // Then
+        assertThat(timings.getTotalMillis(), equalTo(420L));
+        assertThat(timings.toString(), equalTo("420 ms (connect 400 ms, init check 20 ms)"));
+    }
+}
@@ -0,0 +1,51 @@
+package com.microsoft.azure.vmagent.remote;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import org.junit.jupiter.api.Test;
+
+class RemoteOutputPumpTest {
+
+    private static final Clock CLOCK = Clock.fixed(Instant.parse("2024-01-01T10:15:30.123Z"), ZoneOffset.UTC);
+
+    @Test
+    void linesArePrefixedWithTheirTime() {
+        // Given
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        byte[] output = "installing\r\ndone\nno newline".getBytes(StandardCharsets.UTF_8);
+
+        // When
+        new RemoteOutputPump(new ByteArrayInputStream(output), new PrintStream(log, true, StandardCharsets.UTF_8),
+                "[stderr] ", CLOCK).run();
+
+        // Then
+        assertThat(log.toString(StandardCharsets.UTF_8).replace(System.lineSeparator(), "\n"), equalTo(
+                "[10:15:30.123] [stderr] installing\n"
+                        + "[10:15:30.123] [stderr] done\n"
+                        + "[10:15:30.123] [stderr] no newline\n"));
+    }
+
+    @Test
+    void longLinesAreSplit() {
+        // Given
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        byte[] output = "x".repeat(RemoteOutputPump.MAX_LINE_BYTES + 1).getBytes(StandardCharsets.UTF_8);
+
+        // When
+        new RemoteOutputPump(new ByteArrayInputStream(output), new PrintStream(log, true, StandardCharsets.UTF_8),
+                "", CLOCK).run();
+
+        // Then
+        String[] lines = log.toString(StandardCharsets.UTF_8).split(System.lineSeparator());
+        assertThat(lines.length, equalTo(2));
+        assertThat(lines[1], equalTo("[10:15:30.123] x"));
+    }
+}
@@ -0,0 +1,34 @@
+package com.microsoft.azure.vmagent.remote;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class RemotingJarTest {
+
+    @Test
+    void hashAndSizeAreComputedFromTheContent() throws Exception {
+        // Given
+        RemotingJar jar = new RemotingJar("abc".getBytes(StandardCharsets.UTF_8));
+
+        // Then
+        assertThat(jar.getSize(), equalTo(3L));
+        assertThat(jar.getSha256(), equalTo("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"));
+        assertThat(new String(jar.openStream().readAllBytes(), StandardCharsets.UTF_8), equalTo("abc"));
+    }
+
+    @Test
+    void verifyCommandChecksTheHashOfTheRemoteCopy() {
+        // Given
+        RemotingJar jar = new RemotingJar("abc".getBytes(StandardCharsets.UTF_8));
+
+        // Then
+        assertThat(jar.getVerifyCommand(true), equalTo("echo 'ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"
+                + "  remoting.jar' | sha256sum -c --status"));
+        assertThat(jar.getVerifyCommand(false), containsString(
+                "Get-FileHash remoting.jar -Algorithm SHA256).Hash -eq 'ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad'"));
+    }
+}
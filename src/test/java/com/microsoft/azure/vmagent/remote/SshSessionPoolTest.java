@@ -0,0 +1,101 @@
+package com.microsoft.azure.vmagent.remote;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.jcraft.jsch.Session;
+import org.junit.jupiter.api.Test;
+
+class SshSessionPoolTest {
+
+    private static final long IDLE_TIMEOUT = 1000;
+
+    @Test
+    void healthySessionIsReused() throws Exception {
+        // Given
+        SshSessionPool pool = new SshSessionPool(IDLE_TIMEOUT);
+        Session session = connectedSession();
+        Session first = pool.acquire("agent", () -> session);
+        pool.release("agent", first);
+
+        // When
+        Session second = pool.acquire("agent", () -> {
+            throw new IllegalStateException("should not connect");
+        });
+
+        // Then
+        assertThat(second, sameInstance(session));
+        assertThat(pool.getOpened(), equalTo(1L));
+        assertThat(pool.getReused(), equalTo(1L));
+    }
+
+    @Test
+    void brokenSessionIsReplaced() throws Exception {
+        // Given
+        SshSessionPool pool = new SshSessionPool(IDLE_TIMEOUT);
+        Session broken = mock(Session.class);
+        pool.release("agent", pool.acquire("agent", () -> broken));
+        Session replacement = connectedSession();
+
+        // When
+        Session acquired = pool.acquire("agent", () -> replacement);
+
+        // Then
+        assertThat(acquired, sameInstance(replacement));
+        assertThat(pool.getOpened(), equalTo(2L));
+        verify(broken).disconnect();
+    }
+
+    @Test
+    void idleSessionsAreEvictedUnlessInUseOrPinned() throws Exception {
+        // Given
+        SshSessionPool pool = new SshSessionPool(IDLE_TIMEOUT);
+        Session idle = connectedSession();
+        Session inUse = connectedSession();
+        Session pinned = connectedSession();
+        pool.release("idle", pool.acquire("idle", () -> idle));
+        pool.acquire("inUse", () -> inUse);
+        pool.pin("pinned", pinned);
+
+        // When
+        pool.evictIdle(System.currentTimeMillis() + IDLE_TIMEOUT);
+
+        // Then
+        verify(idle).disconnect();
+        verify(inUse, never()).disconnect();
+        verify(pinned, never()).disconnect();
+        assertThat(pool.getEvicted(), equalTo(1L));
+        assertThat(pool.size(), equalTo(2));
+    }
+
+    @Test
+    void closeLeavesThePinnedSessionToItsChannel() throws Exception {
+        // Given
+        SshSessionPool pool = new SshSessionPool(IDLE_TIMEOUT);
+        Session pinned = connectedSession();
+        pool.pin("agent", pinned);
+        Session shared = pool.acquire("agent", () -> {
+            throw new IllegalStateException("should not connect");
+        });
+        pool.release("agent", shared);
+
+        // When
+        pool.close("agent");
+        pool.remove("agent", pinned);
+
+        // Then
+        verify(pinned, never()).disconnect();
+        assertThat(pool.size(), equalTo(0));
+    }
+
+    private static Session connectedSession() {
+        Session session = mock(Session.class);
+        when(session.isConnected()).thenReturn(true);
+        return session;
+    }
+}
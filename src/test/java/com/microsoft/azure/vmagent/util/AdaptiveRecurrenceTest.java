@@ -0,0 +1,54 @@
+package com.microsoft.azure.vmagent.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import org.junit.jupiter.api.Test;
+
+class AdaptiveRecurrenceTest {
+
+    @Test
+    void periodDoublesUpToTheMaximumWhileThereIsNothingToDo() {
+        // Given
+        AdaptiveRecurrence recurrence = new AdaptiveRecurrence("task", 1000, 5000);
+
+        // When
+        recurrence.completed(0, 0, "nothing");
+        long first = recurrence.getPeriodMillis();
+        recurrence.completed(0, 0, "nothing");
+        long second = recurrence.getPeriodMillis();
+        recurrence.completed(0, 0, "nothing");
+
+        // Then
+        assertThat(first, equalTo(2000L));
+        assertThat(second, equalTo(4000L));
+        assertThat(recurrence.getPeriodMillis(), equalTo(5000L));
+    }
+
+    @Test
+    void backlogBringsThePeriodBackToTheMinimum() {
+        // Given
+        AdaptiveRecurrence recurrence = new AdaptiveRecurrence("task", 1000, 60000);
+        recurrence.completed(0, 0, "nothing");
+        recurrence.completed(0, 0, "nothing");
+
+        // When
+        recurrence.completed(10000, 3, "3 agents to delete");
+
+        // Then
+        assertThat(recurrence.getPeriodMillis(), equalTo(1000L));
+        assertThat(recurrence.getReason(), equalTo("3 agents to delete"));
+        assertThat(recurrence.isDue(10999), equalTo(false));
+        assertThat(recurrence.isDue(11000), equalTo(true));
+    }
+
+    @Test
+    void firstRunIsDueImmediately() {
+        // Given
+        AdaptiveRecurrence recurrence = new AdaptiveRecurrence("task", 1000, 60000);
+
+        // Then
+        assertThat(recurrence.isDue(0), equalTo(true));
+        assertThat(recurrence.getMinPeriodMillis(), equalTo(1000L));
+    }
+}
@@ -0,0 +1,42 @@
+package com.microsoft.azure.vmagent.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+class AsyncPermitsTest {
+
+    @Test
+    void permitsBeyondTheLimitAreGrantedInOrderOnRelease() {
+        // Given
+        AsyncPermits permits = new AsyncPermits(1);
+        CompletableFuture<Void> first = permits.acquire();
+
+        // When
+        CompletableFuture<Void> second = permits.acquire();
+        CompletableFuture<Void> third = permits.acquire();
+
+        // Then
+        assertThat(first.isDone(), equalTo(true));
+        assertThat(second.isDone(), equalTo(false));
+        assertThat(permits.getWaiting(), equalTo(2));
+
+        // When
+        permits.release();
+
+        // Then
+        assertThat(second.isDone(), equalTo(true));
+        assertThat(third.isDone(), equalTo(false));
+
+        // When
+        permits.release();
+        permits.release();
+
+        // Then
+        assertThat(third.isDone(), equalTo(true));
+        assertThat(permits.getAvailable(), equalTo(1));
+        assertThat(permits.getWaiting(), equalTo(0));
+    }
+}
@@ -0,0 +1,77 @@
+package com.microsoft.azure.vmagent.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.azure.core.http.HttpResponse;
+import com.azure.core.management.exception.ManagementException;
+import com.microsoft.azure.vmagent.exceptions.AzureCloudException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class AzureResourceCacheTest {
+
+    @AfterEach
+    void flush() {
+        AzureResourceCache.invalidateAll();
+    }
+
+    @Test
+    void resourcesAreOnlyLoadedOnce() throws Exception {
+        // Given
+        AtomicInteger loads = new AtomicInteger();
+
+        // When
+        for (int i = 0; i < 3; i++) {
+            AzureResourceCache.get(AzureResourceCache.STORAGE_ACCOUNT_KEY, "creds", "sub", "rg", "account",
+                    () -> "key" + loads.incrementAndGet());
+        }
+
+        // Then
+        assertThat(loads.get(), equalTo(1));
+    }
+
+    @Test
+    void invalidateDropsOnlyTheResourcesOfTheResourceGroup() throws Exception {
+        // Given
+        AtomicInteger loads = new AtomicInteger();
+        AzureResourceCache.get(AzureResourceCache.RESOURCE_GROUP, "creds", "sub", "rg1", "rg1",
+                loads::incrementAndGet);
+        AzureResourceCache.get(AzureResourceCache.RESOURCE_GROUP, "creds", "sub", "rg2", "rg2",
+                loads::incrementAndGet);
+
+        // When
+        AzureResourceCache.invalidate("creds", "sub", "rg1");
+        AzureResourceCache.get(AzureResourceCache.RESOURCE_GROUP, "creds", "sub", "rg1", "rg1",
+                loads::incrementAndGet);
+        AzureResourceCache.get(AzureResourceCache.RESOURCE_GROUP, "creds", "sub", "rg2", "rg2",
+                loads::incrementAndGet);
+
+        // Then
+        assertThat(loads.get(), equalTo(3));
+    }
+
+    @Test
+    void onlyNotFoundAndForbiddenAnswersInvalidate() {
+        // Given
+        Exception notFound = new ManagementException("not found", response(404));
+        Exception forbidden = new RuntimeException(new ManagementException("forbidden", response(403)));
+        Exception throttled = new ManagementException("throttled", response(429));
+        Exception plain = AzureCloudException.create("deployment failed", new IllegalStateException("boom"));
+
+        // When / Then
+        assertThat(AzureResourceCache.isNotFoundOrForbidden(notFound), equalTo(true));
+        assertThat(AzureResourceCache.isNotFoundOrForbidden(forbidden), equalTo(true));
+        assertThat(AzureResourceCache.isNotFoundOrForbidden(throttled), equalTo(false));
+        assertThat(AzureResourceCache.isNotFoundOrForbidden(plain), equalTo(false));
+    }
+
+    private static HttpResponse response(int status) {
+        HttpResponse response = mock(HttpResponse.class);
+        when(response.getStatusCode()).thenReturn(status);
+        return response;
+    }
+}
@@ -0,0 +1,71 @@
+package com.microsoft.azure.vmagent.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class AzureVMThreadPoolsTest {
+
+    @Test
+    void poolRejectsTasksBeyondItsQueueLimit() throws Exception {
+        // Given
+        AzureVMThreadPools.InstrumentedThreadPoolExecutor pool = new AzureVMThreadPools.InstrumentedThreadPoolExecutor(
+                AzureVMThreadPools.Workload.CLEANUP, 1, 1, Executors.defaultThreadFactory());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            pool.submit(() -> {
+                started.countDown();
+                release.await();
+                return null;
+            });
+            started.await(5, TimeUnit.SECONDS);
+            pool.submit(() -> null);
+
+            // When / Then
+            assertThrows(RejectedExecutionException.class, () -> pool.submit(() -> null));
+            AzureVMThreadPools.Statistics statistics = pool.snapshot();
+            assertThat(statistics.getActiveCount(), equalTo(1));
+            assertThat(statistics.getQueuedCount(), equalTo(1));
+            assertThat(statistics.getRejectedCount(), equalTo(1L));
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void poolCountsCompletedTasks() throws Exception {
+        // Given
+        AzureVMThreadPools.InstrumentedThreadPoolExecutor pool = new AzureVMThreadPools.InstrumentedThreadPoolExecutor(
+                AzureVMThreadPools.Workload.RETRY, 2, 10, Executors.defaultThreadFactory());
+
+        // When
+        pool.submit(() -> null).get(5, TimeUnit.SECONDS);
+        pool.submit(() -> null).get(5, TimeUnit.SECONDS);
+        pool.shutdown();
+        pool.awaitTermination(5, TimeUnit.SECONDS);
+
+        // Then
+        assertThat(pool.snapshot().getCompletedCount(), equalTo(2L));
+    }
+
+    @Test
+    void virtualThreadFactoryIsOnlyAvailableOnSupportingJvms() {
+        // Given
+        boolean supported = Runtime.version().feature() >= 21;
+
+        // When
+        ThreadFactory factory = AzureVMThreadPools.newVirtualThreadFactory("test");
+
+        // Then
+        assertThat(factory != null, equalTo(supported));
+    }
+}
@@ -0,0 +1,152 @@
+package com.microsoft.azure.vmagent.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CompletableFuturesTest {
+
+    private ScheduledExecutorService scheduler;
+
+    @BeforeEach
+    void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void pollCompletesWithResultOfObservedFuture() throws Exception {
+        // Given
+        FutureTask<String> task = new FutureTask<>(() -> "done");
+
+        // When
+        CompletableFuture<String> result = CompletableFutures.poll(task, scheduler, 10);
+        task.run();
+
+        // Then
+        assertThat(result.get(5, TimeUnit.SECONDS), equalTo("done"));
+    }
+
+    @Test
+    void pollPropagatesFailureOfObservedFuture() {
+        // Given
+        IOException failure = new IOException("connect failed");
+        FutureTask<String> task = new FutureTask<>(() -> {
+            throw failure;
+        });
+        task.run();
+
+        // When
+        CompletableFuture<String> result = CompletableFutures.poll(task, scheduler, 10);
+
+        // Then
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertThat(e.getCause(), sameInstance(failure));
+    }
+
+    @Test
+    void waitForCompletesOnceConditionHolds() throws Exception {
+        // Given
+        AtomicInteger checks = new AtomicInteger();
+
+        // When
+        CompletableFuture<Void> result = CompletableFutures.waitFor(
+                () -> checks.incrementAndGet() >= 3, scheduler, 10, 5000, "three checks");
+
+        // Then
+        result.get(5, TimeUnit.SECONDS);
+        assertThat(checks.get(), equalTo(3));
+    }
+
+    @Test
+    void waitForFailsWhenTimeoutElapses() {
+        // When
+        CompletableFuture<Void> result = CompletableFutures.waitFor(
+                () -> false, scheduler, 10, 50, "never");
+
+        // Then
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertThat(e.getCause(), instanceOf(TimeoutException.class));
+    }
+
+    @Test
+    void unwrapStripsCompositionWrappers() {
+        // Given
+        IOException cause = new IOException("root");
+
+        // When
+        Throwable result = CompletableFutures.unwrap(new CompletionException(new ExecutionException(cause)));
+
+        // Then
+        assertThat(result, sameInstance(cause));
+    }
+
+    @Test
+    void forEachBoundsActionsInFlight() throws Exception {
+        // Given
+        List<CompletableFuture<Void>> started = new ArrayList<>();
+        List<Integer> items = IntStream.range(0, 5).boxed().collect(Collectors.toList());
+
+        // When
+        CompletableFuture<Void> result = CompletableFutures.forEach(items, 2, item -> {
+            CompletableFuture<Void> action = new CompletableFuture<>();
+            started.add(action);
+            return action;
+        });
+
+        // Then
+        assertThat(started.size(), equalTo(2));
+        started.get(0).completeExceptionally(new IOException("failed"));
+        assertThat(started.size(), equalTo(3));
+        for (int i = 1; i < items.size(); i++) {
+            started.get(i).complete(null);
+        }
+        result.get(5, TimeUnit.SECONDS);
+        assertThat(started.size(), equalTo(5));
+    }
+
+    @Test
+    void callAsyncFailsInsteadOfThrowing() {
+        // Given
+        IOException cause = new IOException("failed");
+
+        // When
+        CompletableFuture<Object> failed = CompletableFutures.callAsync(() -> {
+            throw cause;
+        }, Runnable::run);
+        CompletableFuture<Object> rejected = CompletableFutures.callAsync(() -> "never", command -> {
+            throw new RejectedExecutionException("full");
+        });
+
+        // Then
+        ExecutionException e = assertThrows(ExecutionException.class, failed::get);
+        assertThat(e.getCause(), sameInstance(cause));
+        e = assertThrows(ExecutionException.class, rejected::get);
+        assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+    }
+}
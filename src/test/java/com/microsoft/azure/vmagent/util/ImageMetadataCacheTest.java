@@ -0,0 +1,83 @@
+package com.microsoft.azure.vmagent.util;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.microsoft.azure.vmagent.exceptions.AzureCloudException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ImageMetadataCacheTest {
+
+    @AfterEach
+    void flush() {
+        ImageMetadataCache.invalidateAll();
+    }
+
+    @Test
+    void repeatedLookupsAreServedFromTheCache() throws Exception {
+        // Given
+        AtomicInteger loads = new AtomicInteger();
+        ImageMetadataCache.Loader<String> loader = () -> "version-" + loads.incrementAndGet();
+
+        // When
+        String first = ImageMetadataCache.get("galleryImageVersion", "creds", "sub", List.of("rg", "latest"), loader);
+        String second = ImageMetadataCache.get("galleryImageVersion", "creds", "sub", List.of("rg", "latest"), loader);
+
+        // Then
+        assertThat(first, equalTo("version-1"));
+        assertThat(second, equalTo("version-1"));
+        assertThat(loads.get(), equalTo(1));
+    }
+
+    @Test
+    void lookupsAreKeyedBySubscription() throws Exception {
+        // Given
+        AtomicInteger loads = new AtomicInteger();
+        ImageMetadataCache.Loader<Integer> loader = loads::incrementAndGet;
+
+        // When
+        ImageMetadataCache.get("image", "creds", "sub1", List.of("westus", "sku"), loader);
+        ImageMetadataCache.get("image", "creds", "sub2", List.of("westus", "sku"), loader);
+
+        // Then
+        assertThat(loads.get(), equalTo(2));
+    }
+
+    @Test
+    void missingImagesAreCachedUntilFlushed() throws Exception {
+        // Given
+        AtomicInteger loads = new AtomicInteger();
+        ImageMetadataCache.Loader<String> loader = () -> {
+            loads.incrementAndGet();
+            return null;
+        };
+
+        // When
+        String first = ImageMetadataCache.get("customImage", "creds", "sub", List.of("id"), loader);
+        ImageMetadataCache.get("customImage", "creds", "sub", List.of("id"), loader);
+        ImageMetadataCache.invalidateAll();
+        ImageMetadataCache.get("customImage", "creds", "sub", List.of("id"), loader);
+
+        // Then
+        assertThat(first, nullValue());
+        assertThat(loads.get(), equalTo(2));
+    }
+
+    @Test
+    void failedLookupsAreNotCached() {
+        // Given
+        ImageMetadataCache.Loader<String> loader = () -> {
+            throw AzureCloudException.create("gallery not found");
+        };
+
+        // When / Then
+        assertThrows(AzureCloudException.class,
+                () -> ImageMetadataCache.get("galleryImageVersion", "creds", "sub", List.of("missing"), loader));
+        assertThat(ImageMetadataCache.size(), equalTo(0L));
+    }
+}